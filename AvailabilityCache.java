@@ -0,0 +1,260 @@
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches room availability per hotel and per date as bitsets indexed by
+ * room.  Each cached hotel keeps its sorted room numbers and prices once,
+ * plus one bitset of booked rooms for every recently requested date, so an
+ * availability screen or a pre-booking check is answered without a
+ * database round trip.
+ *
+ * Only dates inside a rolling window starting today are cached; requests
+ * outside it always go to the database.  Hotels and dates are evicted in
+ * least-recently-used order.  Bookings and price changes made by this
+ * process are written through with markBooked() and updatePrice(); those
+ * made by other processes arrive the same way from the ChangeFeed.
+ *
+ */
+
+public class AvailabilityCache implements ChangeFeed.Listener {
+
+   /**
+    * Availability of every room of one hotel on one date.
+    */
+   public static class Snapshot {
+      private final int[] _roomNumbers;
+      private final int[] _prices;
+      private final BitSet _booked;
+
+      Snapshot(int[] roomNumbers, int[] prices, BitSet booked) {
+         this._roomNumbers = roomNumbers;
+         this._prices = prices;
+         this._booked = booked;
+      }
+
+      /**
+       * @return the number of rooms in the hotel
+       */
+      public int size() {
+         return this._roomNumbers.length;
+      }
+
+      /**
+       * @param roomNumber a room number
+       * @return the room's position in this snapshot, or -1 if the hotel has no such room
+       */
+      public int indexOf(int roomNumber) {
+         int i = Arrays.binarySearch(this._roomNumbers, roomNumber);
+         return i < 0 ? -1 : i;
+      }
+
+      public int roomNumber(int index) {
+         return this._roomNumbers[index];
+      }
+
+      public int price(int index) {
+         return this._prices[index];
+      }
+
+      public boolean isBooked(int index) {
+         return this._booked.get(index);
+      }
+   }//end Snapshot
+
+   // rooms of one hotel and the booked bitsets of its cached dates.
+   private static class HotelRooms {
+      final int[] roomNumbers;
+      int[] prices;
+      final LinkedHashMap<LocalDate, BitSet> dates;
+
+      HotelRooms(int[] roomNumbers, int[] prices, final int maxDates) {
+         this.roomNumbers = roomNumbers;
+         this.prices = prices;
+         this.dates = new LinkedHashMap<LocalDate, BitSet>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<LocalDate, BitSet> eldest) {
+               return size() > maxDates;
+            }
+         };
+      }
+   }//end HotelRooms
+
+   private final int _windowDays;
+   private final LinkedHashMap<Integer, HotelRooms> _hotels;
+   private final int _maxDatesPerHotel;
+
+   // write counters striped by hotelID; a load that raced with a booking or
+   // price change in the same stripe is returned but not cached.
+   private final long[] _writeStamps = new long[64];
+   private long _hits = 0;
+   private long _misses = 0;
+
+   /**
+    * @param maxHotels the number of hotels kept before the coldest is evicted
+    * @param maxDatesPerHotel the number of dates kept per hotel
+    * @param windowDays how many days from today are eligible for caching
+    */
+   public AvailabilityCache(final int maxHotels, int maxDatesPerHotel, int windowDays) {
+      this._maxDatesPerHotel = maxDatesPerHotel;
+      this._windowDays = windowDays;
+      this._hotels = new LinkedHashMap<Integer, HotelRooms>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<Integer, HotelRooms> eldest) {
+            return size() > maxHotels;
+         }
+      };
+   }//end AvailabilityCache
+
+   /**
+    * Returns the availability of every room of a hotel on a date, loading
+    * it from the database on a cache miss.
+    *
+    * @param esql the database used on a miss
+    * @param hotelID the hotel
+    * @param date the night being booked
+    * @return the availability snapshot; empty if the hotel has no rooms
+    * @throws java.sql.SQLException when the rooms or bookings can't be read
+    */
+   public Snapshot get(Hotel esql, int hotelID, LocalDate date) throws SQLException {
+      HotelRooms rooms;
+      long stamp;
+      synchronized (this){
+         rooms = this._hotels.get(hotelID);
+         if (rooms != null){
+            BitSet booked = rooms.dates.get(date);
+            if (booked != null){
+               this._hits++;
+               return new Snapshot(rooms.roomNumbers, rooms.prices, (BitSet) booked.clone());
+            }
+         }
+         this._misses++;
+         stamp = this._writeStamps[stripe(hotelID)];
+      }
+
+      // the cache answers pre-booking checks, so it is only filled from
+      // the primary, never from a lagging replica.
+      BitSet booked;
+      ReplicaRouter.Scope primary = ReplicaRouter.primary();
+      try{
+         if (rooms == null)
+            rooms = loadRooms(esql, hotelID);
+         booked = loadBookings(esql, hotelID, date, rooms.roomNumbers);
+      }finally{
+         primary.close();
+      }
+      Snapshot result = new Snapshot(rooms.roomNumbers, rooms.prices, (BitSet) booked.clone());
+
+      if (inWindow(date)){
+         synchronized (this){
+            if (this._writeStamps[stripe(hotelID)] == stamp){
+               HotelRooms current = this._hotels.get(hotelID);
+               if (current == null){
+                  this._hotels.put(hotelID, rooms);
+                  current = rooms;
+               }
+               if (current == rooms)
+                  current.dates.put(date, booked);
+            }
+         }
+      }
+      return result;
+   }//end get
+
+   private HotelRooms loadRooms(Hotel esql, int hotelID) throws SQLException {
+      ResultColumns rows = esql.executeQueryForColumns(
+         "SELECT roomNumber, price FROM Rooms WHERE hotelID = ? ORDER BY roomNumber", hotelID);
+      return new HotelRooms(rows.ints(0), rows.ints(1), this._maxDatesPerHotel);
+   }
+
+   private static BitSet loadBookings(Hotel esql, int hotelID, LocalDate date, int[] roomNumbers) throws SQLException {
+      ResultColumns rows = esql.executeQueryForColumns(
+         "SELECT roomNumber FROM RoomBookings WHERE hotelID = ? AND bookingDate = ?",
+         hotelID, Date.valueOf(date));
+      BitSet booked = new BitSet(roomNumbers.length);
+      for (int row = 0; row < rows.size(); row++){
+         int i = Arrays.binarySearch(roomNumbers, rows.getInt(row, 0));
+         if (i >= 0)
+            booked.set(i);
+      }
+      return booked;
+   }
+
+   private int stripe(int hotelID) {
+      return hotelID & (this._writeStamps.length - 1);
+   }
+
+   private boolean inWindow(LocalDate date) {
+      LocalDate today = LocalDate.now();
+      return !date.isBefore(today) && !date.isAfter(today.plusDays(this._windowDays));
+   }
+
+   /**
+    * Records a booking.
+    *
+    * @param hotelID the hotel
+    * @param roomNumber the booked room
+    * @param date the booked night
+    */
+   public synchronized void markBooked(int hotelID, int roomNumber, LocalDate date) {
+      this._writeStamps[stripe(hotelID)]++;
+      HotelRooms rooms = this._hotels.get(hotelID);
+      if (rooms == null)
+         return;
+      BitSet booked = rooms.dates.get(date);
+      int i = Arrays.binarySearch(rooms.roomNumbers, roomNumber);
+      if (booked != null && i >= 0)
+         booked.set(i);
+   }//end markBooked
+
+   /**
+    * Records a price change.
+    *
+    * @param hotelID the hotel
+    * @param roomNumber the repriced room
+    * @param price the new price
+    */
+   public synchronized void updatePrice(int hotelID, int roomNumber, int price) {
+      this._writeStamps[stripe(hotelID)]++;
+      HotelRooms rooms = this._hotels.get(hotelID);
+      if (rooms == null)
+         return;
+      int i = Arrays.binarySearch(rooms.roomNumbers, roomNumber);
+      if (i < 0)
+         return;
+      // snapshots share the prices array, so it is copied rather than changed.
+      int[] prices = rooms.prices.clone();
+      prices[i] = price;
+      rooms.prices = prices;
+   }//end updatePrice
+
+   public void roomBooked(ChangeFeed.RoomBooked event) {
+      markBooked(event.hotelID, event.roomNumber, event.date);
+   }
+
+   public void roomUpdated(ChangeFeed.RoomUpdated event) {
+      updatePrice(event.hotelID, event.roomNumber, event.price);
+   }
+
+   /**
+    * Drops everything cached for a hotel.
+    *
+    * @param hotelID the hotel
+    */
+   public synchronized void invalidate(int hotelID) {
+      this._writeStamps[stripe(hotelID)]++;
+      this._hotels.remove(hotelID);
+   }
+
+   /**
+    * @return a one-line summary of the cache hit rate and size
+    */
+   public synchronized String getStats() {
+      return String.format("availability cache hotels=%d hits=%d misses=%d",
+         this._hotels.size(), this._hits, this._misses);
+   }
+}//end AvailabilityCache
@@ -0,0 +1,165 @@
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Random;
+
+/**
+ * Fills an empty schema (create_tables.sql, create_indexes.sql) with
+ * synthetic data for the JMH benchmarks (benchmarks/).  The generator is
+ * deterministic for a given seed, so two runs against fresh databases
+ * produce the same rows.
+ *
+ *   - one manager per 10 hotels, then the customers
+ *   - hotels spread uniformly over the inhabited latitudes
+ *   - rooms split evenly over the hotels
+ *   - bookings filling every room night by night, centred on today, with
+ *     a skewed choice of customer so some customers are regulars
+ *   - one repair per 1000 bookings
+ *
+ * Usage:
+ *   java [-Dhotel.db.*=...] BenchmarkData <hotels> <rooms> <bookings> [customers] [seed]
+ *
+ * e.g. BenchmarkData 1000 100000 10000000
+ *
+ */
+
+public class BenchmarkData {
+
+   private static final int BATCH_SIZE = 1000;
+   private static final int COMMIT_INTERVAL = 50000;
+   private static final int COMPANIES = 50;
+
+   // a batch insert that commits every COMMIT_INTERVAL rows.
+   private interface RowWriter {
+      void write(PreparedStatement stmt, long i) throws SQLException;
+   }
+
+   private final Hotel _esql;
+   private final Random _random;
+
+   public BenchmarkData(Hotel esql, long seed) {
+      this._esql = esql;
+      this._random = new Random(seed);
+   }
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 3){
+         System.err.println ("Usage: java BenchmarkData <hotels> <rooms> <bookings> [customers] [seed]");
+         System.exit(1);
+      }
+      int hotels = Integer.parseInt(args[0]);
+      int rooms = Integer.parseInt(args[1]);
+      long bookings = Long.parseLong(args[2]);
+      int customers = args.length > 3 ? Integer.parseInt(args[3]) : (int) Math.max(1000, bookings / 100);
+      long seed = args.length > 4 ? Long.parseLong(args[4]) : 42L;
+      // the schema starts empty and no update counts are read, so batches
+      // can go as multi-row INSERTs.
+      if (System.getProperty("hotel.db.rewriteBatches") == null)
+         System.setProperty("hotel.db.rewriteBatches", "true");
+      Hotel esql = Hotel.connect();
+      try{
+         if (esql.executeQuery("SELECT userID FROM Users LIMIT 1") > 0){
+            System.err.println ("Users is not empty; load create_tables.sql first");
+            System.exit(1);
+         }
+         new BenchmarkData(esql, seed).generate(hotels, rooms, bookings, customers);
+      }finally{
+         esql.cleanup();
+      }
+   }//end main
+
+   /**
+    * Generates the data set.
+    *
+    * @param hotels number of hotels
+    * @param rooms total number of rooms, at least one per hotel
+    * @param bookings number of room bookings
+    * @param customers number of customer users
+    * @throws java.sql.SQLException when an insert fails
+    */
+   public void generate(final int hotels, int rooms, final long bookings, final int customers) throws SQLException {
+      final int managers = Math.max(1, hotels / 10);
+      final int roomsPerHotel = Math.max(1, rooms / hotels);
+      final long totalRooms = (long) roomsPerHotel * hotels;
+
+      insert("Users", "INSERT INTO Users (userID, name, password, userType) VALUES (?, ?, ?, ?)",
+         managers + customers, (stmt, i) -> {
+            boolean manager = i < managers;
+            stmt.setLong(1, i + 1);
+            stmt.setString(2, (manager ? "manager" : "customer") + (i + 1));
+            stmt.setString(3, "pw" + (i + 1));
+            stmt.setString(4, manager ? "manager" : "customer");
+         });
+
+      insert("Hotel", "INSERT INTO Hotel (hotelID, hotelName, latitude, longitude, dateEstablished, managerUserID) "
+         + "VALUES (?, ?, ?, ?, ?, ?)", hotels, (stmt, i) -> {
+            stmt.setLong(1, i + 1);
+            stmt.setString(2, "Hotel " + (i + 1));
+            stmt.setDouble(3, -55 + this._random.nextDouble() * 125);
+            stmt.setDouble(4, -180 + this._random.nextDouble() * 360);
+            stmt.setDate(5, Date.valueOf(LocalDate.of(1950, 1, 1).plusDays(this._random.nextInt(25000))));
+            stmt.setLong(6, i % managers + 1);
+         });
+
+      insert("Rooms", "INSERT INTO Rooms (hotelID, roomNumber, price, imageURL) VALUES (?, ?, ?, ?)",
+         totalRooms, (stmt, i) -> {
+            stmt.setLong(1, i / roomsPerHotel + 1);
+            stmt.setLong(2, i % roomsPerHotel + 1);
+            stmt.setInt(3, 50 + 10 * this._random.nextInt(46));
+            stmt.setString(4, "room" + (i % roomsPerHotel + 1) + ".jpg");
+         });
+
+      insert("MaintenanceCompany", "INSERT INTO MaintenanceCompany (companyID, name, addrress) VALUES (?, ?, ?)",
+         COMPANIES, (stmt, i) -> {
+            stmt.setLong(1, i + 1);
+            stmt.setString(2, "Company " + (i + 1));
+            stmt.setString(3, (i + 1) + " Service Road");
+         });
+
+      // room-major within a night, so every (room, night) slot is unique.
+      final LocalDate firstNight = LocalDate.now().minusDays(bookings / totalRooms / 2);
+      insert("RoomBookings", "INSERT INTO RoomBookings (customerID, hotelID, roomNumber, bookingDate) VALUES (?, ?, ?, ?)",
+         bookings, (stmt, i) -> {
+            long room = i % totalRooms;
+            double skew = this._random.nextDouble();
+            stmt.setLong(1, managers + 1 + (long) (customers * skew * skew * skew));
+            stmt.setLong(2, room / roomsPerHotel + 1);
+            stmt.setLong(3, room % roomsPerHotel + 1);
+            stmt.setDate(4, Date.valueOf(firstNight.plusDays(i / totalRooms)));
+         });
+
+      insert("RoomRepairs", "INSERT INTO RoomRepairs (companyID, hotelID, roomNumber, repairDate) VALUES (?, ?, ?, ?)",
+         Math.max(1, bookings / 1000), (stmt, i) -> {
+            long room = (long) (this._random.nextDouble() * totalRooms);
+            stmt.setInt(1, this._random.nextInt(COMPANIES) + 1);
+            stmt.setLong(2, room / roomsPerHotel + 1);
+            stmt.setLong(3, room % roomsPerHotel + 1);
+            stmt.setDate(4, Date.valueOf(firstNight.plusDays(this._random.nextInt(730))));
+         });
+   }//end generate
+
+   private void insert(String table, final String sql, final long rows, final RowWriter writer) throws SQLException {
+      long start = System.nanoTime();
+      for (long first = 0; first < rows; first += COMMIT_INTERVAL){
+         final long from = first, to = Math.min(rows, first + COMMIT_INTERVAL);
+         this._esql.inTransaction(pc -> {
+            PreparedStatement stmt = pc.statements().prepare(sql);
+            try{
+               for (long i = from; i < to; i++){
+                  writer.write(stmt, i);
+                  stmt.addBatch();
+                  if ((i - from + 1) % BATCH_SIZE == 0)
+                     stmt.executeBatch();
+               }
+               stmt.executeBatch();
+            }finally{
+               stmt.clearBatch();
+            }
+            return null;
+         });
+         double seconds = (System.nanoTime() - start) / 1e9;
+         System.out.printf("%s: %d / %d rows, %.0f rows/s%n", table, to, rows, to / seconds);
+      }
+   }//end insert
+}//end BenchmarkData
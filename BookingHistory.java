@@ -0,0 +1,158 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hotel's booking history, read a page at a time.  Pages are ordered by
+ * (bookingDate, bookingID) and each one starts strictly after the last row
+ * of the previous page (keyset pagination), so every page is a bounded
+ * range scan of index_hotelBookingHistory however deep into the history
+ * it is.  export() walks the same pages to write the full history in
+ * constant memory.
+ *
+ */
+
+public class BookingHistory {
+
+   // the widest range a MySQL DATE can hold; used for open-ended ranges.
+   public static final LocalDate FIRST_DATE = LocalDate.of(1000, 1, 1);
+   public static final LocalDate LAST_DATE = LocalDate.of(9999, 12, 31);
+
+   public static final String[] HEADER = { "bookingID", "name", "hotelID", "roomNumber", "bookingDate" };
+
+   private static final String PAGE_QUERY =
+      "SELECT RB.bookingID, U.name, RB.hotelID, RB.roomNumber, RB.bookingDate " +
+      "FROM RoomBookings RB INNER JOIN Users U ON RB.customerID = U.userID " +
+      "WHERE RB.hotelID = ? AND RB.bookingDate <= ? " +
+      "AND (RB.bookingDate > ? OR (RB.bookingDate = ? AND RB.bookingID > ?)) " +
+      "ORDER BY RB.bookingDate, RB.bookingID " +
+      "LIMIT ?";
+
+   // rows per page when exporting.
+   private static final int EXPORT_PAGE = 5000;
+
+   /**
+    * Where a page ends; pass it back to get the next page.
+    */
+   public static class Cursor {
+      public final LocalDate bookingDate;
+      public final int bookingID;
+
+      public Cursor(LocalDate bookingDate, int bookingID) {
+         this.bookingDate = bookingDate;
+         this.bookingID = bookingID;
+      }
+
+      /**
+       * @return the cursor to start a range at, i.e. before its first booking
+       */
+      public static Cursor before(LocalDate from) {
+         return new Cursor(from.minusDays(1), Integer.MAX_VALUE);
+      }
+
+      /**
+       * Parses the form written by toString, "yyyy-mm-dd:bookingID".
+       */
+      public static Cursor parse(String text) {
+         int colon = text.lastIndexOf(':');
+         if (colon < 0)
+            throw new IllegalArgumentException("Not a cursor: " + text);
+         return new Cursor(LocalDate.parse(text.substring(0, colon)), Integer.parseInt(text.substring(colon + 1)));
+      }
+
+      public String toString() {
+         return this.bookingDate + ":" + this.bookingID;
+      }
+   }//end Cursor
+
+   public static class Page {
+      public final List<String[]> rows;
+      // where the next page starts, or null if this is the last page.
+      public final Cursor next;
+
+      Page(List<String[]> rows, Cursor next) {
+         this.rows = rows;
+         this.next = next;
+      }
+   }//end Page
+
+   private BookingHistory() {
+   }
+
+   /**
+    * Reads one page of a hotel's bookings.
+    *
+    * @param esql the database
+    * @param hotelID the hotel
+    * @param after the cursor of the previous page, or Cursor.before(from) for the first page
+    * @param to the last booking date included
+    * @param pageSize the maximum number of rows
+    * @return the rows, as bookingID, name, hotelID, roomNumber, bookingDate
+    * @throws java.sql.SQLException when the query fails
+    */
+   public static Page page(Hotel esql, int hotelID, Cursor after, LocalDate to, final int pageSize) throws SQLException {
+      Date afterDate = Date.valueOf(after.bookingDate);
+      // one extra row tells whether there is a next page.
+      return esql.executeQueryAndHandle(PAGE_QUERY, rs -> {
+         List<String[]> rows = new ArrayList<String[]>(Math.min(pageSize, 1024));
+         Cursor last = null;
+         while (rs.next()){
+            if (rows.size() == pageSize)
+               return new Page(rows, last);
+            int bookingID = rs.getInt(1);
+            Date bookingDate = rs.getDate(5);
+            rows.add(new String[] { String.valueOf(bookingID), rs.getString(2), rs.getString(3),
+                                    rs.getString(4), bookingDate.toString() });
+            last = new Cursor(bookingDate.toLocalDate(), bookingID);
+         }
+         return new Page(rows, null);
+      }, hotelID, Date.valueOf(to), afterDate, afterDate, after.bookingID, pageSize + 1);
+   }//end page
+
+   /**
+    * Writes a hotel's bookings in a date range as CSV with a header line.
+    *
+    * @param esql the database
+    * @param hotelID the hotel
+    * @param from the first booking date included
+    * @param to the last booking date included
+    * @param out where the CSV is written; not closed
+    * @return the number of bookings written
+    * @throws java.sql.SQLException when a query fails
+    * @throws java.io.IOException when writing fails
+    */
+   public static long export(Hotel esql, int hotelID, LocalDate from, LocalDate to, Writer out)
+         throws SQLException, IOException {
+      out.write(String.join(",", HEADER));
+      out.write('\n');
+      long rows = 0;
+      Cursor cursor = Cursor.before(from);
+      while (cursor != null){
+         Page page = page(esql, hotelID, cursor, to, EXPORT_PAGE);
+         for (String[] row : page.rows){
+            for (int i = 0; i < row.length; i++){
+               if (i > 0)
+                  out.write(',');
+               out.write(csv(row[i]));
+            }
+            out.write('\n');
+         }
+         rows += page.rows.size();
+         cursor = page.next;
+      }
+      return rows;
+   }//end export
+
+   private static String csv(String value) {
+      if (value == null)
+         return "";
+      value = value.trim();
+      if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0)
+         return value;
+      return '"' + value.replace("\"", "\"\"") + '"';
+   }
+}//end BookingHistory
@@ -0,0 +1,327 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Headless import of reservation dumps (channel managers, OTA feeds) into
+ * RoomBookings.  The CSV file is streamed line by line with the columns
+ *
+ *    customerID,hotelID,roomNumber,bookingDate
+ *
+ * and an optional header line.  Rows are checked against preloaded keys
+ * of Rooms and Users, against earlier rows of the same batch, and, one
+ * batch at a time, against the bookings already in the database, which
+ * include those imported from earlier batches.  Nothing is kept per row
+ * beyond the current batch, so memory use does not grow with the file.
+ * Valid rows are written with JDBC batch inserts and committed every
+ * commitInterval rows.  Rejected rows are copied to <file>.rejected with
+ * the reason appended.
+ *
+ * Usage:
+ *   java [-Dhotel.db.*=...] BookingImporter <file.csv> [batchSize] [commitInterval]
+ *
+ */
+
+public class BookingImporter {
+
+   private static final String INSERT_BOOKING =
+      "INSERT INTO RoomBookings (customerID, hotelID, roomNumber, bookingDate) VALUES (?, ?, ?, ?)";
+
+   // one parsed CSV line waiting in the current batch.
+   private static class Row {
+      final String line;
+      final int customerID;
+      final int hotelID;
+      final int roomNumber;
+      final LocalDate date;
+      long slot;
+      String rejectedFor = null;
+
+      Row(String line, int customerID, int hotelID, int roomNumber, LocalDate date) {
+         this.line = line;
+         this.customerID = customerID;
+         this.hotelID = hotelID;
+         this.roomNumber = roomNumber;
+         this.date = date;
+      }
+   }//end Row
+
+   private final Hotel _esql;
+   private final int _batchSize;
+   private final int _commitInterval;
+   // packed (hotelID, roomNumber) of every room, sorted; a room's index
+   // in it and the epoch day of a night make the night's slot key.
+   private long[] _rooms = new long[0];
+   private final LongHashSet _users = new LongHashSet(1 << 16);
+   private final LongHashSet _batchSlots;
+
+   private long _read = 0;
+   private long _imported = 0;
+   private long _rejected = 0;
+
+   /**
+    * @param esql the database
+    * @param batchSize rows per JDBC batch
+    * @param commitInterval rows per transaction; rounded up to whole batches
+    */
+   public BookingImporter(Hotel esql, int batchSize, int commitInterval) {
+      this._esql = esql;
+      this._batchSize = Math.max(batchSize, 1);
+      this._commitInterval = Math.max(commitInterval, this._batchSize);
+      this._batchSlots = new LongHashSet(this._batchSize);
+   }
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 1){
+         System.err.println ("Usage: java BookingImporter <file.csv> [batchSize] [commitInterval]");
+         System.exit(1);
+      }
+      int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+      int commitInterval = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+      // a failed batch is rolled back to its savepoint as a whole and no
+      // update counts are read, so batches can go as multi-row INSERTs.
+      if (System.getProperty("hotel.db.rewriteBatches") == null)
+         System.setProperty("hotel.db.rewriteBatches", "true");
+      Hotel esql = Hotel.connect();
+      try{
+         new BookingImporter(esql, batchSize, commitInterval).importFile(args[0], args[0] + ".rejected");
+      }finally{
+         esql.cleanup();
+      }
+   }//end main
+
+   /**
+    * Imports one CSV file.
+    *
+    * @param path the CSV file
+    * @param rejectPath where rejected rows are written
+    * @throws java.sql.SQLException when the database fails
+    * @throws java.io.IOException when the files can't be read or written
+    */
+   public void importFile(String path, String rejectPath) throws SQLException, IOException {
+      long start = System.nanoTime();
+      loadKeys();
+      System.out.printf("Loaded %d room keys and %d user IDs in %.1f s%n",
+         this._rooms.length, this._users.size(), (System.nanoTime() - start) / 1e9);
+
+      try (final BufferedReader reader = new BufferedReader(new FileReader(path), 1 << 16);
+           final BufferedWriter rejects = new BufferedWriter(new FileWriter(rejectPath))){
+         final boolean[] eof = { false };
+         while (!eof[0]){
+            // one transaction per commit interval
+            this._esql.inTransaction(pc -> {
+               try{
+                  eof[0] = importChunk(pc, reader, rejects);
+               }catch (IOException e){
+                  throw new SQLException("Unable to read " + path, e);
+               }
+               return null;
+            });
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d rows read, %d imported, %d rejected, %.0f rows/s%n",
+               this._read, this._imported, this._rejected, this._read / seconds);
+         }
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf("Done in %.1f s: %d imported, %d rejected (see %s), %.0f rows/s%n",
+         seconds, this._imported, this._rejected, rejectPath, this._read / seconds);
+   }//end importFile
+
+   private void loadKeys() throws SQLException {
+      this._esql.inTransaction(pc -> {
+         LongHashSet rooms = new LongHashSet(1 << 16);
+         try (ResultSet rs = pc.statements().prepare("SELECT hotelID, roomNumber FROM Rooms").executeQuery()){
+            while (rs.next())
+               rooms.add(LongHashSet.pack(rs.getInt(1), rs.getInt(2)));
+         }
+         this._rooms = rooms.toArray();
+         Arrays.sort(this._rooms);
+         try (ResultSet rs = pc.statements().prepare("SELECT userID FROM Users").executeQuery()){
+            while (rs.next())
+               this._users.add(rs.getInt(1));
+         }
+         return null;
+      });
+   }//end loadKeys
+
+   /*
+    * Reads and writes up to one commit interval of rows.
+    * @return true once the end of the file has been reached
+    */
+   private boolean importChunk(PooledConnection pc, BufferedReader reader, BufferedWriter rejects)
+         throws SQLException, IOException {
+      int inChunk = 0;
+      List<Row> batch = new ArrayList<Row>(this._batchSize);
+      String line;
+      while ((line = reader.readLine()) != null){
+         Row row = parse(line, rejects);
+         if (row == null)
+            continue;
+         batch.add(row);
+         if (batch.size() == this._batchSize){
+            writeBatch(pc, batch, rejects);
+            inChunk += batch.size();
+            batch.clear();
+            this._batchSlots.clear();
+            if (inChunk >= this._commitInterval)
+               return false;
+         }
+      }
+      if (!batch.isEmpty()){
+         writeBatch(pc, batch, rejects);
+         this._batchSlots.clear();
+      }
+      return true;
+   }//end importChunk
+
+   /*
+    * Parses and validates one line against the preloaded keys.
+    * @return the row, or null if it was blank, a header, or rejected
+    */
+   private Row parse(String line, BufferedWriter rejects) throws IOException {
+      if (line.trim().isEmpty())
+         return null;
+      String[] f = line.split(",", -1);
+      if (this._read == 0 && f.length > 0 && f[0].trim().equalsIgnoreCase("customerID"))
+         return null;
+      this._read++;
+      if (f.length != 4){
+         reject(rejects, line, "expected 4 columns");
+         return null;
+      }
+      Row row;
+      try{
+         row = new Row(line, Integer.parseInt(f[0].trim()), Integer.parseInt(f[1].trim()),
+                       Integer.parseInt(f[2].trim()), LocalDate.parse(f[3].trim()));
+      }catch (NumberFormatException | DateTimeParseException e){
+         reject(rejects, line, "malformed value");
+         return null;
+      }
+      long epochDay = row.date.toEpochDay();
+      if (epochDay != (int) epochDay){
+         reject(rejects, line, "malformed value");
+         return null;
+      }
+      row.slot = slot(row.hotelID, row.roomNumber, (int) epochDay);
+      if (row.slot < 0){
+         reject(rejects, line, "no such room");
+         return null;
+      }
+      if (!this._users.contains(row.customerID)){
+         reject(rejects, line, "no such customer");
+         return null;
+      }
+      if (!this._batchSlots.add(row.slot)){
+         reject(rejects, line, "duplicate of an earlier row");
+         return null;
+      }
+      return row;
+   }//end parse
+
+   /*
+    * @return the key of one night of a room, or -1 if there is no such room
+    */
+   private long slot(int hotelID, int roomNumber, int epochDay) {
+      int room = Arrays.binarySearch(this._rooms, LongHashSet.pack(hotelID, roomNumber));
+      return room < 0 ? -1 : LongHashSet.pack(room, epochDay);
+   }
+
+   /*
+    * Drops rows that collide with existing bookings, then inserts the rest
+    * with one JDBC batch.  If a live booking sneaks in between the check
+    * and the insert, the batch is rolled back to its savepoint and retried
+    * once with a fresh conflict check.
+    */
+   private void writeBatch(PooledConnection pc, List<Row> batch, BufferedWriter rejects)
+         throws SQLException, IOException {
+      Connection conn = pc.connection();
+      for (int attempt = 1; ; attempt++){
+         markConflicts(pc, batch);
+         Savepoint savepoint = conn.setSavepoint();
+         PreparedStatement insert = pc.statements().prepare(INSERT_BOOKING);
+         int pending = 0;
+         for (Row row : batch){
+            if (row.rejectedFor != null)
+               continue;
+            insert.setInt(1, row.customerID);
+            insert.setInt(2, row.hotelID);
+            insert.setInt(3, row.roomNumber);
+            insert.setDate(4, Date.valueOf(row.date));
+            insert.addBatch();
+            pending++;
+         }
+         try{
+            if (pending > 0)
+               insert.executeBatch();
+            conn.releaseSavepoint(savepoint);
+            this._imported += pending;
+            break;
+         }catch (SQLException e){
+            conn.rollback(savepoint);
+            if (attempt >= 2 || !RoomReservations.isDuplicate(e))
+               throw e;
+         }finally{
+            insert.clearBatch();
+         }
+      }
+      for (Row row : batch)
+         if (row.rejectedFor != null)
+            reject(rejects, row.line, row.rejectedFor);
+   }//end writeBatch
+
+   private void markConflicts(PooledConnection pc, List<Row> batch) throws SQLException {
+      StringBuilder sql = new StringBuilder(
+         "SELECT hotelID, roomNumber, bookingDate FROM RoomBookings WHERE (hotelID, roomNumber, bookingDate) IN (");
+      List<Row> candidates = new ArrayList<Row>(batch.size());
+      for (Row row : batch){
+         if (row.rejectedFor != null)
+            continue;
+         sql.append(candidates.isEmpty() ? "(?, ?, ?)" : ", (?, ?, ?)");
+         candidates.add(row);
+      }
+      if (candidates.isEmpty())
+         return;
+      sql.append(')');
+
+      // full batches share one template, so the statement is cached.
+      PreparedStatement stmt = pc.statements().prepare(sql.toString());
+      int p = 1;
+      for (Row row : candidates){
+         stmt.setInt(p++, row.hotelID);
+         stmt.setInt(p++, row.roomNumber);
+         stmt.setDate(p++, Date.valueOf(row.date));
+      }
+      // the batch's own slots were checked as it was parsed, so the set is
+      // reused for the ones that are taken.
+      LongHashSet taken = this._batchSlots;
+      taken.clear();
+      try (ResultSet rs = stmt.executeQuery()){
+         while (rs.next())
+            taken.add(slot(rs.getInt(1), rs.getInt(2), (int) rs.getDate(3).toLocalDate().toEpochDay()));
+      }
+      for (Row row : candidates)
+         if (taken.contains(row.slot))
+            row.rejectedFor = "room already booked";
+   }//end markConflicts
+
+   private void reject(BufferedWriter rejects, String line, String reason) throws IOException {
+      this._rejected++;
+      rejects.write(line);
+      rejects.write(',');
+      rejects.write(reason);
+      rejects.newLine();
+   }
+}//end BookingImporter
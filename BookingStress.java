@@ -0,0 +1,156 @@
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrency stress check for the booking path.  Hundreds of threads try
+ * to book the same handful of room-nights at once through
+ * RoomReservations; afterwards the tool verifies that no room-night was
+ * booked twice and that every successful booking is in the database, and
+ * reports the booking throughput.
+ *
+ * Every thread books as its own customer, registered for the run, so that
+ * the threads contend for each other's holds rather than renewing one
+ * shared customer's.
+ *
+ * Usage:
+ *   java [-Dhotel.db.*=...] BookingStress <hotelID> <firstRoom> <rooms> <startDate> <nights>
+ *        <threads> <attemptsPerThread> [cleanup]
+ *
+ * The rooms firstRoom .. firstRoom+rooms-1 must exist.  With "cleanup" the
+ * bookings and customers of the run are deleted again at the end.
+ *
+ */
+
+public class BookingStress {
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 7){
+         System.err.println ("Usage: java BookingStress <hotelID> <firstRoom> <rooms> <startDate> <nights>"
+            + " <threads> <attemptsPerThread> [cleanup]");
+         System.exit(1);
+      }
+      final int hotelID = Integer.parseInt(args[0]);
+      final int firstRoom = Integer.parseInt(args[1]);
+      final int rooms = Integer.parseInt(args[2]);
+      final LocalDate startDate = LocalDate.parse(args[3]);
+      final int nights = Integer.parseInt(args[4]);
+      final int threads = Integer.parseInt(args[5]);
+      final int attempts = Integer.parseInt(args[6]);
+      boolean cleanup = args.length > 7 && args[7].equals("cleanup");
+      LocalDate endDate = startDate.plusDays(nights - 1);
+
+      // every booker needs a connection to contend properly.
+      if (System.getProperty("hotel.pool.maxSize") == null)
+         System.setProperty("hotel.pool.maxSize", String.valueOf(Math.min(threads, 64)));
+      final Hotel esql = Hotel.connect();
+      boolean ok;
+      final int[] customers = new int[threads];
+      Arrays.fill(customers, -1);
+      try{
+         for (int t = 0; t < threads; t++)
+            customers[t] = UserProvisioning.register(esql, "booking stress " + t, "stress", "customer");
+         int before = countBookings(esql, hotelID, startDate, endDate);
+
+         final AtomicLong booked = new AtomicLong();
+         final AtomicLong conflicts = new AtomicLong();
+         final AtomicLong failures = new AtomicLong();
+         final CountDownLatch start = new CountDownLatch(1);
+         final CountDownLatch done = new CountDownLatch(threads);
+         for (int t = 0; t < threads; t++){
+            final int customerID = customers[t];
+            Thread booker = new Thread(() -> {
+               ThreadLocalRandom random = ThreadLocalRandom.current();
+               try{
+                  start.await();
+                  for (int i = 0; i < attempts; i++){
+                     int room = firstRoom + random.nextInt(rooms);
+                     LocalDate night = startDate.plusDays(random.nextInt(nights));
+                     try{
+                        RoomReservations.Outcome outcome =
+                           esql.reservations().book(esql, customerID, hotelID, room, night);
+                        if (outcome == RoomReservations.Outcome.BOOKED)
+                           booked.incrementAndGet();
+                        else
+                           conflicts.incrementAndGet();
+                     }catch (Exception e){
+                        failures.incrementAndGet();
+                        System.err.println (e.getMessage ());
+                     }
+                  }
+               }catch (InterruptedException e){
+                  Thread.currentThread().interrupt();
+               }finally{
+                  done.countDown();
+               }
+            }, "booker-" + t);
+            booker.start();
+         }
+
+         long t0 = System.nanoTime();
+         start.countDown();
+         done.await();
+         double seconds = (System.nanoTime() - t0) / 1e9;
+
+         int after = countBookings(esql, hotelID, startDate, endDate);
+         int made = 0;
+         for (int customerID : customers)
+            made += esql.executeQuery("SELECT bookingID FROM RoomBookings WHERE customerID = ?", customerID);
+         List<List<String>> doubles = esql.executeQueryAndReturnResult(
+            "SELECT roomNumber, bookingDate, COUNT(*) FROM RoomBookings " +
+            "WHERE hotelID = ? AND bookingDate BETWEEN ? AND ? " +
+            "GROUP BY roomNumber, bookingDate HAVING COUNT(*) > 1",
+            hotelID, Date.valueOf(startDate), Date.valueOf(endDate));
+
+         long total = (long) threads * attempts;
+         System.out.printf("%d threads, %d attempts on %d room-nights in %.2f s (%.0f attempts/s)%n",
+            threads, total, rooms * nights, seconds, total / seconds);
+         System.out.printf("booked=%d conflicts=%d failures=%d%n", booked.get(), conflicts.get(), failures.get());
+         System.out.println (esql.getPoolStats());
+
+         ok = doubles.isEmpty() && after - before == booked.get() && made == booked.get();
+         if (!doubles.isEmpty())
+            System.out.println ("FAILED: double-booked room-nights " + doubles);
+         if (after - before != booked.get() || made != booked.get())
+            System.out.println ("FAILED: " + (after - before) + " new rows, " + made + " by the run's customers, but "
+               + booked.get() + " reported bookings");
+         if (ok)
+            System.out.println ("OK: no double bookings");
+      }finally{
+         try{
+            if (cleanup)
+               removeCustomers(esql, customers);
+            else
+               System.out.println ("Bookings made as customers " + customers[0] + " .. " + customers[threads - 1]);
+         }finally{
+            esql.cleanup();
+         }
+      }
+      if (!ok)
+         System.exit(2);
+   }//end main
+
+   // deletes the run's customers with their bookings and visits; nothing
+   // else was booked by them.
+   private static void removeCustomers(Hotel esql, int[] customers) throws Exception {
+      int deleted = 0;
+      for (int customerID : customers){
+         if (customerID < 0)
+            continue;
+         deleted += esql.executeUpdate("DELETE FROM RoomBookings WHERE customerID = ?", customerID);
+         esql.executeUpdate("DELETE FROM CustomerVisits WHERE customerID = ?", customerID);
+         esql.executeUpdate("DELETE FROM Users WHERE userID = ?", customerID);
+      }
+      System.out.println ("Removed " + customers.length + " customers and " + deleted + " bookings");
+   }//end removeCustomers
+
+   private static int countBookings(Hotel esql, int hotelID, LocalDate from, LocalDate to) throws Exception {
+      return esql.executeQuery(
+         "SELECT bookingID FROM RoomBookings WHERE hotelID = ? AND bookingDate BETWEEN ? AND ?",
+         hotelID, Date.valueOf(from), Date.valueOf(to));
+   }
+}//end BookingStress
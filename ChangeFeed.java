@@ -0,0 +1,290 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tails RoomBookings and RoomUpdatesLog and tells registered caches about
+ * every new booking and room change, whichever process made it, so that
+ * several instances of the application can keep their caches coherent.
+ *
+ * Each table is polled by primary key above its high-water mark, so a poll
+ * that finds nothing costs one index probe.  Room changes are joined with
+ * Rooms and carry the room's current price and image URL.  Keys are handed
+ * out before their transactions commit, so a key skipped over by a poll may
+ * still appear; skipped keys are looked up again on every poll until they
+ * show up or are older than gapWindowMillis.  Deleted bookings are not
+ * seen.
+ *
+ * Events are delivered on the feed's thread, in key order within a table.
+ * Listeners must be quick and must not throw.
+ *
+ */
+
+public class ChangeFeed {
+
+   /**
+    * A new row of RoomBookings.
+    */
+   public static class RoomBooked {
+      public final long bookingID;
+      public final int customerID;
+      public final int hotelID;
+      public final int roomNumber;
+      public final LocalDate date;
+
+      RoomBooked(ResultSet rs) throws SQLException {
+         this.bookingID = rs.getLong(1);
+         this.customerID = rs.getInt(2);
+         this.hotelID = rs.getInt(3);
+         this.roomNumber = rs.getInt(4);
+         this.date = rs.getDate(5).toLocalDate();
+      }
+   }//end RoomBooked
+
+   /**
+    * A new row of RoomUpdatesLog, with the room as it is now.
+    */
+   public static class RoomUpdated {
+      public final long updateNumber;
+      public final int managerID;
+      public final int hotelID;
+      public final int roomNumber;
+      public final LocalDateTime updatedOn;
+      public final int price;
+      public final String imageURL;
+
+      RoomUpdated(ResultSet rs) throws SQLException {
+         this.updateNumber = rs.getLong(1);
+         this.managerID = rs.getInt(2);
+         this.hotelID = rs.getInt(3);
+         this.roomNumber = rs.getInt(4);
+         Timestamp updatedOn = rs.getTimestamp(5);
+         this.updatedOn = updatedOn == null ? null : updatedOn.toLocalDateTime();
+         this.price = rs.getInt(6);
+         String imageURL = rs.getString(7);
+         this.imageURL = imageURL == null ? null : imageURL.trim();
+      }
+   }//end RoomUpdated
+
+   /**
+    * Receives change events; implement the kinds of interest.
+    */
+   public interface Listener {
+      default void roomBooked(RoomBooked event) {
+      }
+
+      default void roomUpdated(RoomUpdated event) {
+      }
+   }
+
+   private static final String BOOKINGS =
+      "SELECT bookingID, customerID, hotelID, roomNumber, bookingDate FROM RoomBookings ";
+   private static final String UPDATES =
+      "SELECT L.updateNumber, L.managerID, L.hotelID, L.roomNumber, L.updatedOn, R.price, R.imageURL " +
+      "FROM RoomUpdatesLog L JOIN Rooms R ON R.hotelID = L.hotelID AND R.roomNumber = L.roomNumber ";
+
+   // skipped keys looked up per query, and kept at most per table.
+   private static final int GAPS_PER_QUERY = 64;
+   private static final int MAX_GAPS = 10000;
+
+   // one tailed table: its high-water mark and the keys skipped below it.
+   private abstract class Tail<E> {
+      final String name;
+      final String maxQuery;
+      final String afterQuery;
+      final String inPrefix;
+      long lastKey = 0;
+      // skipped key -> when (System.nanoTime) it was first skipped; only
+      // touched on the feed's thread.
+      final TreeMap<Long, Long> gaps = new TreeMap<Long, Long>();
+      // written only on the feed's thread, read by getStats().
+      volatile long events = 0;
+      volatile int gapCount = 0;
+
+      Tail(String name, String table, String select, String keyColumn) {
+         this.name = name;
+         this.maxQuery = "SELECT MAX(" + keyColumn.substring(keyColumn.indexOf('.') + 1) + ") FROM " + table;
+         this.afterQuery = select + "WHERE " + keyColumn + " > ? ORDER BY " + keyColumn + " LIMIT ?";
+         this.inPrefix = select + "WHERE " + keyColumn + " IN (";
+      }
+
+      abstract E map(ResultSet rs) throws SQLException;
+      abstract long key(E event);
+      abstract void publish(Listener listener, E event);
+
+      void start() throws SQLException {
+         List<Long> max = _esql.executeQueryAndMap(this.maxQuery, rs -> rs.getLong(1));
+         this.lastKey = max.isEmpty() ? 0 : max.get(0);
+      }
+
+      void poll() throws SQLException {
+         long now = System.nanoTime();
+         try{
+            recheckGaps(now);
+            List<E> batch;
+            do{
+               batch = _esql.executeQueryAndMap(this.afterQuery, this::map, this.lastKey, _batchSize);
+               for (E event : batch){
+                  long key = key(event);
+                  for (long k = this.lastKey + 1; k < key && this.gaps.size() < MAX_GAPS; k++)
+                     this.gaps.put(k, now);
+                  this.lastKey = key;
+                  deliver(event);
+               }
+            }while (batch.size() == _batchSize);
+         }finally{
+            this.gapCount = this.gaps.size();
+         }
+      }//end poll
+
+      private void recheckGaps(long now) throws SQLException {
+         Iterator<Map.Entry<Long, Long>> expired = this.gaps.entrySet().iterator();
+         while (expired.hasNext())
+            if (now - expired.next().getValue() > _gapWindowNanos)
+               expired.remove();
+         List<Long> keys = new ArrayList<Long>(this.gaps.keySet());
+         for (int i = 0; i < keys.size(); i += GAPS_PER_QUERY){
+            List<Object> params = new ArrayList<Object>(keys.subList(i, Math.min(i + GAPS_PER_QUERY, keys.size())));
+            // padded to a power of two, repeating the last key, to keep
+            // the number of distinct statements small.
+            int slots = Integer.highestOneBit(params.size() * 2 - 1);
+            StringBuilder sql = new StringBuilder(this.inPrefix);
+            for (int s = 0; s < slots; s++){
+               sql.append(s == 0 ? "?" : ", ?");
+               if (s >= params.size())
+                  params.add(params.get(params.size() - 1));
+            }
+            sql.append(')');
+            for (E event : _esql.executeQueryAndMap(sql.toString(), this::map, params.toArray())){
+               if (this.gaps.remove(key(event)) != null)
+                  deliver(event);
+            }
+         }
+      }//end recheckGaps
+
+      private void deliver(E event) {
+         // a single writer, so the increment needs no lock.
+         this.events++;
+         for (Listener listener : _listeners)
+            publish(listener, event);
+      }
+   }//end Tail
+
+   private final Hotel _esql;
+   private final int _batchSize;
+   private final long _pollMillis;
+   private final long _gapWindowNanos;
+   private final List<Listener> _listeners = new CopyOnWriteArrayList<Listener>();
+   private ScheduledExecutorService _poller = null;
+   private long _polls = 0;
+   private long _errors = 0;
+   private String _lastError = null;
+
+   private final Tail<RoomBooked> _bookings = new Tail<RoomBooked>("bookings", "RoomBookings", BOOKINGS, "bookingID") {
+      RoomBooked map(ResultSet rs) throws SQLException {
+         return new RoomBooked(rs);
+      }
+      long key(RoomBooked event) {
+         return event.bookingID;
+      }
+      void publish(Listener listener, RoomBooked event) {
+         listener.roomBooked(event);
+      }
+   };
+
+   private final Tail<RoomUpdated> _updates = new Tail<RoomUpdated>("updates", "RoomUpdatesLog", UPDATES, "L.updateNumber") {
+      RoomUpdated map(ResultSet rs) throws SQLException {
+         return new RoomUpdated(rs);
+      }
+      long key(RoomUpdated event) {
+         return event.updateNumber;
+      }
+      void publish(Listener listener, RoomUpdated event) {
+         listener.roomUpdated(event);
+      }
+   };
+
+   /**
+    * @param esql the database
+    * @param pollMillis the delay between polls
+    * @param batchSize rows read per query
+    * @param gapWindowMillis how long a skipped key is looked for
+    */
+   public ChangeFeed(Hotel esql, long pollMillis, int batchSize, long gapWindowMillis) {
+      this._esql = esql;
+      this._pollMillis = pollMillis;
+      this._batchSize = Math.max(batchSize, 1);
+      this._gapWindowNanos = TimeUnit.MILLISECONDS.toNanos(gapWindowMillis);
+   }
+
+   /**
+    * Registers a cache; events from then on are delivered to it.
+    *
+    * @param listener the cache
+    */
+   public void register(Listener listener) {
+      this._listeners.add(listener);
+   }
+
+   /**
+    * Starts tailing from the current end of both tables.
+    *
+    * @throws java.sql.SQLException when the high-water marks can't be read
+    */
+   public synchronized void start() throws SQLException {
+      if (this._poller != null)
+         return;
+      this._bookings.start();
+      this._updates.start();
+      this._poller = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "change-feed");
+         t.setDaemon(true);
+         return t;
+      });
+      this._poller.scheduleWithFixedDelay(this::poll, this._pollMillis, this._pollMillis, TimeUnit.MILLISECONDS);
+   }//end start
+
+   private void poll() {
+      synchronized (this){
+         this._polls++;
+      }
+      for (Tail<?> tail : new Tail<?>[] { this._bookings, this._updates }){
+         try{
+            tail.poll();
+         }catch (SQLException | RuntimeException e){
+            // the high-water mark only moves past delivered rows, so the
+            // next poll picks up where this one failed.
+            synchronized (this){
+               this._errors++;
+               this._lastError = tail.name + ": " + e.getMessage();
+            }
+         }
+      }
+   }//end poll
+
+   /**
+    * @return a one-line summary of the events delivered
+    */
+   public synchronized String getStats() {
+      return String.format("change feed polls=%d bookings=%d updates=%d gaps=%d errors=%d%s",
+         this._polls, this._bookings.events, this._updates.events,
+         this._bookings.gapCount + this._updates.gapCount, this._errors,
+         this._lastError == null ? "" : " (last: " + this._lastError + ")");
+   }
+
+   public synchronized void close() {
+      if (this._poller != null)
+         this._poller.shutdownNow();
+   }
+}//end ChangeFeed
@@ -0,0 +1,433 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded pool of physical database connections.  Connections are opened
+ * lazily up to maxSize, kept warm down to minSize, validated before being
+ * handed out after a period of idleness, and watched for leaks while they
+ * are borrowed.  The pool also keeps wait-time and utilization statistics
+ * so it can be sized against real load.
+ *
+ */
+
+public class ConnectionPool {
+
+   // connections idle for longer than this are validated before reuse.
+   private static final long VALIDATE_AFTER_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+   // seconds the driver is given to answer Connection.isValid.
+   private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+   private final int _minSize;
+   private final int _maxSize;
+   private final long _acquireTimeoutNanos;
+   private final long _leakThresholdNanos;
+   private final boolean _leakStacks;
+   private final int _statementCacheSize;
+
+   private final ReentrantLock _lock = new ReentrantLock();
+   private final Condition _available = _lock.newCondition();
+   private final ArrayDeque<PooledConnection> _idle = new ArrayDeque<PooledConnection>();
+   private final Map<PooledConnection, PooledConnection> _borrowed =
+      new IdentityHashMap<PooledConnection, PooledConnection>();
+   private final ScheduledExecutorService _housekeeper;
+
+   // connections opened or currently being opened.
+   private int _total = 0;
+   private boolean _closed = false;
+
+   // statistics, guarded by _lock.
+   private final long _createdAt = System.nanoTime();
+   private long _acquireCount = 0;
+   private long _waitCount = 0;
+   private long _totalWaitNanos = 0;
+   private long _maxWaitNanos = 0;
+   private long _timeoutCount = 0;
+   private long _leakCount = 0;
+   private long _busyIntegralNanos = 0;
+   private long _lastBusyChange = System.nanoTime();
+   private int _peakBorrowed = 0;
+
+   /**
+    * Creates a new pool and opens minSize connections up front.
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param minSize the number of connections kept open at all times
+    * @param maxSize the upper bound on open connections
+    * @param acquireTimeoutMillis how long acquire() waits for a free connection
+    * @param leakThresholdMillis how long a connection may be borrowed before
+    *        it is reported as leaked, or 0 to disable leak detection
+    * @param leakStacks whether to record the call stack of every acquire,
+    *        to be printed with a leak report; costly, for debugging only
+    * @param statementCacheSize prepared statements cached per connection
+    * @throws java.sql.SQLException when the initial connections can't be opened
+    */
+   public ConnectionPool(String url, String user, String passwd, int minSize, int maxSize,
+                         long acquireTimeoutMillis, long leakThresholdMillis, boolean leakStacks,
+                         int statementCacheSize) throws SQLException {
+      if (minSize < 0 || maxSize < 1 || minSize > maxSize)
+         throw new IllegalArgumentException("Invalid pool size: min=" + minSize + " max=" + maxSize);
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._minSize = minSize;
+      this._maxSize = maxSize;
+      this._acquireTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMillis);
+      this._leakThresholdNanos = TimeUnit.MILLISECONDS.toNanos(leakThresholdMillis);
+      this._leakStacks = leakStacks;
+      this._statementCacheSize = statementCacheSize;
+
+      try{
+         for (int i = 0; i < minSize; i++){
+            this._idle.push(open());
+            this._total++;
+         }
+      }catch (SQLException e){
+         close();
+         throw e;
+      }
+
+      this._housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "connection-pool-housekeeper");
+         t.setDaemon(true);
+         return t;
+      });
+      long period = this._leakThresholdNanos > 0
+         ? Math.max(TimeUnit.NANOSECONDS.toMillis(this._leakThresholdNanos) / 2, 100)
+         : TimeUnit.NANOSECONDS.toMillis(VALIDATE_AFTER_NANOS);
+      this._housekeeper.scheduleWithFixedDelay(this::housekeep, period, period, TimeUnit.MILLISECONDS);
+   }//end ConnectionPool
+
+   private PooledConnection open() throws SQLException {
+      Connection c = DriverManager.getConnection(this._url, this._user, this._passwd);
+      return new PooledConnection(c, this._statementCacheSize);
+   }
+
+   /**
+    * Borrows a connection from the pool, opening a new one if the pool is
+    * below maxSize, otherwise waiting up to the acquisition timeout.  Every
+    * successful call must be paired with release().
+    *
+    * @return a validated connection in auto-commit mode
+    * @throws java.sql.SQLException when no connection became free in time
+    */
+   public PooledConnection acquire() throws SQLException {
+      long start = System.nanoTime();
+      long deadline = start + this._acquireTimeoutNanos;
+      boolean waited = false;
+      while (true){
+         PooledConnection pc = null;
+         boolean mayOpen = false;
+         this._lock.lock();
+         try{
+            while (true){
+               if (this._closed)
+                  throw new SQLException("Connection pool is closed");
+               pc = this._idle.poll();
+               if (pc != null)
+                  break;
+               if (this._total < this._maxSize){
+                  this._total++;
+                  mayOpen = true;
+                  break;
+               }
+               long remaining = deadline - System.nanoTime();
+               if (remaining <= 0){
+                  this._timeoutCount++;
+                  throw new SQLException("Timed out after "
+                     + TimeUnit.NANOSECONDS.toMillis(this._acquireTimeoutNanos)
+                     + " ms waiting for a database connection (" + this._maxSize + " in use)");
+               }
+               waited = true;
+               try{
+                  this._available.awaitNanos(remaining);
+               }catch (InterruptedException e){
+                  Thread.currentThread().interrupt();
+                  throw new SQLException("Interrupted while waiting for a database connection", e);
+               }
+            }
+         }finally{
+            this._lock.unlock();
+         }
+
+         if (mayOpen){
+            try{
+               pc = open();
+            }catch (SQLException e){
+               discard();
+               throw e;
+            }
+         }else if (System.nanoTime() - pc.lastReleased > VALIDATE_AFTER_NANOS && !isHealthy(pc)){
+            closeQuietly(pc);
+            discard();
+            continue;
+         }
+         checkedOut(pc, start, waited);
+         return pc;
+      }
+   }//end acquire
+
+   /**
+    * Returns a borrowed connection to the pool.  Connections left in a
+    * transaction are rolled back; broken connections are discarded.
+    *
+    * @param pc the connection obtained from acquire()
+    */
+   public void release(PooledConnection pc) {
+      if (pc == null)
+         return;
+      boolean healthy = true;
+      try{
+         Connection c = pc.connection();
+         if (c.isClosed()){
+            healthy = false;
+         }else if (!c.getAutoCommit()){
+            c.rollback();
+            c.setAutoCommit(true);
+         }
+      }catch (SQLException e){
+         healthy = false;
+      }
+
+      this._lock.lock();
+      try{
+         if (!this._borrowed.containsKey(pc))
+            return;
+         accountBusy();
+         this._borrowed.remove(pc);
+         pc.borrower = null;
+         pc.borrowSite = null;
+         pc.leakReported = false;
+         if (healthy && !this._closed){
+            pc.lastReleased = System.nanoTime();
+            this._idle.push(pc);
+            this._available.signal();
+            return;
+         }
+         this._total--;
+         this._available.signal();
+      }finally{
+         this._lock.unlock();
+      }
+      closeQuietly(pc);
+   }//end release
+
+   private void checkedOut(PooledConnection pc, long start, boolean waited) {
+      long waitNanos = System.nanoTime() - start;
+      this._lock.lock();
+      try{
+         accountBusy();
+         pc.borrowedAt = System.nanoTime();
+         if (this._leakThresholdNanos > 0){
+            pc.borrower = Thread.currentThread().getName();
+            if (this._leakStacks)
+               pc.borrowSite = new Throwable("Connection acquired here");
+         }
+         this._borrowed.put(pc, pc);
+         this._peakBorrowed = Math.max(this._peakBorrowed, this._borrowed.size());
+         this._acquireCount++;
+         if (waited)
+            this._waitCount++;
+         this._totalWaitNanos += waitNanos;
+         this._maxWaitNanos = Math.max(this._maxWaitNanos, waitNanos);
+      }finally{
+         this._lock.unlock();
+      }
+   }
+
+   // forgets a slot whose connection was never opened or has been closed.
+   private void discard() {
+      this._lock.lock();
+      try{
+         this._total--;
+         this._available.signal();
+      }finally{
+         this._lock.unlock();
+      }
+   }
+
+   // must be called with _lock held, before the borrowed count changes.
+   private void accountBusy() {
+      long now = System.nanoTime();
+      this._busyIntegralNanos += (now - this._lastBusyChange) * this._borrowed.size();
+      this._lastBusyChange = now;
+   }
+
+   private boolean isHealthy(PooledConnection pc) {
+      try{
+         return pc.connection().isValid(VALIDATION_TIMEOUT_SECONDS);
+      }catch (SQLException e){
+         return false;
+      }
+   }
+
+   private static void closeQuietly(PooledConnection pc) {
+      pc.statements().clear();
+      try{
+         pc.connection().close();
+      }catch (SQLException e){
+         // ignored.
+      }
+   }
+
+   /*
+    * Periodic maintenance: reports connections borrowed for longer than the
+    * leak threshold and tops the pool back up to minSize.
+    */
+   private void housekeep() {
+      List<PooledConnection> leaks = new ArrayList<PooledConnection>();
+      int missing;
+      this._lock.lock();
+      try{
+         if (this._closed)
+            return;
+         if (this._leakThresholdNanos > 0){
+            long now = System.nanoTime();
+            for (PooledConnection pc : this._borrowed.keySet()){
+               if (!pc.leakReported && now - pc.borrowedAt > this._leakThresholdNanos){
+                  pc.leakReported = true;
+                  this._leakCount++;
+                  leaks.add(pc);
+               }
+            }
+         }
+         missing = this._minSize - this._total;
+         if (missing > 0)
+            this._total += missing;
+      }finally{
+         this._lock.unlock();
+      }
+
+      for (PooledConnection pc : leaks){
+         Throwable site = pc.borrowSite;
+         System.err.println("Warning - possible connection leak: connection borrowed by "
+            + pc.borrower + " for "
+            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - pc.borrowedAt) + " ms"
+            + (site == null ? " (run with -Dhotel.pool.leakStacks=true to see where)" : ""));
+         if (site != null)
+            site.printStackTrace();
+      }
+
+      for (int i = 0; i < missing; i++){
+         try{
+            PooledConnection pc = open();
+            this._lock.lock();
+            try{
+               this._idle.addLast(pc);
+               this._available.signal();
+            }finally{
+               this._lock.unlock();
+            }
+         }catch (SQLException e){
+            discard();
+         }
+      }
+   }//end housekeep
+
+   /**
+    * @return the number of connections currently borrowed
+    */
+   public int getActiveCount() {
+      this._lock.lock();
+      try{
+         return this._borrowed.size();
+      }finally{
+         this._lock.unlock();
+      }
+   }
+
+   /**
+    * @return the number of open connections waiting in the pool
+    */
+   public int getIdleCount() {
+      this._lock.lock();
+      try{
+         return this._idle.size();
+      }finally{
+         this._lock.unlock();
+      }
+   }
+
+   /**
+    * @return the mean time acquire() spent waiting, in milliseconds
+    */
+   public double getAverageWaitMillis() {
+      this._lock.lock();
+      try{
+         return this._acquireCount == 0 ? 0.0 : this._totalWaitNanos / 1e6 / this._acquireCount;
+      }finally{
+         this._lock.unlock();
+      }
+   }
+
+   /**
+    * @return the average fraction of maxSize that has been borrowed since
+    *         the pool was created, between 0 and 1
+    */
+   public double getUtilization() {
+      this._lock.lock();
+      try{
+         accountBusy();
+         long elapsed = System.nanoTime() - this._createdAt;
+         return elapsed <= 0 ? 0.0 : (double) this._busyIntegralNanos / elapsed / this._maxSize;
+      }finally{
+         this._lock.unlock();
+      }
+   }
+
+   /**
+    * @return a one-line summary of the pool statistics
+    */
+   public String getStats() {
+      double utilization = getUtilization();
+      this._lock.lock();
+      try{
+         return String.format(
+            "pool size=%d/%d active=%d idle=%d peak=%d acquires=%d waited=%d avgWait=%.3fms maxWait=%.3fms timeouts=%d leaks=%d utilization=%.1f%%",
+            this._total, this._maxSize, this._borrowed.size(), this._idle.size(), this._peakBorrowed,
+            this._acquireCount, this._waitCount,
+            this._acquireCount == 0 ? 0.0 : this._totalWaitNanos / 1e6 / this._acquireCount,
+            this._maxWaitNanos / 1e6, this._timeoutCount, this._leakCount, utilization * 100);
+      }finally{
+         this._lock.unlock();
+      }
+   }
+
+   /**
+    * Closes every idle connection and stops handing out new ones.
+    * Borrowed connections are closed as they are released.
+    */
+   public void close() {
+      List<PooledConnection> toClose;
+      this._lock.lock();
+      try{
+         this._closed = true;
+         toClose = new ArrayList<PooledConnection>(this._idle);
+         this._total -= this._idle.size();
+         this._idle.clear();
+         this._available.signalAll();
+      }finally{
+         this._lock.unlock();
+      }
+      if (this._housekeeper != null)
+         this._housekeeper.shutdownNow();
+      for (PooledConnection pc : toClose)
+         closeQuietly(pc);
+   }//end close
+}//end ConnectionPool
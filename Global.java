@@ -1,3 +1,4 @@
 public class Global{
-	public static String userID;
+	// the console user's session; server mode gives every client its own.
+	public static final Session session = new Session();
 }
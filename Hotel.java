@@ -7,13 +7,22 @@ import java.sql.Types;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Date;
+import java.time.LocalDate;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.Writer;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.mysql.cj.jdbc.CallableStatement;
 
@@ -27,8 +36,54 @@ import java.lang.Math;
 
 public class Hotel {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // pool of physical database connections shared by every operation.
+   private ConnectionPool _pool = null;
+
+   // sends read-only operations to the replicas, if any are configured.
+   private ReplicaRouter _router = null;
+
+   // streaming renderer and fetch size used by executeQueryAndPrintResult.
+   private final ResultPrinter _printer = new ResultPrinter(
+      Integer.getInteger("hotel.print.sampleRows", ResultPrinter.DEFAULT_SAMPLE_ROWS));
+   private final int _fetchSize = Integer.getInteger("hotel.print.fetchSize", 500);
+
+   // radius of the "hotels near me" search, and the in-memory index that
+   // answers it; loaded from the Hotel table on first use.
+   static final double NEARBY_RADIUS = 30;
+   private volatile SpatialIndex _hotelIndex = null;
+
+   // per-hotel, per-date room availability used by viewRooms and bookRooms.
+   private final AvailabilityCache _availability = new AvailabilityCache(
+      Integer.getInteger("hotel.availability.maxHotels", 1000),
+      Integer.getInteger("hotel.availability.maxDatesPerHotel", 62),
+      Integer.getInteger("hotel.availability.windowDays", 365));
+
+   // bumped whenever this process changes Hotel.managerUserID so that
+   // sessions reload their cached set of managed hotels at once; other
+   // changes are seen when the set expires (see Session).
+   private final AtomicLong _managerEpoch = new AtomicLong();
+
+   // per-operation statement latencies, the slow-query log, and their
+   // JMX MBeans.
+   private final QueryStats _stats = new QueryStats(
+      Long.getLong("hotel.slowQueryMs", 500L),
+      System.getProperty("hotel.slowQueryLog", "slow-queries.log"));
+
+   // tails bookings and room changes made by other processes and passes
+   // them on to the caches; started by startChangeFeed().
+   private final ChangeFeed _feed = new ChangeFeed(this,
+      Long.getLong("hotel.feed.pollMs", 1000L),
+      Integer.getInteger("hotel.feed.batchSize", 5000),
+      Long.getLong("hotel.feed.gapWindowMs", 10000L));
+
+   // assigns repair requests to the least-loaded maintenance company;
+   // started on first use.
+   private RepairDispatcher _repairs = null;
+
+   // atomic booking path with short holds while a customer confirms.
+   private final RoomReservations _reservations = new RoomReservations(
+      Long.getLong("hotel.booking.holdMs", 120000L),
+      Integer.getInteger("hotel.booking.maxAttempts", 3));
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
@@ -49,11 +104,28 @@ public class Hotel {
       System.out.print("Connecting to database...");
       try{
          // constructs the connection URL
-         String url = "jdbc:mysql://localhost:" + dbport + "/" + dbname;
+         // useServerPrepStmts makes MySQL parse and plan each cached
+         // prepared statement once instead of on every call; useCursorFetch
+         // lets statements with a fetch size stream their rows.  Bulk
+         // loaders may set -Dhotel.db.rewriteBatches so that a JDBC insert
+         // batch is sent as one multi-row INSERT; a batch then fails or
+         // succeeds as a whole and reports no per-row update counts.
+         String url = "jdbc:mysql://localhost:" + dbport + "/" + dbname
+            + "?useServerPrepStmts=true&useCursorFetch=true"
+            + (Boolean.getBoolean("hotel.db.rewriteBatches") ? "&rewriteBatchedStatements=true" : "");
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // open the connection pool; sizes and timeouts can be tuned
+         // with -Dhotel.pool.* system properties.
+         this._pool = new ConnectionPool(url, user, passwd,
+            Integer.getInteger("hotel.pool.minSize", 2),
+            Integer.getInteger("hotel.pool.maxSize", 16),
+            Long.getLong("hotel.pool.acquireTimeoutMs", 5000L),
+            Long.getLong("hotel.pool.leakThresholdMs", 60000L),
+            Boolean.getBoolean("hotel.pool.leakStacks"),
+            Integer.getInteger("hotel.statementCacheSize", 64));
+         this._router = openReplicas(dbname, user, passwd);
+         this._stats.registerMBeans();
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -62,28 +134,200 @@ public class Hotel {
       }//end catch
    }//end Hotel
 
+   /*
+    * Opens a pool per replica listed in -Dhotel.replicas=host:port,...;
+    * they start empty so that a replica that is down doesn't stop the
+    * primary from being used.
+    */
+   private ReplicaRouter openReplicas(String dbname, String user, String passwd) throws SQLException {
+      List<ConnectionPool> pools = new ArrayList<ConnectionPool>();
+      List<String> endpoints = new ArrayList<String>();
+      String replicas = System.getProperty("hotel.replicas", "").trim();
+      for (String endpoint : replicas.isEmpty() ? new String[0] : replicas.split(",")){
+         endpoints.add(endpoint.trim());
+         pools.add(new ConnectionPool("jdbc:mysql://" + endpoint.trim() + "/" + dbname
+               + "?useServerPrepStmts=true&useCursorFetch=true", user, passwd,
+            0,
+            Integer.getInteger("hotel.pool.maxSize", 16),
+            Long.getLong("hotel.pool.acquireTimeoutMs", 5000L),
+            Long.getLong("hotel.pool.leakThresholdMs", 60000L),
+            Boolean.getBoolean("hotel.pool.leakStacks"),
+            Integer.getInteger("hotel.statementCacheSize", 64)));
+      }
+      if (!endpoints.isEmpty())
+         System.out.println ("Read replicas: " + endpoints);
+      return new ReplicaRouter(this._pool, pools, endpoints,
+         Long.getLong("hotel.replica.maxLagSeconds", 2L),
+         Long.getLong("hotel.replica.lagCheckMs", 1000L));
+   }//end openReplicas
+
    // Method to calculate euclidean distance between two latitude, longitude pairs. 
    public double calculateDistance (double lat1, double long1, double lat2, double long2){
       double t1 = (lat1 - lat2) * (lat1 - lat2);
       double t2 = (long1 - long2) * (long1 - long2);
       return Math.sqrt(t1 + t2); 
    }
+   /**
+    * Returns the spatial index of hotel locations, loading it from the
+    * Hotel table the first time it is needed.  Callers that change a
+    * hotel's location should call hotelIndex().refresh(esql, hotelID).
+    *
+    * @return the shared hotel index
+    * @throws java.sql.SQLException when the hotels can't be read
+    */
+   public SpatialIndex hotelIndex() throws SQLException {
+      SpatialIndex index = this._hotelIndex;
+      if (index == null){
+         synchronized (this){
+            index = this._hotelIndex;
+            if (index == null){
+               index = SpatialIndex.load(this, NEARBY_RADIUS);
+               this._hotelIndex = index;
+            }
+         }
+      }
+      return index;
+   }//end hotelIndex
+
+   /**
+    * @return the room availability cache shared by all sessions
+    */
+   public AvailabilityCache availability() {
+      return this._availability;
+   }
+
+   /**
+    * @return the current manager-assignment epoch
+    */
+   public long managerEpoch() {
+      return this._managerEpoch.get();
+   }
+
+   /**
+    * Invalidates every session's cached set of managed hotels.  Called
+    * after Hotel.managerUserID changes.
+    */
+   public void managersChanged() {
+      this._managerEpoch.incrementAndGet();
+   }
+
+   /**
+    * Hands a hotel over to a new manager.
+    *
+    * @param hotelID the hotel
+    * @param managerUserID the new manager
+    * @throws java.sql.SQLException when the update fails
+    */
+   public void assignManager(int hotelID, int managerUserID) throws SQLException {
+      executeUpdate("UPDATE Hotel SET managerUserID = ? WHERE hotelID = ?", managerUserID, hotelID);
+      managersChanged();
+   }
+
+   /**
+    * @return the statement statistics shared by all sessions
+    */
+   public QueryStats queryStats() {
+      return this._stats;
+   }
+
+   /**
+    * @return the booking path shared by all sessions
+    */
+   public RoomReservations reservations() {
+      return this._reservations;
+   }
+
+   /**
+    * @return the repair dispatcher, started on the first call
+    */
+   public synchronized RepairDispatcher repairDispatcher() {
+      if (this._repairs == null)
+         this._repairs = new RepairDispatcher(this,
+            Long.getLong("hotel.repairs.tickMs", 500L),
+            Integer.getInteger("hotel.repairs.maxBatch", 500));
+      return this._repairs;
+   }
+
+   /**
+    * @return the change feed, for registering more caches
+    */
+   public ChangeFeed changeFeed() {
+      return this._feed;
+   }
+
+   /**
+    * Keeps the availability cache coherent with bookings and room changes
+    * made by other processes.  Interactive sessions and the server call
+    * this; one-shot tools don't need it.
+    *
+    * @throws java.sql.SQLException when the feed can't be started
+    */
+   public void startChangeFeed() throws SQLException {
+      this._feed.register(this._availability);
+      this._feed.start();
+   }
+
+   /**
+    * Opens a Hotel with the connection settings given as the system
+    * properties hotel.db.name, hotel.db.port, hotel.db.user and
+    * hotel.db.password, falling back to the console defaults.
+    *
+    * @return the connected Hotel
+    * @throws java.lang.Exception when the driver can't be loaded
+    */
+   public static Hotel connect() throws Exception {
+      Class.forName("com.mysql.cj.jdbc.Driver");
+      return new Hotel (System.getProperty("hotel.db.name", "hotelmanagement"),
+                        System.getProperty("hotel.db.port", "3306"),
+                        System.getProperty("hotel.db.user", "root"),
+                        System.getProperty("hotel.db.password", "pass@word1"));
+   }//end connect
+
+   /**
+    * Prints rows that are already in memory in the same layout as
+    * executeQueryAndPrintResult.
+    *
+    * @param header the column names
+    * @param rows the values of each row
+    * @return the number of rows printed
+    */
+   public int printRows(String[] header, List<String[]> rows) {
+      return this._printer.print(header, rows);
+   }
+
+   /**
+    * Binds the parameters of a cached prepared statement.  Parameters are
+    * bound positionally, so the i-th value fills the i-th '?' in the SQL.
+    */
+   private static PreparedStatement bind (PooledConnection pc, String sql, Object... params) throws SQLException {
+      PreparedStatement stmt = pc.statements().prepare(sql);
+      for (int i = 0; i < params.length; i++)
+         stmt.setObject(i + 1, params[i]);
+      return stmt;
+   }//end bind
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
-    * @param sql the input SQL string
+    * @param sql the input SQL string, with '?' placeholders for the parameters
+    * @param params the values bound to the placeholders
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
-
-      // close the instruction
-      stmt.close ();
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      ConnectionPool pool = this._router.forWrite();
+      PooledConnection pc = pool.acquire();
+      long start = System.nanoTime();
+      int rows = -1;
+      try{
+         // issues the update instruction on the cached statement
+         rows = bind(pc, sql, params).executeUpdate ();
+         return rows;
+      }finally{
+         this._stats.record(sql, params, System.nanoTime() - start, rows, 0, rows < 0);
+         pool.release(pc);
+      }
    }//end executeUpdate
 
    /**
@@ -91,118 +335,218 @@ public class Hotel {
     * method issues the query to the DBMS and outputs the results to
     * standard out.
     *
-    * @param query the input query string
+    * @param query the input query string, with '?' placeholders for the parameters
+    * @param params the values bound to the placeholders
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult(String query) throws SQLException {
-      Statement stmt = this._connection.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-      ResultSet rs = stmt.executeQuery(query);
-      ResultSetMetaData rsmd = rs.getMetaData();
-      int numCol = rsmd.getColumnCount();
-      int rowCount = 0;
-  
-      int[] colWidths = new int[numCol];
-      for (int i = 1; i <= numCol; i++) {
-          colWidths[i-1] = rsmd.getColumnName(i).length();
-      }
-  
-      while (rs.next()) {
-          for (int i = 1; i <= numCol; i++) {
-              String colValue = rs.getString(i);
-              int colWidth = colValue.length();
-              if (colWidth > colWidths[i-1]) {
-                  colWidths[i-1] = colWidth;
-              }
-          }
-          rowCount++;
-      }
-  
-      // print the column headers
-      for (int i = 1; i <= numCol; i++) {
-          String colName = rsmd.getColumnName(i);
-          System.out.printf("%-" + colWidths[i-1] + "s  ", colName);
+   public int executeQueryAndPrintResult(String query, Object... params) throws SQLException {
+      ConnectionPool pool = this._router.forRead();
+      PooledConnection pc = pool.acquire();
+      long start = System.nanoTime();
+      int rows = -1;
+      QueryStats.Meter meter = new QueryStats.Meter();
+      try{
+         rows = printResult(bind(pc, query, params), meter);
+         return rows;
+      }finally{
+         this._stats.record(query, params, System.nanoTime() - start, rows, meter.bytes(), rows < 0);
+         pool.release(pc);
       }
-      System.out.println();
-  
-      // print the data
-      rs.beforeFirst();
-      while (rs.next()) {
-          for (int i = 1; i <= numCol; i++) {
-              String colValue = rs.getString(i);
-              System.out.printf("%-" + colWidths[i-1] + "s  ", colValue);
-          }
-          System.out.println();
+   }
+
+   private int printResult(PreparedStatement stmt, QueryStats.Meter meter) throws SQLException {
+      // a positive fetch size with useCursorFetch streams the rows from the
+      // server in chunks instead of buffering the whole result in the driver.
+      stmt.setFetchSize(this._fetchSize);
+      try (ResultSet rs = stmt.executeQuery()){
+         return this._printer.print(rs, meter);
+      }finally{
+         stmt.setFetchSize(0);
       }
-  
-      stmt.close();
-      return rowCount;
    }
-  
-  
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the results as
     * a list of records. Each record in turn is a list of attribute values
     *
-    * @param query the input query string
+    * @param query the input query string, with '?' placeholders for the parameters
+    * @param params the values bound to the placeholders
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement (ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      ConnectionPool pool = this._router.forRead();
+      PooledConnection pc = pool.acquire();
+      long start = System.nanoTime();
+      long rows = -1, bytes = 0;
       // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-        List<String> record = new ArrayList<String>();
-		for (int i=1; i<=numCol; ++i)
-			record.add(rs.getString (i));
-        result.add(record);
-      }//end while
-      stmt.close ();
-      return result;
+      try (ResultSet rs = bind(pc, query, params).executeQuery ()){
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+
+         // iterates through the result set and saves the data returned by the query.
+         List<List<String>> result  = new ArrayList<List<String>>();
+         while (rs.next()){
+           List<String> record = new ArrayList<String>();
+           for (int i=1; i<=numCol; ++i){
+              String value = rs.getString (i);
+              if (value != null)
+                 bytes += QueryStats.utf8Length(value);
+              record.add(value);
+           }
+           result.add(record);
+         }//end while
+         rows = result.size();
+         return result;
+      }finally{
+         this._stats.record(query, params, System.nanoTime() - start, rows, bytes, rows < 0);
+         pool.release(pc);
+      }
    }//end executeQueryAndReturnResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
     *
-    * @param query the input query string
+    * @param query the input query string, with '?' placeholders for the parameters
+    * @param params the values bound to the placeholders
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement (ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-
+   public int executeQuery (String query, Object... params) throws SQLException {
+       ConnectionPool pool = this._router.forRead();
+       PooledConnection pc = pool.acquire();
+       long start = System.nanoTime();
+       int rowCount = -1;
        // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+       try (ResultSet rs = bind(pc, query, params).executeQuery ()){
+          rowCount = 0;
 
-       int rowCount = 0;
+          // iterates through the result set and count nuber of results.
+          while (rs.next()){
+             rowCount++;
+          }//end while
+          return rowCount;
+       }catch (SQLException e){
+          rowCount = -1;
+          throw e;
+       }finally{
+          this._stats.record(query, params, System.nanoTime() - start, rowCount, 0, rowCount < 0);
+          pool.release(pc);
+       }
+   }
+
+   /**
+    * Callback that consumes a live result set.
+    */
+   public interface ResultHandler<T> {
+      T handle(ResultSet rs) throws SQLException;
+   }
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and
+    * hand the open result set to a callback, so callers can read typed
+    * values or stream rows without building a List first.
+    *
+    * @param query the input query string, with '?' placeholders for the parameters
+    * @param handler reads the result set; it must not keep it after returning
+    * @param params the values bound to the placeholders
+    * @return whatever the handler returns
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> T executeQueryAndHandle (String query, ResultHandler<T> handler, Object... params) throws SQLException {
+      ConnectionPool pool = this._router.forRead();
+      PooledConnection pc = pool.acquire();
+      long start = System.nanoTime();
+      boolean failed = true;
+      try (ResultSet rs = bind(pc, query, params).executeQuery ()){
+         T result = handler.handle(rs);
+         failed = false;
+         return result;
+      }finally{
+         // the handler reads the rows, so neither they nor their bytes are counted.
+         this._stats.record(query, params, System.nanoTime() - start, -1, 0, failed);
+         pool.release(pc);
+      }
+   }//end executeQueryAndHandle
 
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+   /**
+    * Maps the current row of a result set to one value.
+    */
+   public interface RowMapper<T> {
+      T map(ResultSet rs) throws SQLException;
    }
 
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and
+    * map each row to a typed value with the column getters, instead of
+    * converting every column to a String.
+    *
+    * @param query the input query string, with '?' placeholders for the parameters
+    * @param mapper builds one value from the current row
+    * @param params the values bound to the placeholders
+    * @return one value per row, in order
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> List<T> executeQueryAndMap (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+      ConnectionPool pool = this._router.forRead();
+      PooledConnection pc = pool.acquire();
+      long start = System.nanoTime();
+      long rows = -1;
+      try (ResultSet rs = bind(pc, query, params).executeQuery ()){
+         List<T> result = new ArrayList<T>();
+         while (rs.next())
+            result.add(mapper.map(rs));
+         rows = result.size();
+         return result;
+      }finally{
+         // the mapper reads the columns, so their bytes are not counted.
+         this._stats.record(query, params, System.nanoTime() - start, rows, 0, rows < 0);
+         pool.release(pc);
+      }
+   }//end executeQueryAndMap
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and
+    * return the result column by column in primitive arrays, for bulk
+    * reads.  See ResultColumns.
+    *
+    * @param query the input query string, with '?' placeholders for the parameters
+    * @param params the values bound to the placeholders
+    * @return the query result
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public ResultColumns executeQueryForColumns (String query, Object... params) throws SQLException {
+      ConnectionPool pool = this._router.forRead();
+      PooledConnection pc = pool.acquire();
+      long start = System.nanoTime();
+      long rows = -1, bytes = 0;
+      PreparedStatement stmt = null;
+      try{
+         stmt = bind(pc, query, params);
+         // stream from the server so the driver doesn't hold a second copy
+         // of the rows while they are copied into the arrays.
+         stmt.setFetchSize(this._fetchSize);
+         try (ResultSet rs = stmt.executeQuery ()){
+            ResultColumns result = ResultColumns.read(rs);
+            rows = result.size();
+            bytes = result.bytes();
+            return result;
+         }
+      }finally{
+         if (stmt != null)
+            stmt.setFetchSize(0);
+         this._stats.record(query, params, System.nanoTime() - start, rows, bytes, rows < 0);
+         pool.release(pc);
+      }
+   }//end executeQueryForColumns
+
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
@@ -213,33 +557,104 @@ public class Hotel {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-//      Statement stmt = this._connection.createStatement ();
-	   Statement stmt = this._connection.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+      return getNewUserID("SELECT currval(?)", sequence);
+   }
 
-	    ResultSet rs = stmt.executeQuery(String.format("SELECT currval('%s')", sequence));
-	    if (rs.next())
-	        return rs.getInt(1);
-	    return -1;
-	}
+   public int getNewUserID(String sql, Object... params) throws SQLException {
+      ConnectionPool pool = this._router.forRead();
+      PooledConnection pc = pool.acquire();
+      long start = System.nanoTime();
+      int rows = -1;
+      try (ResultSet rs = bind(pc, sql, params).executeQuery ()){
+         rows = rs.next() ? 1 : 0;
+         return rows == 1 ? rs.getInt(1) : -1;
+      }finally{
+         // one INT column.
+         this._stats.record(sql, params, System.nanoTime() - start, rows, rows == 1 ? 4 : 0, rows < 0);
+         pool.release(pc);
+      }
+   }
 
-   public int getNewUserID(String sql) throws SQLException {
-      Statement stmt = this._connection.createStatement (ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-      ResultSet rs = stmt.executeQuery (sql);
-      if (rs.next())
-         return rs.getInt(1);
-      return -1;
+   /**
+    * A unit of work run by inTransaction on a single connection.
+    */
+   public interface Transaction<T> {
+      T run(PooledConnection pc) throws SQLException;
    }
+
    /**
-    * Method to close the physical connection if it is open.
+    * Runs a unit of work inside one database transaction.  The work is
+    * committed if it returns normally and rolled back if it throws.  Use
+    * pc.statements().prepare(sql) inside the work to reuse cached statements.
+    *
+    * @param work the statements to run
+    * @return whatever the work returns
+    * @throws java.sql.SQLException when the work or the commit fails
     */
-   public void cleanup(){
+   public <T> T inTransaction(Transaction<T> work) throws SQLException {
+      ConnectionPool pool = this._router.forWrite();
+      PooledConnection pc = pool.acquire();
+      Connection conn = pc.connection();
+      long start = System.nanoTime();
+      boolean failed = true;
+      // a slow transaction is logged with the statements it ran.
+      pc.statements().startJournal();
       try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
+         conn.setAutoCommit(false);
+         T result = work.run(pc);
+         conn.commit();
+         failed = false;
+         return result;
+      }catch (SQLException | RuntimeException e){
+         try{
+            conn.rollback();
+         }catch (SQLException suppressed){
+            e.addSuppressed(suppressed);
+         }
+         throw e;
+      }finally{
+         try{
+            conn.setAutoCommit(true);
+         }catch (SQLException e){
+            // ignored; the pool discards connections it can't reset.
+         }
+         this._stats.recordTransaction(pc.statements().endJournal(), System.nanoTime() - start, failed);
+         pool.release(pc);
+      }
+   }//end inTransaction
+
+   /**
+    * @return the connection pool statistics (wait time, utilization, ...)
+    */
+   public String getPoolStats(){
+      return this._pool.getStats();
+   }
+
+   /**
+    * Method to close the pooled physical connections if they are open.
+    */
+   public void cleanup(){
+      if (this._pool != null){
+         System.out.println(this._pool.getStats());
+         for (ConnectionPool replica : this._router.replicaPools())
+            System.out.println(replica.getStats());
+         System.out.println(this._router.getStats());
+         System.out.println(this._availability.getStats());
+         System.out.println(this._feed.getStats());
+         RepairDispatcher repairs;
+         synchronized (this){
+            repairs = this._repairs;
+         }
+         if (repairs != null){
+            repairs.close();
+            System.out.println(repairs.getStats());
+         }
+         System.out.println(this._stats.getReport());
+         this._feed.close();
+         this._stats.close();
+         this._router.close();
+         this._pool.close ();
+      }//end if
    }//end cleanup
 
    /**
@@ -258,16 +673,9 @@ public class Hotel {
       Greeting();
       Hotel esql = null;
       try{
-         // use postgres JDBC driver.
-    	  System.out.println("fqwref");
-         Class.forName("com.mysql.cj.jdbc.Driver");
-         // instantiate the Hotel object and creates a physical
-         //userID/ connection.
-         System.out.println("loaded");
-         String dbname = "hotelmanagement";//args[0];
-         String dbport = "3306";//args[1];
-         String user = "root";//args[2];
-         esql = new Hotel (dbname, dbport, user, "pass@word1");
+         // instantiate the Hotel object and open the connection pool.
+         esql = connect();
+         esql.startChangeFeed();
 
          boolean keepon = true;
          while(keepon) {
@@ -278,12 +686,20 @@ public class Hotel {
             System.out.println("2. Log in");
             System.out.println("9. < EXIT");
             String  authorisedUser = null;
-            switch (readChoice()){
-               case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
-               case 9: keepon = false; break;
-               default : System.out.println("Unrecognized choice!"); break;
-            }//end switch
+            int choice = readChoice();
+            if (choice == 1 || choice == 2)
+               LoadGenerator.record(choice == 1 ? "CreateUser" : "LogIn");
+            QueryStats.Scope login = QueryStats.operation(choice == 1 ? "CreateUser" : "LogIn");
+            try{
+               switch (choice){
+                  case 1: CreateUser(esql); break;
+                  case 2: authorisedUser = LogIn(esql); break;
+                  case 9: keepon = false; break;
+                  default : System.out.println("Unrecognized choice!"); break;
+               }//end switch
+            }finally{
+               login.close();
+            }
             if (authorisedUser != null) {
               boolean usermenu = true;
               while(usermenu) {
@@ -301,22 +717,39 @@ public class Hotel {
                 System.out.println("8. View 5 regular Customers");
                 System.out.println("9. Place room repair Request to a company");
                 System.out.println("10. View room repair Requests history");
+                System.out.println("11. Book a multi-night stay");
+                System.out.println("12. Search free rooms near me");
+                System.out.println("13. View occupancy and revenue of a hotel");
 
                 System.out.println(".........................");
                 System.out.println("20. Log out");
-                switch (readChoice()){
-                   case 1: viewHotels(esql); break;
-                   case 2: viewRooms(esql); break;
-                   case 3: bookRooms(esql); break;
-                   case 4: viewRecentBookingsfromCustomer(esql); break;
-                   case 5: updateRoomInfo(esql); break;
-                   case 6: viewRecentUpdates(esql); break;
-                   case 7: viewBookingHistoryofHotel(esql); break;
-                   case 8: viewRegularCustomers(esql); break;
-                   case 9: placeRoomRepairRequests(esql); break;
-                   case 10: viewRoomRepairHistory(esql); break;
-                   case 20: usermenu = false; break;
-                   default : System.out.println("Unrecognized choice!"); break;
+                choice = readChoice();
+                LoadGenerator.record(menuOperation(choice));
+                // statements are timed per menu operation, see QueryStats;
+                // the read-only ones may run on a replica, see ReplicaRouter.
+                QueryStats.Scope op = QueryStats.operation(menuOperation(choice));
+                ReplicaRouter.Scope route = readOnlyChoice(choice) ? ReplicaRouter.readOnly() : ReplicaRouter.primary();
+                try{
+                   switch (choice){
+                      case 1: viewHotels(esql); break;
+                      case 2: viewRooms(esql); break;
+                      case 3: bookRooms(esql); break;
+                      case 4: viewRecentBookingsfromCustomer(esql); break;
+                      case 5: updateRoomInfo(esql); break;
+                      case 6: viewRecentUpdates(esql); break;
+                      case 7: viewBookingHistoryofHotel(esql); break;
+                      case 8: viewRegularCustomers(esql); break;
+                      case 9: placeRoomRepairRequests(esql); break;
+                      case 10: viewRoomRepairHistory(esql); break;
+                      case 11: bookStay(esql); break;
+                      case 12: searchRooms(esql); break;
+                      case 13: viewOccupancy(esql); break;
+                      case 20: usermenu = false; Global.session.logOut(); break;
+                      default : System.out.println("Unrecognized choice!"); break;
+                   }
+                }finally{
+                   route.close();
+                   op.close();
                 }
               }
             }
@@ -337,6 +770,36 @@ public class Hotel {
       }//end try
    }//end main
 
+   // the name statements are grouped under for each user menu choice.
+   private static String menuOperation(int choice) {
+      switch (choice){
+         case 1: return "viewHotels";
+         case 2: return "viewRooms";
+         case 3: return "bookRooms";
+         case 4: return "viewRecentBookings";
+         case 5: return "updateRoomInfo";
+         case 6: return "viewRecentUpdates";
+         case 7: return "viewBookingHistory";
+         case 8: return "viewRegularCustomers";
+         case 9: return "placeRoomRepairRequests";
+         case 10: return "viewRoomRepairHistory";
+         case 11: return "bookStay";
+         case 12: return "searchRooms";
+         case 13: return "viewOccupancy";
+         default: return "menu";
+      }
+   }
+
+   // the user menu choices that only read, and so may use a replica.
+   private static boolean readOnlyChoice(int choice) {
+      switch (choice){
+         case 1: case 2: case 4: case 6: case 7: case 8: case 10: case 12: case 13:
+            return true;
+         default:
+            return false;
+      }
+   }
+
    public static void Greeting(){
       System.out.println(
          "\n\n*******************************************************\n" +
@@ -374,9 +837,8 @@ public class Hotel {
          System.out.print("\tEnter password: ");
          String password = in.readLine(); 
          String type="Customer";
-			String query = String.format("INSERT INTO USERS (name, password, userType) VALUES ('%s','%s', '%s')", name, password, type);
-         esql.executeUpdate(query);
-         System.out.println ("User successfully created with userID = " + esql.getNewUserID("select max(userID) from Users;"));
+         int userID = UserProvisioning.register(esql, name, password, type);
+         System.out.println ("User successfully created with userID = " + userID);
          
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -395,10 +857,7 @@ public class Hotel {
          System.out.print("\tEnter password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USERS WHERE userID = '%s' AND password = '%s'", userID, password);
-         int userNum = esql.executeQuery(query);
-         if (userNum > 0){
-	    Global.userID = userID;
+         if (Global.session.logIn(esql, userID, password)){
             return userID;
 	 }
          return null;
@@ -408,16 +867,54 @@ public class Hotel {
       }
    }//end
 
+   /*
+    * Checks whether the console user manages a hotel.  Answered from the
+    * session; the set is only reloaded after a manager reassignment.
+    * @return true if the user manages the hotel
+    **/
+   public static boolean managesHotel(Hotel esql, String hotelID) throws SQLException {
+      int id;
+      try{
+         id = Integer.parseInt(hotelID.trim());
+      }catch (NumberFormatException e){
+         return false;
+      }
+      return Global.session.manages(esql, id);
+   }//end managesHotel
+
 // Rest of the functions definition go in here
 
+   // report queries shared by the console menu and server mode.
+   static final String RECENT_BOOKINGS_QUERY =
+      "SELECT RB.hotelID, RB.roomNumber, R.price, RB.bookingdate " +
+      "FROM RoomBookings RB " +
+      "INNER JOIN Rooms R " +
+      "ON RB.hotelID = R.hotelID AND RB.roomNumber = R.roomNumber " +
+      "WHERE customerID = ? " +
+      "ORDER BY bookingDate DESC " +
+      "LIMIT 5";
+   static final String RECENT_UPDATES_QUERY =
+      "SELECT * FROM RoomUpdatesLog WHERE hotelID = ? LIMIT 5";
+   static final String REPAIR_HISTORY_QUERY =
+      "SELECT companyID, hotelID, roomNumber, repairDate FROM RoomRepairs WHERE hotelID = ?";
+
    public static void viewHotels(Hotel esql) {
       try {
          System.out.print("\tEnter your location (latitude): ");
-         String latitude = in.readLine();
+         double latitude = Double.parseDouble(in.readLine());
          System.out.print("\tEnter your location (longitude): ");
-         String longitude = in.readLine();
-         String query = String.format("SELECT * FROM Hotel WHERE calculate_distance(latitude, longitude, '%s', '%s') <= 30", latitude, longitude);
-         int rowCount = esql.executeQueryAndPrintResult(query);
+         double longitude = Double.parseDouble(in.readLine());
+
+         // answered from the in-memory index instead of a full scan of Hotel
+         List<SpatialIndex.Match> nearby = esql.hotelIndex().withinRadius(latitude, longitude, NEARBY_RADIUS);
+         List<String[]> rows = new ArrayList<String[]>(nearby.size());
+         for (SpatialIndex.Match m : nearby) {
+            SpatialIndex.HotelLocation h = m.hotel;
+            rows.add(new String[] { String.valueOf(h.hotelID), String.valueOf(h.hotelName),
+               String.valueOf(h.latitude), String.valueOf(h.longitude), String.format("%.2f", m.distance) });
+         }
+         int rowCount = esql.printRows(
+            new String[] { "hotelID", "hotelName", "latitude", "longitude", "distance" }, rows);
          System.out.println(rowCount + " rows retrieved.");
          System.out.print("Press Enter to return to Main Menu");
          String temp = in.readLine();
@@ -433,15 +930,15 @@ public class Hotel {
          System.out.print("Enter hotel ID: ");
          int hotelID = Integer.parseInt(in.readLine());
          System.out.print("Enter booking date (YYYY-MM-DD): ");
-         String bookingDate = in.readLine();
-
-         String query = String.format("SELECT r.roomNumber, r.price, CASE WHEN (b.bookingDate IS NULL) THEN 'Available' ELSE 'Booked' END AS availability " + 
-                                       "FROM Rooms r " +
-                                       "LEFT JOIN RoomBookings b " +
-                                       "ON r.hotelID = b.hotelID AND r.roomNumber = b.roomNumber AND b.bookingDate = '%s' " +
-                                       "WHERE r.hotelID = %d " +
-                                       "ORDER BY r.roomNumber", bookingDate, hotelID);
-         esql.executeQueryAndPrintResult(query);
+         LocalDate bookingDate = LocalDate.parse(in.readLine());
+
+         AvailabilityCache.Snapshot rooms = esql.availability().get(esql, hotelID, bookingDate);
+         List<String[]> rows = new ArrayList<String[]>(rooms.size());
+         for (int i = 0; i < rooms.size(); i++) {
+            rows.add(new String[] { String.valueOf(rooms.roomNumber(i)), String.valueOf(rooms.price(i)),
+               rooms.isBooked(i) ? "Booked" : "Available" });
+         }
+         esql.printRows(new String[] { "roomNumber", "price", "availability" }, rows);
       }  
       catch (Exception e) {
          System.err.println(e.getMessage());
@@ -449,49 +946,108 @@ public class Hotel {
 }
 
 
+   public static void searchRooms(Hotel esql) {
+      try{
+         System.out.print("\tEnter your location (latitude): ");
+         double latitude = Double.parseDouble(in.readLine().trim());
+         System.out.print("\tEnter your location (longitude): ");
+         double longitude = Double.parseDouble(in.readLine().trim());
+         System.out.print("\tEnter the date (YYYY-MM-DD): ");
+         LocalDate date = LocalDate.parse(in.readLine().trim());
+         System.out.print("\tEnter the highest price: ");
+         int maxPrice = Integer.parseInt(in.readLine().trim());
+         System.out.print("\tEnter the distance (empty for " + (int) NEARBY_RADIUS + " units): ");
+         String distance = in.readLine().trim();
+         System.out.print("\tSort by 1. distance or 2. price: ");
+         RoomSearch.Ranking ranking = in.readLine().trim().equals("2") ? RoomSearch.Ranking.PRICE : RoomSearch.Ranking.DISTANCE;
+
+         List<RoomSearch.Result> results = RoomSearch.search(esql, latitude, longitude,
+            distance.isEmpty() ? NEARBY_RADIUS : Double.parseDouble(distance), 0, maxPrice, date, ranking,
+            Integer.getInteger("hotel.search.limit", 20));
+         List<String[]> rows = new ArrayList<String[]>(results.size());
+         for (RoomSearch.Result r : results){
+            rows.add(new String[] { String.valueOf(r.hotel.hotelID), r.hotel.hotelName,
+               String.format("%.2f", r.distance), String.valueOf(r.roomNumber), String.valueOf(r.price) });
+         }
+         esql.printRows(new String[] { "hotelID", "hotelName", "distance", "roomNumber", "price" }, rows);
+      }catch (Exception e){
+         System.err.println (e.getMessage ());
+      }
+   }//end searchRooms
+
+   public static void viewOccupancy(Hotel esql) {
+      try{
+         System.out.print("\tEnter hotelID: ");
+         String hotelID = in.readLine();
+         if (!managesHotel(esql, hotelID)){
+            System.out.println("Access Denied: must be a manager of this hotel to access");
+            return;
+         }
+         System.out.print("\tEnter the first night (YYYY-MM-DD): ");
+         LocalDate from = LocalDate.parse(in.readLine().trim());
+         System.out.print("\tEnter the last night (YYYY-MM-DD): ");
+         LocalDate to = LocalDate.parse(in.readLine().trim());
+         int id = Integer.parseInt(hotelID.trim());
+         OccupancyAnalytics analytics = new OccupancyAnalytics(esql, from, to);
+         analytics.run(id);
+         analytics.printHotels();
+         analytics.printMonths(id);
+         analytics.printRooms(id);
+      }catch (Exception e){
+         System.err.println (e.getMessage ());
+      }
+   }//end viewOccupancy
+
    public static void bookRooms(Hotel esql) {
 	try{
-	 //System.out.print("UserID: " + Global.userID);
 	 //int customerID = Integer.parseInt(in.readLine());
          System.out.print("Enter hotel ID: ");
          int hotelID = Integer.parseInt(in.readLine());
          System.out.print("Enter room number: ");
          int roomNumber = Integer.parseInt(in.readLine());
          System.out.print("Enter booking date (YYYY-MM-DD): ");
-         String bookingDate = in.readLine();
+         LocalDate bookingDate = LocalDate.parse(in.readLine());
 	 String temp;
-         String checkAvailabilityQuery = String.format("SELECT * FROM RoomBookings WHERE hotelID = %d AND roomNumber = %d AND bookingDate = '%s'",
-                                                      hotelID, roomNumber, bookingDate
-         );
-         int numBookings = esql.executeQuery(checkAvailabilityQuery);
-         if (numBookings > 0) {
+         // existence, availability and price all come from the cached snapshot
+         AvailabilityCache.Snapshot rooms = esql.availability().get(esql, hotelID, bookingDate);
+         int room = rooms.indexOf(roomNumber);
+         if (room < 0) {
+            System.out.println("No such room exists in our database.");
+	    System.out.println("Press Enter to return to Main Menu.");
+	    temp = in.readLine();
+            return;
+         }
+         if (rooms.isBooked(room)) {
             System.out.println("We apoligize but that room is not availible for the date selected.");
 	    System.out.println("Press Entre to return to Main Menu.");
 	    temp = in.readLine();
             return;
          }
+         int roomPrice = rooms.price(room);
 
-         String getPriceQuery = String.format("SELECT price FROM Rooms WHERE hotelID = %d AND roomNumber = %d",
-                                             hotelID, roomNumber
-         );
-         List<List<String>> roomInfo = esql.executeQueryAndReturnResult(getPriceQuery);
-         if (roomInfo.isEmpty()) {
-            System.out.println("No such room exists in our database.");
+         // hold the room-night so other sessions don't race for it while
+         // the customer decides
+         RoomReservations.Hold hold = esql.reservations().hold(
+            Global.session.userNumber(), hotelID, roomNumber, bookingDate);
+         if (hold == null) {
+            System.out.println("We apoligize but that room is being booked by another customer.");
 	    System.out.println("Press Enter to return to Main Menu.");
 	    temp = in.readLine();
             return;
          }
-         int roomPrice = Integer.parseInt(roomInfo.get(0).get(0));
-	 
+	 try{
 	 System.out.println("The price fore that room is $" + roomPrice);
 	 System.out.println("Would you like to book the room?[yes/no]");
-	 Scanner inputObj = new Scanner(System.in);
-	 temp = inputObj.nextLine();
+	 temp = in.readLine();
 	 do{
 		if (temp.equals("yes")){
-         		String bookRoomQuery = String.format("INSERT INTO RoomBookings (customerID, hotelID, roomNumber, bookingDate) VALUES (%s, %d, %d, '%s')", Global.userID, hotelID, roomNumber, bookingDate);
-         		esql.executeUpdate(bookRoomQuery);
-         		System.out.println("Booking successful! The room price is $" + roomPrice);
+         		RoomReservations.Outcome outcome = esql.reservations().confirm(esql, hold);
+         		if (outcome == RoomReservations.Outcome.BOOKED)
+         			System.out.println("Booking successful! The room price is $" + roomPrice);
+         		else if (outcome == RoomReservations.Outcome.CONFLICT)
+         			System.out.println("We apoligize but that room was just booked by another customer.");
+         		else
+         			System.out.println("No such room exists in our database.");
 	 		System.out.println("Press Enter to return to Main Menu.");
 	 		temp = in.readLine();
 			return;
@@ -507,26 +1063,62 @@ public class Hotel {
 			temp = in.readLine();
 		}
 	 }while(true);
+	 }finally{
+	    esql.reservations().release(hold);
+	 }
       } 
          catch (Exception e) {
          System.err.println(e.getMessage());
          }
    }
 
+   public static void bookStay(Hotel esql) {
+      try{
+         System.out.print("Enter hotel ID: ");
+         int hotelID = Integer.parseInt(in.readLine());
+         System.out.print("Enter room number: ");
+         int roomNumber = Integer.parseInt(in.readLine());
+         System.out.print("Enter check-in date (YYYY-MM-DD): ");
+         LocalDate checkIn = LocalDate.parse(in.readLine());
+         System.out.print("Enter number of nights: ");
+         int nights = Integer.parseInt(in.readLine());
+
+         RoomReservations.StayQuote quote = esql.reservations().quoteStay(esql, hotelID, roomNumber, checkIn, nights);
+         if (!quote.roomExists) {
+            System.out.println("No such room exists in our database.");
+         } else if (!quote.bookedNights.isEmpty()) {
+            System.out.println("We apoligize but that room is not availible on " + quote.bookedNights);
+         } else {
+            System.out.println("The price for " + nights + " nights is $" + quote.total()
+               + " ($" + quote.pricePerNight + " per night)");
+            System.out.println("Would you like to book the stay?[yes/no]");
+            String answer = in.readLine();
+            while (!answer.equals("yes") && !answer.equals("no")) {
+               System.out.println("Improper response.\nWould you like to book the stay? [yes/no]");
+               answer = in.readLine();
+            }
+            if (answer.equals("yes")) {
+               RoomReservations.Outcome outcome = esql.reservations().bookStay(
+                  esql, Global.session.userNumber(), hotelID, roomNumber, checkIn, nights);
+               if (outcome == RoomReservations.Outcome.BOOKED)
+                  System.out.println("Booking successful! The stay costs $" + quote.total());
+               else
+                  System.out.println("We apoligize but the room was just booked for some of those nights.");
+            } else {
+               System.out.println("Booking process canceled");
+            }
+         }
+         System.out.println("Press Enter to return to Main Menu.");
+         in.readLine();
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+   }//end bookStay
+
    public static void viewRecentBookingsfromCustomer(Hotel esql) {
       try {
           System.out.println("Your five most recent bookings are:");
-          String RecentBookingsQuery = String.format(
-              "SELECT RB.hotelID, RB.roomNumber, R.price, RB.bookingdate " +
-              "FROM RoomBookings RB " +
-              "INNER JOIN Rooms R " +
-              "ON RB.hotelID = R.hotelID AND RB.roomNumber = R.roomNumber " +
-              "WHERE customerID = %s " +
-              "ORDER BY bookingDate DESC " +
-              "LIMIT 5;",
-              Global.userID
-          ); 
-          esql.executeQueryAndPrintResult(RecentBookingsQuery);
+          esql.executeQueryAndPrintResult(RECENT_BOOKINGS_QUERY, Global.session.userID());
           return;
       } catch (Exception e) {
           System.err.println(e.getMessage());
@@ -537,59 +1129,55 @@ public class Hotel {
    public static void updateRoomInfo(Hotel esql) {
 	try{
 		String temp;
-		String getManagerIDQuery = String.format("SELECT userID FROM Users WHERE usertype = 'manager'");
-		List<List<String>> ManagerIDs = esql.executeQueryAndReturnResult(getManagerIDQuery);
-		boolean isManager = false;
+		boolean isManager = Global.session.isManager();
 		boolean hotelAccess = false;
-		for(int i = 0; i < ManagerIDs.size(); i++){
-			if(ManagerIDs.get(i).get(0).equals(Global.userID)){
-				isManager = true;
-				System.out.println("We have a Manager");
-			}
-		}
 		if(isManager){
 			System.out.println("Enter hotelID: ");
 			String HotelID = in.readLine();
-			System.out.println("Enter room number: ");
-			String RoomNumber = in.readLine();
 			
-			String getManagedHotelsQuery = String.format("SELECT HotelID FROM Hotel WHERE managerUserID = %s;", Global.userID);
-			List<List<String>> ManagingHotelIDs = esql.executeQueryAndReturnResult(getManagedHotelsQuery);
-
-			for(int i = 0; i < ManagingHotelIDs.size(); i++){
-				if(ManagingHotelIDs.get(i).get(0).equals(HotelID)){
-					hotelAccess = true;
-				}
-			}
+			hotelAccess = managesHotel(esql, HotelID);
 			
 			if(hotelAccess){
+				int hotelID = Integer.parseInt(HotelID.trim());
 				System.out.println("Choose option");
 				System.out.println("\t1. Update room price");
 				System.out.println("\t2. Update room image URL"); 
+				System.out.println("\t3. Update the prices of several rooms");
 				
 				switch(readChoice()){
-					case 1: System.out.println("Enter new price");
-						String newPrice = in.readLine();
-						String UpdateRoomPrice = String.format("UPDATE Rooms SET price = %s WHERE hotelID = %s AND roomNumber = %s", newPrice, HotelID, RoomNumber );
-						String UpdateRoomLog = String.format("INSERT INTO RoomUpdatesLog (managerID, hotelID,roomNumber, updatedon) VALUES( %s, %s, %s, DATE_TRUNC('minute',CURRENT_TIMESTAMP::timestamp));", Global.userID, HotelID, RoomNumber ); 
-						esql.executeUpdate(UpdateRoomPrice);
-						esql.executeUpdate(UpdateRoomLog);
+					case 1: System.out.println("Enter room number: ");
+						int roomNumber = Integer.parseInt(in.readLine().trim());
+						System.out.println("Enter new price");
+						int newPrice = Integer.parseInt(in.readLine().trim());
+						RoomUpdates.apply(esql, Global.session.userNumber(),
+							Collections.singletonList(RoomUpdates.Change.price(hotelID, roomNumber, newPrice)));
 						System.out.println("Room price updated");
 						System.out.println("Update Loged");
 						System.out.println("Press Enter to return to main menu");
 						temp = in.readLine();
 						break;
-					case 2: System.out.println("Enter new image URL");
+					case 2: System.out.println("Enter room number: ");
+						int urlRoomNumber = Integer.parseInt(in.readLine().trim());
+						System.out.println("Enter new image URL");
 						String newURL = in.readLine();
-						String UpdateRoomURL = String.format("UPDATE Rooms SET imageURL = '%s' WHERE hotelID = %s AND roomNumber = %s", newURL, HotelID, RoomNumber);
-						String LogUpdateQuery = String.format("INSERT INTO RoomUpdatesLog (managerID, hotelID, roomNumber, updatedon) VALUES( %s, %s, %s, DATE_TRUNC('minute', CURRENT_TIMESTAMP::timestamp));", Global.userID, HotelID, RoomNumber);
-						esql.executeUpdate(UpdateRoomURL);
-						esql.executeUpdate(LogUpdateQuery);
+						RoomUpdates.apply(esql, Global.session.userNumber(),
+							Collections.singletonList(RoomUpdates.Change.imageURL(hotelID, urlRoomNumber, newURL)));
 						System.out.println("Room URL updated");
 						System.out.println("Update Logged");
 						System.out.println("Press Enter to return to main menu");
 						temp = in.readLine();
 						break;
+					case 3: System.out.println("Enter one room per line as <room number> <new price>, and an empty line to finish");
+						List<RoomUpdates.Change> changes = new ArrayList<RoomUpdates.Change>();
+						String line;
+						while ((line = in.readLine()) != null && !line.trim().isEmpty()){
+							String[] fields = line.trim().split("[\\s,]+");
+							changes.add(RoomUpdates.Change.price(hotelID, Integer.parseInt(fields[0]), Integer.parseInt(fields[1])));
+						}
+						System.out.println(RoomUpdates.apply(esql, Global.session.userNumber(), changes) + " room prices updated and logged");
+						System.out.println("Press Enter to return to main menu");
+						temp = in.readLine();
+						break;
 					default: System.out.println("Unrecognized choice returning to Main menu");
 						break;
 				}
@@ -616,21 +1204,14 @@ public class Hotel {
 }
    public static void viewRecentUpdates(Hotel esql) {
 	try{
-	 	String getManagedHotelQuery = String.format("SELECT HotelID FROM Hotel WHERE managerUserID = %s;", Global.userID);
-		List<List<String>> ManagingHotelIDs = esql.executeQueryAndReturnResult(getManagedHotelQuery);
 		boolean hotelAccess = false;
 		String HotelID;
 		
 		System.out.println("Enter the hotelID");
 		HotelID = in.readLine();
-		for(int i = 0; i < ManagingHotelIDs.size(); i++){
-				if(ManagingHotelIDs.get(i).get(0).equals(HotelID)){
-					hotelAccess = true;
-				}
-		}
+		hotelAccess = managesHotel(esql, HotelID);
 		if(hotelAccess){
-			String getRecentHotelUpdates = String.format("SELECT * FROM RoomUpdatesLog WHERE hotelID = %s LIMIT 5;", HotelID);
-			esql.executeQueryAndPrintResult(getRecentHotelUpdates);
+			esql.executeQueryAndPrintResult(RECENT_UPDATES_QUERY, HotelID);
 			System.out.println("Press Enter to return to main menu");
 			String temp = in.readLine();
 			return;
@@ -652,42 +1233,51 @@ public class Hotel {
 	{
 		String temp;
 		boolean hotelAccess = false;
-		String getManagedHotelsQuery = String.format("SELECT HotelID FROM Hotel WHERE managerUserID = %s;", Global.userID);
-		List<List<String>> ManagingHotelIDs = esql.executeQueryAndReturnResult(getManagedHotelsQuery);
-		
 		System.out.println("Enter the hotelID: ");
 		String HotelID = in.readLine();
 
-		for(int i = 0; i < ManagingHotelIDs.size(); i++){
-			if(ManagingHotelIDs.get(i).get(0).equals(HotelID)){
-				hotelAccess = true;
-			}
-		}
+		hotelAccess = managesHotel(esql, HotelID);
 		if(hotelAccess)
 		{
 			System.out.println("Choose option");
 			System.out.println("1. Get bookings by date range");
 			System.out.println("2. Get all bookings");
-			System.out.println("3. Exit");
+			System.out.println("3. Export bookings to a CSV file");
+			System.out.println("4. Exit");
 		
+		int hotelID = Integer.parseInt(HotelID.trim());
 		switch(readChoice())
 		{
 			case 1:
 				System.out.println("Enter the start date in your range [yyyy-mm-dd]");
-				String startDate = in.readLine();
+				LocalDate startDate = LocalDate.parse(in.readLine().trim());
 				System.out.println("Enter the end date in your range [yyyy-mm-dd]");
-				String endDate = in.readLine();
-				String HotelBookingHistory = String.format("SELECT RB.bookingID, U.name, RB.hotelID, RB.roomNumber, RB.bookingDate FROM RoomBookings RB INNER JOIN Users U ON RB.customerID = userID WHERE hotelID = %s AND RB.bookingDate > '%s' AND  RB.bookingDate < '%s';", HotelID, startDate, endDate);
-				esql.executeQueryAndPrintResult(HotelBookingHistory);
-				System.out.println("Press Enter to return to main menu");
-				temp = in.readLine();
+				LocalDate endDate = LocalDate.parse(in.readLine().trim());
+				showBookingPages(esql, hotelID, startDate, endDate);
 				break;
 			case 2:
-				HotelBookingHistory = String.format("SELECT RB.bookingID, U.name, RB.hotelID, RB.roomNumber, RB.bookingDate FROM RoomBookings RB INNER JOIN Users U ON RB.customerID = userID WHERE hotelID = %s;", HotelID);
-				esql.executeQueryAndPrintResult(HotelBookingHistory);
+				showBookingPages(esql, hotelID, BookingHistory.FIRST_DATE, BookingHistory.LAST_DATE);
+				break;
+			case 3:
+				System.out.println("Enter the file to write: ");
+				String path = in.readLine().trim();
+				System.out.println("Enter the start date [yyyy-mm-dd], or leave empty for all bookings: ");
+				String from = in.readLine().trim();
+				System.out.println("Enter the end date [yyyy-mm-dd], or leave empty for all bookings: ");
+				String to = in.readLine().trim();
+				long exported;
+				try (Writer out = new BufferedWriter(new FileWriter(path), 1 << 16))
+				{
+					exported = BookingHistory.export(esql, hotelID,
+						from.isEmpty() ? BookingHistory.FIRST_DATE : LocalDate.parse(from),
+						to.isEmpty() ? BookingHistory.LAST_DATE : LocalDate.parse(to), out);
+				}
+				System.out.println(exported + " bookings written to " + path);
 				System.out.println("Press Enter to return to main menu");
 				temp = in.readLine();
 				break;
+			case 4:
+				break;
 			default: 
 				System.out.println("Unrecognized choice returning to main menu");
 				System.out.println("Press Enter");
@@ -709,6 +1299,29 @@ public class Hotel {
 		System.err.println(e.getMessage());
 	}
    }
+
+   /*
+    * Shows a hotel's bookings between two dates, inclusive, one page at a
+    * time until the user stops or the bookings run out.
+    */
+   private static void showBookingPages(Hotel esql, int hotelID, LocalDate from, LocalDate to) throws Exception {
+      int pageSize = Integer.getInteger("hotel.history.pageSize", 50);
+      BookingHistory.Cursor cursor = BookingHistory.Cursor.before(from);
+      while (cursor != null){
+         BookingHistory.Page page = BookingHistory.page(esql, hotelID, cursor, to, pageSize);
+         esql.printRows(BookingHistory.HEADER, page.rows);
+         cursor = page.next;
+         if (cursor == null){
+            System.out.println("End of bookings. Press Enter to return to main menu");
+            in.readLine();
+         }else{
+            System.out.println("Press Enter for the next page, or q to return to main menu");
+            if (in.readLine().trim().equalsIgnoreCase("q"))
+               break;
+         }
+      }
+   }//end showBookingPages
+
    public static void viewRegularCustomers(Hotel esql) {
 	try
 	{
@@ -717,18 +1330,13 @@ public class Hotel {
 		System.out.println("Enter hotel ID: ");
 		String HotelID = in.readLine();
 
-		String getManagedHotelsQuery = String.format("SELECT HotelID FROM Hotel WHERE managerUserID = %s;", Global.userID);
-		List<List<String>> ManagingHotelIDs = esql.executeQueryAndReturnResult(getManagedHotelsQuery);
-
-		for(int i = 0; i < ManagingHotelIDs.size(); i++){
-			if(ManagingHotelIDs.get(i).get(0).equals(HotelID)){
-				hotelAccess = true;
-			}
-		}
+		hotelAccess = managesHotel(esql, HotelID);
 		if(hotelAccess)
 		{
-			String getRegularCustomerQuery = String.format("Select U.name From Users U WHERE U.userID = ANY(SELECT customerID FROM( SELECT DISTINCT customerID, COUNT(*) FROM RoomBookings RB WHERE RB.hotelID = %s GROUP BY customerID ORDER BY COUNT(*) LIMIT 5) AS foo);", HotelID);
-			esql.executeQueryAndPrintResult(getRegularCustomerQuery);
+			if (RegularCustomers.ensureBuilt(esql))
+				esql.executeQueryAndPrintResult(RegularCustomers.TOP_QUERY, HotelID, 5);
+			else
+				System.out.println(RegularCustomers.NOT_MIGRATED);
 			System.out.println("Press Enter to return to main menu");
 			temp = in.readLine();
 			return;
@@ -755,30 +1363,40 @@ public class Hotel {
 		System.out.println("Enter hotel ID: ");
 		String HotelID = in.readLine();
 		
-		String getManagedHotelsQuery = String.format("SELECT HotelID FROM Hotel WHERE managerUserID = %s;", Global.userID);
-		List<List<String>> ManagingHotelIDs = esql.executeQueryAndReturnResult(getManagedHotelsQuery);
-
-		for(int i = 0; i < ManagingHotelIDs.size(); i++){
-			if(ManagingHotelIDs.get(i).get(0).equals(HotelID)){
-				hotelAccess = true;
-			}
-		}	
+		hotelAccess = managesHotel(esql, HotelID);	
 		if(hotelAccess)
 		{
-			System.out.println("Enter room number: ");
-			String RoomNumber = in.readLine();
-			System.out.println("Enter company ID: ");
-			String CompanyID = in.readLine();
+			System.out.println("Enter room number(s), separated by spaces or commas: ");
+			List<Integer> rooms = new ArrayList<Integer>();
+			for (String room : in.readLine().trim().split("[\\s,]+"))
+				rooms.add(Integer.parseInt(room));
+			System.out.println("Enter company ID (empty to assign the least busy company): ");
+			String company = in.readLine().trim();
 			
-			String newRoomRepairQuery = String.format("INSERT INTO RoomRepairs (companyID, hotelID, roomNumber, repairdate) VALUES (%s , %s , %s, DATE_TRUNC('minute', CURRENT_TIMESTAMP::timestamp));", CompanyID, HotelID, RoomNumber);
-			String getRepairID = String.format("SELECT repairID FROM RoomRepairs ORDER BY repairID DESC LIMIT 1");
-			esql.executeUpdate(newRoomRepairQuery);
-			List<List<String>> RepairID = esql.executeQueryAndReturnResult(getRepairID);
-
-			String logRoomRepairQuery = String.format("INSERT INTO RoomRepairRequests (managerID, repairID) VALUES (%s, %s);", Global.userID, RepairID.get(0).get(0));
-			esql.executeUpdate(logRoomRepairQuery);
-
-			System.out.println("Repair request submitted");
+			if (company.isEmpty()){
+				System.out.println("Enter the date the repairs are due (YYYY-MM-DD, empty for today): ");
+				String due = in.readLine().trim();
+				LocalDate dueDate = due.isEmpty() ? LocalDate.now() : LocalDate.parse(due);
+				List<CompletableFuture<RepairDispatcher.Assignment>> assignments =
+					new ArrayList<CompletableFuture<RepairDispatcher.Assignment>>();
+				for (int room : rooms)
+					assignments.add(esql.repairDispatcher().submit(Global.session.userNumber(),
+						Integer.parseInt(HotelID.trim()), room, dueDate));
+				for (CompletableFuture<RepairDispatcher.Assignment> assignment : assignments){
+					try{
+						RepairDispatcher.Assignment a = assignment.get();
+						System.out.println("Room " + a.roomNumber + ": repair " + a.repairID + " by company " + a.companyID);
+					}catch (ExecutionException e){
+						System.err.println(e.getCause().getMessage());
+					}
+				}
+				// written on the dispatcher's thread.
+				ReplicaRouter.wroteAt(System.nanoTime());
+			}else{
+				List<Integer> repairIDs = RepairOrders.place(esql, Global.session.userNumber(), Integer.parseInt(company),
+					Integer.parseInt(HotelID.trim()), rooms, LocalDate.now());
+				System.out.println(repairIDs.size() + " repair request(s) submitted: " + repairIDs);
+			}
 			System.out.println("Repair request logged");
 			System.out.println("Press Enter to return to main menu");
 			temp = in.readLine();
@@ -806,18 +1424,10 @@ public class Hotel {
 		System.out.println("Enter hotelID: ");
 		String HotelID = in.readLine();
 		
-		String getManagedHotelsQuery = String.format("SELECT HotelID FROM Hotel WHERE managerUserID = %s;", Global.userID);		
-		List<List<String>> ManagingHotelIDs = esql.executeQueryAndReturnResult(getManagedHotelsQuery);
-
-		for(int i = 0; i < ManagingHotelIDs.size(); i++){
-			if(ManagingHotelIDs.get(i).get(0).equals(HotelID)){
-				hotelAccess = true;
-			}
-		}
+		hotelAccess = managesHotel(esql, HotelID);
 		if(hotelAccess)
 		{
-			String RoomRepairHistoryQuery = String.format("SELECT companyID, hotelID, roomNumber, repairDate FROM RoomRepairs WHERE hotelID = '%s';", HotelID);
-			esql.executeQueryAndPrintResult(RoomRepairHistoryQuery);
+			esql.executeQueryAndPrintResult(REPAIR_HISTORY_QUERY, HotelID);
 			System.out.println("Press Enter to return to main menu");
 			temp = in.readLine();
 			return;
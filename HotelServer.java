@@ -0,0 +1,580 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server mode: exposes the Hotel operations as a local HTTP/JSON endpoint
+ * so one process can serve many front-desk and kiosk clients at once.
+ * Every request runs on its own virtual thread (platform threads before
+ * Java 21) and works on the Session named by its X-Session-Token header
+ * instead of the console's Global session.  All clients share the
+ * connection pool and the in-memory indexes and caches of one Hotel.
+ *
+ * Endpoints (parameters in the query string or a form-encoded body):
+ *
+ *   POST /login                 userID, password -> token
+ *   POST /logout
+ *   GET  /hotels                lat, lon [, radius | k]
+ *   GET  /rooms                 hotelID, date
+ *   GET  /search                lat, lon, date, maxPrice [, minPrice, radius, sort=distance|price, limit]
+ *   POST /book                  hotelID, roomNumber, date [, nights]
+ *   GET  /bookings/recent
+ *   GET  /manager/updates       hotelID
+ *   GET  /manager/bookings      hotelID [, from, to, after, limit] -> rows, next
+ *   GET  /manager/regulars      hotelID [, k]
+ *   GET  /manager/repairs       hotelID
+ *   POST /manager/prices        hotelID, prices=room:price,room:price,...
+ *   POST /manager/repairs/dispatch hotelID, rooms=room,room,... [, date]
+ *
+ * Usage:
+ *   java [-Dhotel.db.*=...] HotelServer [port]
+ *
+ */
+
+public class HotelServer {
+
+   private static final String TOKEN_HEADER = "X-Session-Token";
+
+   // an error that is reported to the client with an HTTP status.
+   private static class HttpError extends Exception {
+      private static final long serialVersionUID = 1L;
+
+      final int status;
+
+      HttpError(int status, String message) {
+         super(message);
+         this.status = status;
+      }
+   }//end HttpError
+
+   // one request: its parameters, its session and the JSON being built.
+   private class Call {
+      final HttpExchange exchange;
+      final Map<String, String> params;
+      final StringBuilder json = new StringBuilder(256);
+      // the session the request was made in, once session() has run.
+      Session bound = null;
+
+      Call(HttpExchange exchange, Map<String, String> params) {
+         this.exchange = exchange;
+         this.params = params;
+      }
+
+      String param(String name) throws HttpError {
+         String value = this.params.get(name);
+         if (value == null || value.isEmpty())
+            throw new HttpError(400, "Missing parameter: " + name);
+         return value;
+      }
+
+      int intParam(String name) throws HttpError {
+         try{
+            return Integer.parseInt(param(name).trim());
+         }catch (NumberFormatException e){
+            throw new HttpError(400, "Not a number: " + name);
+         }
+      }
+
+      double doubleParam(String name) throws HttpError {
+         try{
+            return Double.parseDouble(param(name).trim());
+         }catch (NumberFormatException e){
+            throw new HttpError(400, "Not a number: " + name);
+         }
+      }
+
+      LocalDate dateParam(String name) throws HttpError {
+         try{
+            return LocalDate.parse(param(name).trim());
+         }catch (DateTimeParseException e){
+            throw new HttpError(400, "Not a date (YYYY-MM-DD): " + name);
+         }
+      }
+
+      Session session() throws HttpError {
+         String token = this.exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+         Session session = token == null ? null : HotelServer.this._sessions.get(token);
+         if (session == null || !session.isLoggedIn())
+            throw new HttpError(401, "Not logged in");
+         session.lastAccess = System.nanoTime();
+         // the session's own writes must be visible to this request.
+         ReplicaRouter.wroteAt(session.lastWrite);
+         this.bound = session;
+         return session;
+      }
+
+      // the session, after checking that it manages the hotelID parameter.
+      int managedHotel() throws HttpError, SQLException {
+         Session session = session();
+         int hotelID = intParam("hotelID");
+         if (!session.manages(HotelServer.this._esql, hotelID))
+            throw new HttpError(403, "Must be a manager of this hotel");
+         return hotelID;
+      }
+   }//end Call
+
+   private interface Endpoint {
+      void handle(Call call) throws Exception;
+   }
+
+   private final Hotel _esql;
+   private final ConcurrentHashMap<String, Session> _sessions = new ConcurrentHashMap<String, Session>();
+   private final long _sessionTimeoutNanos;
+   private final SecureRandom _random = new SecureRandom();
+   private HttpServer _server;
+   private ExecutorService _workers;
+   private ScheduledExecutorService _sweeper;
+
+   /**
+    * @param esql the shared database and caches
+    * @param sessionTimeoutMinutes idle time after which a session expires
+    */
+   public HotelServer(Hotel esql, long sessionTimeoutMinutes) {
+      this._esql = esql;
+      this._sessionTimeoutNanos = TimeUnit.MINUTES.toNanos(sessionTimeoutMinutes);
+   }
+
+   public static void main (String[] args) throws Exception {
+      int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+      final Hotel esql = Hotel.connect();
+      esql.startChangeFeed();
+      final HotelServer server = new HotelServer(esql, Long.getLong("hotel.server.sessionTimeoutMinutes", 30L));
+      server.start(port);
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+         server.stop();
+         esql.cleanup();
+      }));
+      System.out.println("Listening on http://localhost:" + port);
+   }//end main
+
+   /**
+    * Starts serving on the loopback interface.
+    *
+    * @param port the TCP port
+    * @throws java.io.IOException when the port can't be bound
+    */
+   public void start(int port) throws IOException {
+      this._server = HttpServer.create(new InetSocketAddress("127.0.0.1", port),
+         Integer.getInteger("hotel.server.backlog", 1024));
+      route("/login", "POST", this::login);
+      route("/logout", "POST", this::logout);
+      route("/hotels", "GET", this::hotels);
+      route("/rooms", "GET", this::rooms);
+      route("/search", "GET", this::search);
+      route("/book", "POST", this::book);
+      route("/bookings/recent", "GET", this::recentBookings);
+      route("/manager/updates", "GET", call ->
+         rows(call, Hotel.RECENT_UPDATES_QUERY, call.managedHotel()));
+      route("/manager/bookings", "GET", this::bookingHistory);
+      route("/manager/regulars", "GET", call -> {
+         int hotelID = call.managedHotel();
+         int k = call.params.containsKey("k") ? call.intParam("k") : 5;
+         if (k < 1 || k > 100)
+            throw new HttpError(400, "k must be between 1 and 100");
+         if (!RegularCustomers.ensureBuilt(this._esql))
+            throw new HttpError(503, RegularCustomers.NOT_MIGRATED);
+         rows(call, RegularCustomers.TOP_QUERY, hotelID, k);
+      });
+      route("/manager/prices", "POST", this::updatePrices);
+      route("/manager/repairs", "GET", call ->
+         rows(call, Hotel.REPAIR_HISTORY_QUERY, call.managedHotel()));
+      route("/manager/repairs/dispatch", "POST", this::requestRepairs);
+
+      this._workers = newRequestExecutor();
+      this._server.setExecutor(this._workers);
+      this._server.start();
+
+      this._sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "session-sweeper");
+         t.setDaemon(true);
+         return t;
+      });
+      this._sweeper.scheduleWithFixedDelay(this::expireSessions, 1, 1, TimeUnit.MINUTES);
+   }//end start
+
+   public void stop() {
+      if (this._server != null)
+         this._server.stop(1);
+      if (this._workers != null)
+         this._workers.shutdown();
+      if (this._sweeper != null)
+         this._sweeper.shutdownNow();
+   }
+
+   /*
+    * One virtual thread per request where the runtime has them (Java 21+),
+    * otherwise a bounded pool of platform threads.
+    */
+   static ExecutorService newRequestExecutor() {
+      try{
+         Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+         return (ExecutorService) factory.invoke(null);
+      }catch (ReflectiveOperationException e){
+         return Executors.newFixedThreadPool(Integer.getInteger("hotel.server.threads", 256));
+      }
+   }
+
+   private void expireSessions() {
+      long now = System.nanoTime();
+      this._sessions.values().removeIf(s -> now - s.lastAccess > this._sessionTimeoutNanos);
+   }
+
+   private void route(String path, final String method, final Endpoint endpoint) {
+      this._server.createContext(path, exchange -> {
+         int status = 200;
+         String body;
+         try{
+            if (!exchange.getRequestMethod().equalsIgnoreCase(method))
+               throw new HttpError(405, "Use " + method);
+            if (!exchange.getRequestURI().getPath().equals(path))
+               throw new HttpError(404, "Not found");
+            Call call = new Call(exchange, readParams(exchange));
+            // GET endpoints only read, and may run on a replica.
+            QueryStats.Scope op = QueryStats.operation("server" + path);
+            ReplicaRouter.Scope route = method.equals("GET") ? ReplicaRouter.readOnly() : ReplicaRouter.primary();
+            try{
+               endpoint.handle(call);
+            }finally{
+               if (call.bound != null)
+                  call.bound.lastWrite = Math.max(call.bound.lastWrite, ReplicaRouter.lastWrite());
+               route.close();
+               op.close();
+            }
+            body = call.json.toString();
+         }catch (HttpError e){
+            status = e.status;
+            body = error(e.getMessage());
+         }catch (IllegalArgumentException e){
+            status = 400;
+            body = error(e.getMessage());
+         }catch (Exception e){
+            status = 500;
+            body = error(e.getMessage());
+         }
+         byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+         exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+         exchange.sendResponseHeaders(status, bytes.length);
+         try (OutputStream out = exchange.getResponseBody()){
+            out.write(bytes);
+         }
+      });
+   }//end route
+
+   private static Map<String, String> readParams(HttpExchange exchange) throws IOException {
+      Map<String, String> params = new HashMap<String, String>();
+      parseForm(exchange.getRequestURI().getRawQuery(), params);
+      String type = exchange.getRequestHeaders().getFirst("Content-Type");
+      if (type != null && type.startsWith("application/x-www-form-urlencoded")){
+         try (InputStream in = exchange.getRequestBody()){
+            parseForm(new String(in.readAllBytes(), StandardCharsets.UTF_8), params);
+         }
+      }
+      return params;
+   }
+
+   private static void parseForm(String form, Map<String, String> params) {
+      if (form == null || form.isEmpty())
+         return;
+      for (String pair : form.split("&")){
+         int eq = pair.indexOf('=');
+         String key = eq < 0 ? pair : pair.substring(0, eq);
+         String value = eq < 0 ? "" : pair.substring(eq + 1);
+         params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+      }
+   }
+
+   // ---------------------------------------------------------------- endpoints
+
+   private void login(Call call) throws Exception {
+      Session session = new Session();
+      if (!session.logIn(this._esql, call.param("userID"), call.param("password")))
+         throw new HttpError(401, "Invalid userID or password");
+      byte[] raw = new byte[16];
+      this._random.nextBytes(raw);
+      StringBuilder token = new StringBuilder(32);
+      for (byte b : raw)
+         token.append(String.format("%02x", b));
+      this._sessions.put(token.toString(), session);
+      call.json.append("{\"token\":");
+      quote(call.json, token.toString());
+      call.json.append(",\"userType\":");
+      quote(call.json, session.userType());
+      call.json.append('}');
+   }//end login
+
+   private void logout(Call call) throws Exception {
+      String token = call.exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+      Session session = token == null ? null : this._sessions.remove(token);
+      if (session != null)
+         session.logOut();
+      call.json.append("{}");
+   }
+
+   private void hotels(Call call) throws Exception {
+      call.session();
+      double lat = call.doubleParam("lat"), lon = call.doubleParam("lon");
+      List<SpatialIndex.Match> matches = call.params.containsKey("k")
+         ? this._esql.hotelIndex().nearest(lat, lon, Math.min(call.intParam("k"), 1000))
+         : this._esql.hotelIndex().withinRadius(lat, lon,
+              call.params.containsKey("radius") ? call.doubleParam("radius") : Hotel.NEARBY_RADIUS);
+      StringBuilder json = call.json.append('[');
+      for (int i = 0; i < matches.size(); i++){
+         SpatialIndex.Match m = matches.get(i);
+         json.append(i == 0 ? "{" : ",{").append("\"hotelID\":").append(m.hotel.hotelID).append(",\"hotelName\":");
+         quote(json, m.hotel.hotelName);
+         json.append(",\"latitude\":").append(m.hotel.latitude)
+             .append(",\"longitude\":").append(m.hotel.longitude)
+             .append(",\"distance\":").append(m.distance).append('}');
+      }
+      json.append(']');
+   }//end hotels
+
+   private void rooms(Call call) throws Exception {
+      call.session();
+      AvailabilityCache.Snapshot rooms = this._esql.availability().get(
+         this._esql, call.intParam("hotelID"), call.dateParam("date"));
+      StringBuilder json = call.json.append('[');
+      for (int i = 0; i < rooms.size(); i++){
+         json.append(i == 0 ? "{" : ",{")
+             .append("\"roomNumber\":").append(rooms.roomNumber(i))
+             .append(",\"price\":").append(rooms.price(i))
+             .append(",\"available\":").append(!rooms.isBooked(i)).append('}');
+      }
+      json.append(']');
+   }//end rooms
+
+   private void search(Call call) throws Exception {
+      call.session();
+      String sort = call.params.containsKey("sort") ? call.param("sort") : "distance";
+      if (!sort.equals("distance") && !sort.equals("price"))
+         throw new HttpError(400, "sort must be distance or price");
+      int limit = call.params.containsKey("limit") ? call.intParam("limit") : 20;
+      if (limit < 1 || limit > 500)
+         throw new HttpError(400, "limit must be between 1 and 500");
+      List<RoomSearch.Result> results = RoomSearch.search(this._esql,
+         call.doubleParam("lat"), call.doubleParam("lon"),
+         call.params.containsKey("radius") ? call.doubleParam("radius") : Hotel.NEARBY_RADIUS,
+         call.params.containsKey("minPrice") ? call.intParam("minPrice") : 0, call.intParam("maxPrice"),
+         call.dateParam("date"), sort.equals("price") ? RoomSearch.Ranking.PRICE : RoomSearch.Ranking.DISTANCE, limit);
+      StringBuilder json = call.json.append('[');
+      for (int i = 0; i < results.size(); i++){
+         RoomSearch.Result r = results.get(i);
+         json.append(i == 0 ? "{" : ",{").append("\"hotelID\":").append(r.hotel.hotelID).append(",\"hotelName\":");
+         quote(json, r.hotel.hotelName);
+         json.append(",\"distance\":").append(r.distance)
+             .append(",\"roomNumber\":").append(r.roomNumber)
+             .append(",\"price\":").append(r.price).append('}');
+      }
+      json.append(']');
+   }//end search
+
+   private void book(Call call) throws Exception {
+      Session session = call.session();
+      int hotelID = call.intParam("hotelID"), roomNumber = call.intParam("roomNumber");
+      LocalDate date = call.dateParam("date");
+      int nights = call.params.containsKey("nights") ? call.intParam("nights") : 1;
+      RoomReservations.Outcome outcome = nights == 1
+         ? this._esql.reservations().book(this._esql, session.userNumber(), hotelID, roomNumber, date)
+         : this._esql.reservations().bookStay(this._esql, session.userNumber(), hotelID, roomNumber, date, nights);
+      if (outcome == RoomReservations.Outcome.NO_SUCH_ROOM)
+         throw new HttpError(404, "No such room");
+      if (outcome == RoomReservations.Outcome.CONFLICT)
+         throw new HttpError(409, "Room is not available");
+      call.json.append("{\"booked\":true}");
+   }//end book
+
+   /*
+    * One page of a hotel's booking history.  "next" is the "after" cursor
+    * of the following page, or null on the last page.
+    */
+   private void bookingHistory(Call call) throws Exception {
+      int hotelID = call.managedHotel();
+      BookingHistory.Cursor after = call.params.containsKey("after")
+         ? BookingHistory.Cursor.parse(call.param("after"))
+         : BookingHistory.Cursor.before(call.params.containsKey("from") ? call.dateParam("from") : BookingHistory.FIRST_DATE);
+      LocalDate to = call.params.containsKey("to") ? call.dateParam("to") : BookingHistory.LAST_DATE;
+      int limit = call.params.containsKey("limit") ? call.intParam("limit") : 100;
+      if (limit < 1 || limit > 1000)
+         throw new HttpError(400, "limit must be between 1 and 1000");
+      BookingHistory.Page page = BookingHistory.page(this._esql, hotelID, after, to, limit);
+      StringBuilder json = call.json.append("{\"rows\":[");
+      for (int i = 0; i < page.rows.size(); i++){
+         String[] row = page.rows.get(i);
+         json.append(i == 0 ? "{" : ",{").append("\"bookingID\":").append(row[0]).append(",\"name\":");
+         quote(json, row[1] == null ? null : row[1].trim());
+         json.append(",\"hotelID\":").append(row[2])
+             .append(",\"roomNumber\":").append(row[3])
+             .append(",\"bookingDate\":");
+         quote(json, row[4]);
+         json.append('}');
+      }
+      json.append("],\"next\":");
+      quote(json, page.next == null ? null : page.next.toString());
+      json.append('}');
+   }//end bookingHistory
+
+   /*
+    * Reprices several rooms of a hotel in one transaction.
+    */
+   private void updatePrices(Call call) throws Exception {
+      int hotelID = call.managedHotel();
+      List<RoomUpdates.Change> changes = new ArrayList<RoomUpdates.Change>();
+      for (String pair : call.param("prices").split(",")){
+         int colon = pair.indexOf(':');
+         if (colon < 0)
+            throw new HttpError(400, "Expected room:price, got " + pair);
+         try{
+            changes.add(RoomUpdates.Change.price(hotelID, Integer.parseInt(pair.substring(0, colon).trim()),
+                                                 Integer.parseInt(pair.substring(colon + 1).trim())));
+         }catch (NumberFormatException e){
+            throw new HttpError(400, "Expected room:price, got " + pair);
+         }
+      }
+      int updated = RoomUpdates.apply(this._esql, call.session().userNumber(), changes);
+      call.json.append("{\"updated\":").append(updated).append('}');
+   }//end updatePrices
+
+   /*
+    * Queues repairs of several rooms with the repair dispatcher, which
+    * gives each to the least busy maintenance company, and waits for them.
+    */
+   private void requestRepairs(Call call) throws Exception {
+      int hotelID = call.managedHotel();
+      LocalDate due = call.params.containsKey("date") ? call.dateParam("date") : LocalDate.now();
+      List<CompletableFuture<RepairDispatcher.Assignment>> assignments =
+         new ArrayList<CompletableFuture<RepairDispatcher.Assignment>>();
+      for (String room : call.param("rooms").split(",")){
+         int roomNumber;
+         try{
+            roomNumber = Integer.parseInt(room.trim());
+         }catch (NumberFormatException e){
+            throw new HttpError(400, "Not a room number: " + room);
+         }
+         assignments.add(this._esql.repairDispatcher().submit(call.session().userNumber(), hotelID, roomNumber, due));
+      }
+      StringBuilder json = call.json.append("{\"repairs\":[");
+      for (int i = 0; i < assignments.size(); i++){
+         RepairDispatcher.Assignment a;
+         try{
+            a = assignments.get(i).get();
+         }catch (ExecutionException e){
+            throw new HttpError(400, e.getCause().getMessage());
+         }
+         json.append(i == 0 ? "{" : ",{").append("\"roomNumber\":").append(a.roomNumber)
+             .append(",\"companyID\":").append(a.companyID)
+             .append(",\"repairID\":").append(a.repairID)
+             .append('}');
+      }
+      json.append("]}");
+      // written on the dispatcher's thread; the session must still see it.
+      ReplicaRouter.wroteAt(System.nanoTime());
+   }//end requestRepairs
+
+   private void recentBookings(Call call) throws Exception {
+      rows(call, Hotel.RECENT_BOOKINGS_QUERY, call.session().userNumber());
+   }
+
+   // writes every row of a query as a JSON object keyed by column label.
+   private void rows(final Call call, String query, Object... params) throws SQLException {
+      this._esql.executeQueryAndHandle(query, rs -> {
+         writeRows(rs, call.json);
+         return null;
+      }, params);
+   }
+
+   // ---------------------------------------------------------------- JSON
+
+   static void writeRows(ResultSet rs, StringBuilder json) throws SQLException {
+      ResultSetMetaData rsmd = rs.getMetaData();
+      int numCol = rsmd.getColumnCount();
+      String[] names = new String[numCol];
+      boolean[] numeric = new boolean[numCol];
+      for (int i = 0; i < numCol; i++){
+         names[i] = rsmd.getColumnLabel(i + 1);
+         switch (rsmd.getColumnType(i + 1)){
+            case Types.TINYINT: case Types.SMALLINT: case Types.INTEGER: case Types.BIGINT:
+            case Types.DECIMAL: case Types.NUMERIC: case Types.REAL: case Types.FLOAT: case Types.DOUBLE:
+               numeric[i] = true;
+               break;
+            default:
+               numeric[i] = false;
+         }
+      }
+      json.append('[');
+      boolean first = true;
+      while (rs.next()){
+         json.append(first ? "{" : ",{");
+         first = false;
+         for (int i = 0; i < numCol; i++){
+            if (i > 0)
+               json.append(',');
+            quote(json, names[i]);
+            json.append(':');
+            String value = rs.getString(i + 1);
+            if (value == null)
+               json.append("null");
+            else if (numeric[i])
+               json.append(value);
+            else
+               quote(json, value);
+         }
+         json.append('}');
+      }
+      json.append(']');
+   }//end writeRows
+
+   static void quote(StringBuilder json, String s) {
+      if (s == null){
+         json.append("null");
+         return;
+      }
+      json.append('"');
+      for (int i = 0; i < s.length(); i++){
+         char c = s.charAt(i);
+         switch (c){
+            case '"':  json.append("\\\""); break;
+            case '\\': json.append("\\\\"); break;
+            case '\n': json.append("\\n"); break;
+            case '\r': json.append("\\r"); break;
+            case '\t': json.append("\\t"); break;
+            default:
+               if (c < 0x20)
+                  json.append(String.format("\\u%04x", (int) c));
+               else
+                  json.append(c);
+         }
+      }
+      json.append('"');
+   }//end quote
+
+   private static String error(String message) {
+      StringBuilder json = new StringBuilder("{\"error\":");
+      quote(json, message == null ? "Internal error" : message);
+      return json.append('}').toString();
+   }
+}//end HotelServer
@@ -0,0 +1,116 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, log-linear histogram of latencies in nanoseconds.  Every
+ * power of two is split into 32 linear buckets, so any reported
+ * percentile is within about 3% of the true value, whatever the range.
+ * Recording is lock-free and allocation-free and is safe from many threads.
+ *
+ */
+
+public class LatencyHistogram {
+
+   // values below 64 get a bucket each; above that 32 buckets per power of two.
+   private static final int LINEAR = 64;
+   private static final int SUB_BUCKETS = 32;
+   private static final int BUCKETS = LINEAR + 57 * SUB_BUCKETS;
+
+   private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong _count = new AtomicLong();
+   private final AtomicLong _sum = new AtomicLong();
+   private final AtomicLong _max = new AtomicLong();
+
+   private static int indexOf(long value) {
+      if (value < LINEAR)
+         return (int) Math.max(value, 0);
+      int shift = 58 - Long.numberOfLeadingZeros(value);
+      return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+   }
+
+   // the largest value that falls into a bucket.
+   private static long highestValueAt(int index) {
+      if (index < LINEAR)
+         return index;
+      int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+      long top = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+      return ((top + 1) << shift) - 1;
+   }
+
+   /**
+    * @param nanos one latency, in nanoseconds
+    */
+   public void record(long nanos) {
+      this._counts.incrementAndGet(indexOf(nanos));
+      this._count.incrementAndGet();
+      this._sum.addAndGet(nanos);
+      long max = this._max.get();
+      while (nanos > max && !this._max.compareAndSet(max, nanos))
+         max = this._max.get();
+   }//end record
+
+   /**
+    * Adds every value recorded by another histogram to this one.
+    */
+   public void add(LatencyHistogram other) {
+      for (int i = 0; i < BUCKETS; i++){
+         long n = other._counts.get(i);
+         if (n != 0)
+            this._counts.addAndGet(i, n);
+      }
+      this._count.addAndGet(other._count.get());
+      this._sum.addAndGet(other._sum.get());
+      long max = other._max.get();
+      long current = this._max.get();
+      while (max > current && !this._max.compareAndSet(current, max))
+         current = this._max.get();
+   }//end add
+
+   public long count() {
+      return this._count.get();
+   }
+
+   public long max() {
+      return this._max.get();
+   }
+
+   public double mean() {
+      long n = this._count.get();
+      return n == 0 ? 0 : (double) this._sum.get() / n;
+   }
+
+   /**
+    * @param percentile between 0 and 100
+    * @return the latency in nanoseconds that the given share of values do not exceed
+    */
+   public long percentile(double percentile) {
+      long n = this._count.get();
+      if (n == 0)
+         return 0;
+      long rank = Math.max(1, (long) Math.ceil(n * percentile / 100.0));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++){
+         seen += this._counts.get(i);
+         if (seen >= rank)
+            return Math.min(highestValueAt(i), this._max.get());
+      }
+      return this._max.get();
+   }//end percentile
+
+   public void reset() {
+      for (int i = 0; i < BUCKETS; i++)
+         this._counts.set(i, 0);
+      this._count.set(0);
+      this._sum.set(0);
+      this._max.set(0);
+   }
+
+   /**
+    * @return count, mean and percentiles in milliseconds, on one line
+    */
+   public String summary() {
+      return String.format("n=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f max=%.3f ms",
+         count(), mean() / 1e6, percentile(50) / 1e6, percentile(90) / 1e6,
+         percentile(99) / 1e6, percentile(99.9) / 1e6, max() / 1e6);
+   }
+}//end LatencyHistogram
@@ -0,0 +1,479 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the application with many virtual users, without the console, to
+ * measure what a season's traffic will need.  Operations are the user
+ * menu's, named as in QueryStats (LogIn, viewHotels, viewRooms, bookRooms,
+ * searchRooms, viewRecentBookings and the manager reports), and make the
+ * same calls with arguments drawn from the data set.
+ *
+ * The load is either synthetic, a weighted mix of operations arriving at
+ * a fixed average rate, or the replay of a workload recorded from real
+ * console sessions with -Dhotel.workload.record=<file>, which logs each
+ * menu operation with its time.  Arrivals are scheduled independently of
+ * the users serving them, and latency is measured from the scheduled
+ * start, so a saturated system shows up as growing latency and backlog
+ * rather than as a quietly lower rate.
+ *
+ * Usage:
+ *   java [-Dhotel.db.*=...] [-Dhotel.load.*=...] LoadGenerator [recorded.log]
+ *
+ * Settings:
+ *   hotel.load.users          virtual users (default 16)
+ *   hotel.load.rate           operations per second, or 0 for every user
+ *                             back to back (default 100)
+ *   hotel.load.seconds        length of a synthetic run (default 60)
+ *   hotel.load.mix            operation=weight,... (default DEFAULT_MIX)
+ *   hotel.load.speed          replay speed-up factor (default 1)
+ *   hotel.load.reportSeconds  progress interval (default 10)
+ *
+ * Bookings are made by a customer registered for the run, within the
+ * next 90 nights, and are deleted with it at the end.
+ *
+ */
+
+public class LoadGenerator {
+
+   public static final String DEFAULT_MIX =
+      "LogIn=10,viewHotels=25,viewRooms=25,searchRooms=10,bookRooms=10,viewRecentBookings=10," +
+      "viewRecentUpdates=3,viewBookingHistory=3,viewRegularCustomers=2,viewRoomRepairHistory=2";
+
+   // nights ahead that bookings and availability checks are made for.
+   private static final int HORIZON_NIGHTS = 90;
+
+   /**
+    * One kind of user operation.
+    */
+   interface Operation {
+      void run(ThreadLocalRandom random) throws Exception;
+   }
+
+   private static class OperationStats {
+      final String name;
+      final boolean readOnly;
+      final Operation operation;
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong errors = new AtomicLong();
+
+      OperationStats(String name, boolean readOnly, Operation operation) {
+         this.name = name;
+         this.readOnly = readOnly;
+         this.operation = operation;
+      }
+   }//end OperationStats
+
+   // an operation and when it should have started (System.nanoTime).
+   private static class Arrival {
+      final OperationStats op;
+      final long scheduled;
+
+      Arrival(OperationStats op, long scheduled) {
+         this.op = op;
+         this.scheduled = scheduled;
+      }
+   }//end Arrival
+
+   private static final Arrival STOP = new Arrival(null, 0);
+
+   private final Hotel _esql;
+   private final int _users;
+   private final PrintStream _report = System.out;
+   private final Map<String, OperationStats> _operations = new LinkedHashMap<String, OperationStats>();
+   private final AtomicLong _skipped = new AtomicLong();
+
+   // the data set, sampled once in setUp.
+   private long[] _rooms;
+   private double[][] _locations;
+   private int[] _hotelIDs;
+   private String[][] _logins;
+   private int _customer = -1;
+
+   public LoadGenerator(Hotel esql, int users) {
+      this._esql = esql;
+      this._users = users;
+   }
+
+   public static void main (String[] args) throws Exception {
+      Hotel esql = Hotel.connect();
+      try{
+         esql.startChangeFeed();
+         LoadGenerator load = new LoadGenerator(esql, Integer.getInteger("hotel.load.users", 16));
+         load.setUp();
+         try{
+            if (args.length > 0)
+               load.replay(args[0], Double.parseDouble(System.getProperty("hotel.load.speed", "1")));
+            else
+               load.run(System.getProperty("hotel.load.mix", DEFAULT_MIX),
+                  Double.parseDouble(System.getProperty("hotel.load.rate", "100")),
+                  Integer.getInteger("hotel.load.seconds", 60));
+         }finally{
+            load.tearDown();
+         }
+      }finally{
+         esql.cleanup();
+      }
+   }//end main
+
+   /**
+    * Samples the keys used to build requests, registers the customer who
+    * makes the bookings, and defines the operations.
+    *
+    * @throws java.sql.SQLException when the data set can't be read
+    */
+   public void setUp() throws SQLException {
+      ResultColumns rooms = this._esql.executeQueryForColumns("SELECT hotelID, roomNumber FROM Rooms");
+      this._rooms = new long[rooms.size()];
+      for (int i = 0; i < this._rooms.length; i++)
+         this._rooms[i] = LongHashSet.pack(rooms.getInt(i, 0), rooms.getInt(i, 1));
+      ResultColumns hotels = this._esql.executeQueryForColumns(
+         "SELECT hotelID, latitude, longitude FROM Hotel");
+      this._hotelIDs = hotels.ints(0);
+      this._locations = new double[hotels.size()][];
+      for (int i = 0; i < hotels.size(); i++)
+         this._locations[i] = new double[] { hotels.getDouble(i, 1), hotels.getDouble(i, 2) };
+      ResultColumns users = this._esql.executeQueryForColumns(
+         "SELECT userID, password FROM Users ORDER BY userID LIMIT 1000");
+      this._logins = new String[users.size()][];
+      for (int i = 0; i < users.size(); i++)
+         this._logins[i] = new String[] { users.getString(i, 0), users.getString(i, 1).trim() };
+      if (this._rooms.length == 0 || this._hotelIDs.length == 0 || this._logins.length == 0)
+         throw new IllegalStateException("The database is empty; seed it with BenchmarkData first");
+      this._customer = UserProvisioning.register(this._esql, "load generator", "loadgen", "customer");
+      this._report.printf("Data set: %d rooms, %d hotels; bookings made as customer %d%n",
+         this._rooms.length, this._hotelIDs.length, this._customer);
+
+      define("LogIn", false, random -> {
+         String[] login = this._logins[random.nextInt(this._logins.length)];
+         new Session().logIn(this._esql, login[0], login[1]);
+      });
+      define("viewHotels", true, random -> {
+         double[] at = location(random);
+         this._esql.hotelIndex().withinRadius(at[0], at[1], Hotel.NEARBY_RADIUS);
+      });
+      define("viewRooms", true, random ->
+         this._esql.availability().get(this._esql, hotel(random), night(random)));
+      define("searchRooms", true, random -> {
+         double[] at = location(random);
+         RoomSearch.search(this._esql, at[0], at[1], Hotel.NEARBY_RADIUS, 0, random.nextInt(100, 1000), night(random),
+            random.nextBoolean() ? RoomSearch.Ranking.DISTANCE : RoomSearch.Ranking.PRICE,
+            Integer.getInteger("hotel.search.limit", 20));
+      });
+      define("bookRooms", false, random -> {
+         // as the menu does: check availability, then book.
+         long room = this._rooms[random.nextInt(this._rooms.length)];
+         LocalDate night = night(random);
+         this._esql.availability().get(this._esql, (int) (room >> 32), night);
+         this._esql.reservations().book(this._esql, this._customer, (int) (room >> 32), (int) room, night);
+      });
+      define("viewRecentBookings", true, random ->
+         this._esql.executeQueryAndPrintResult(Hotel.RECENT_BOOKINGS_QUERY,
+            this._logins[random.nextInt(this._logins.length)][0]));
+      define("viewRecentUpdates", true, random ->
+         this._esql.executeQueryAndPrintResult(Hotel.RECENT_UPDATES_QUERY, hotel(random)));
+      define("viewBookingHistory", true, random -> {
+         LocalDate from = LocalDate.now().minusDays(random.nextInt(365));
+         BookingHistory.page(this._esql, hotel(random), BookingHistory.Cursor.before(from), from.plusDays(30),
+            Integer.getInteger("hotel.history.pageSize", 50));
+      });
+      define("viewRegularCustomers", true, random ->
+         this._esql.executeQueryAndPrintResult(RegularCustomers.TOP_QUERY, hotel(random), 5));
+      define("viewRoomRepairHistory", true, random ->
+         this._esql.executeQueryAndPrintResult(Hotel.REPAIR_HISTORY_QUERY, hotel(random)));
+   }//end setUp
+
+   /**
+    * Deletes the run's bookings and its customer.
+    *
+    * @throws java.sql.SQLException when the deletes fail
+    */
+   public void tearDown() throws SQLException {
+      if (this._customer < 0)
+         return;
+      int deleted = this._esql.executeUpdate("DELETE FROM RoomBookings WHERE customerID = ?", this._customer);
+      this._esql.executeUpdate("DELETE FROM CustomerVisits WHERE customerID = ?", this._customer);
+      this._esql.executeUpdate("DELETE FROM Users WHERE userID = ?", this._customer);
+      this._report.printf("Removed customer %d and %d bookings%n", this._customer, deleted);
+   }//end tearDown
+
+   private void define(String name, boolean readOnly, Operation operation) {
+      this._operations.put(name, new OperationStats(name, readOnly, operation));
+   }
+
+   private double[] location(ThreadLocalRandom random) {
+      double[] hotel = this._locations[random.nextInt(this._locations.length)];
+      return new double[] { hotel[0] + random.nextDouble(-5, 5), hotel[1] + random.nextDouble(-5, 5) };
+   }
+
+   private int hotel(ThreadLocalRandom random) {
+      return this._hotelIDs[random.nextInt(this._hotelIDs.length)];
+   }
+
+   private static LocalDate night(ThreadLocalRandom random) {
+      return LocalDate.now().plusDays(random.nextInt(HORIZON_NIGHTS));
+   }
+
+   /**
+    * Runs a synthetic mix of operations.
+    *
+    * @param mix operation=weight pairs, comma separated
+    * @param rate operations per second, or 0 to run every user back to back
+    * @param seconds the length of the run
+    */
+   public void run(String mix, final double rate, int seconds) throws InterruptedException {
+      final List<OperationStats> ops = new ArrayList<OperationStats>();
+      final List<Integer> weights = new ArrayList<Integer>();
+      int total = 0;
+      for (String entry : mix.split(",")){
+         String[] kv = entry.trim().split("=");
+         OperationStats op = this._operations.get(kv[0].trim());
+         if (op == null)
+            throw new IllegalArgumentException("Unknown operation " + kv[0] + "; known: " + this._operations.keySet());
+         int weight = kv.length > 1 ? Integer.parseInt(kv[1].trim()) : 1;
+         if (weight <= 0)
+            continue;
+         ops.add(op);
+         weights.add(weight);
+         total += weight;
+      }
+      if (total == 0)
+         throw new IllegalArgumentException("The mix is empty");
+      final int[] cumulative = new int[ops.size()];
+      for (int i = 0, sum = 0; i < cumulative.length; i++)
+         cumulative[i] = sum += weights.get(i);
+      final int totalWeight = total;
+      final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+      this._report.printf("%d users, %s, %d s%n", this._users,
+         rate > 0 ? String.format("%.0f ops/s", rate) : "closed loop", seconds);
+
+      drive(queue -> {
+         ThreadLocalRandom random = ThreadLocalRandom.current();
+         long next = System.nanoTime();
+         while (true){
+            int pick = random.nextInt(totalWeight), i = 0;
+            while (cumulative[i] <= pick)
+               i++;
+            if (rate <= 0){
+               // closed loop: a user takes the next arrival when it's free.
+               if (System.nanoTime() >= end)
+                  return;
+               queue.put(new Arrival(ops.get(i), 0));
+               continue;
+            }
+            // exponential gaps make a Poisson arrival process.
+            next += (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+            if (next >= end)
+               return;
+            sleepUntil(next);
+            queue.put(new Arrival(ops.get(i), next));
+         }
+      }, rate <= 0 ? this._users : Integer.MAX_VALUE);
+   }//end run
+
+   /**
+    * Replays a recorded workload at its recorded pace times a speed-up.
+    * Lines are "<milliseconds since start> <operation>"; operations the
+    * generator doesn't know are counted and skipped.
+    *
+    * @param path the recorded workload
+    * @param speed how much faster than recorded to replay
+    */
+   public void replay(final String path, final double speed) throws InterruptedException {
+      this._report.printf("%d users, replaying %s at %.1fx%n", this._users, path, speed);
+      drive(queue -> {
+         long start = System.nanoTime();
+         try (BufferedReader reader = new BufferedReader(new FileReader(path))){
+            String line;
+            while ((line = reader.readLine()) != null){
+               String[] f = line.trim().split("\\s+");
+               if (f.length < 2 || f[0].startsWith("#"))
+                  continue;
+               OperationStats op = this._operations.get(f[1]);
+               if (op == null){
+                  this._skipped.incrementAndGet();
+                  continue;
+               }
+               long scheduled = start + (long) (Long.parseLong(f[0]) * 1e6 / speed);
+               sleepUntil(scheduled);
+               queue.put(new Arrival(op, scheduled));
+            }
+         }catch (IOException e){
+            System.err.println ("Unable to read " + path + ": " + e.getMessage ());
+         }
+      }, Integer.MAX_VALUE);
+   }//end replay
+
+   private interface Arrivals {
+      void generate(BlockingQueue<Arrival> queue) throws InterruptedException;
+   }
+
+   /*
+    * Starts the users, feeds them arrivals until the generator returns,
+    * waits for the backlog to drain and prints the report.
+    */
+   private void drive(Arrivals arrivals, int backlog) throws InterruptedException {
+      final BlockingQueue<Arrival> queue = new LinkedBlockingQueue<Arrival>(backlog);
+      List<Thread> users = new ArrayList<Thread>(this._users);
+      PrintStream console = System.out;
+      System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+      long start = System.nanoTime();
+      Thread progress = progress(queue, start, Integer.getInteger("hotel.load.reportSeconds", 10));
+      try{
+         for (int u = 0; u < this._users; u++){
+            Thread user = new Thread(() -> serve(queue), "load-user-" + u);
+            user.start();
+            users.add(user);
+         }
+         arrivals.generate(queue);
+         for (int u = 0; u < this._users; u++)
+            queue.put(STOP);
+         for (Thread user : users)
+            user.join();
+      }finally{
+         progress.interrupt();
+         System.setOut(console);
+      }
+      report((System.nanoTime() - start) / 1e9);
+   }//end drive
+
+   private void serve(BlockingQueue<Arrival> queue) {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      try{
+         while (true){
+            Arrival arrival = queue.take();
+            if (arrival == STOP)
+               return;
+            long begin = System.nanoTime();
+            long scheduled = arrival.scheduled == 0 ? begin : arrival.scheduled;
+            QueryStats.Scope op = QueryStats.operation(arrival.op.name);
+            ReplicaRouter.Scope route = arrival.op.readOnly ? ReplicaRouter.readOnly() : ReplicaRouter.primary();
+            try{
+               arrival.op.operation.run(random);
+            }catch (Exception e){
+               if (arrival.op.errors.incrementAndGet() == 1)
+                  System.err.println (arrival.op.name + ": " + e.getMessage ());
+            }finally{
+               route.close();
+               op.close();
+            }
+            arrival.op.latency.record(System.nanoTime() - scheduled);
+         }
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }
+   }//end serve
+
+   private Thread progress(final BlockingQueue<Arrival> queue, final long start, final int seconds) {
+      Thread t = new Thread(() -> {
+         long last = 0;
+         try{
+            while (true){
+               Thread.sleep(seconds * 1000L);
+               long done = completed();
+               this._report.printf("  %4.0f s: %,.0f ops/s, %d errors, %d waiting%n",
+                  (System.nanoTime() - start) / 1e9, (done - last) / (double) seconds, errors(), queue.size());
+               last = done;
+            }
+         }catch (InterruptedException e){
+            // the run is over.
+         }
+      }, "load-progress");
+      t.setDaemon(true);
+      t.start();
+      return t;
+   }//end progress
+
+   private long completed() {
+      long n = 0;
+      for (OperationStats op : this._operations.values())
+         n += op.latency.count();
+      return n;
+   }
+
+   private long errors() {
+      long n = 0;
+      for (OperationStats op : this._operations.values())
+         n += op.errors.get();
+      return n;
+   }
+
+   private void report(double seconds) {
+      List<String[]> rows = new ArrayList<String[]>();
+      LatencyHistogram all = new LatencyHistogram();
+      for (OperationStats op : this._operations.values()){
+         if (op.latency.count() == 0)
+            continue;
+         all.add(op.latency);
+         rows.add(row(op.name, op.latency, op.errors.get(), seconds));
+      }
+      rows.add(row("all", all, errors(), seconds));
+      this._report.printf("%nResponse times from the scheduled start, in ms, over %.1f s:%n", seconds);
+      this._esql.printRows(new String[] { "operation", "count", "ops/s", "errors", "p50", "p90", "p99", "p99.9", "max" }, rows);
+      if (this._skipped.get() > 0)
+         this._report.printf("%d recorded operations skipped (not replayable)%n", this._skipped.get());
+   }//end report
+
+   private static String[] row(String name, LatencyHistogram h, long errors, double seconds) {
+      return new String[] { name, String.valueOf(h.count()), String.format("%.1f", h.count() / seconds),
+         String.valueOf(errors), ms(h.percentile(50)), ms(h.percentile(90)), ms(h.percentile(99)),
+         ms(h.percentile(99.9)), ms(h.max()) };
+   }
+
+   private static String ms(long nanos) {
+      return String.format("%.2f", nanos / 1e6);
+   }
+
+   private static void sleepUntil(long deadline) throws InterruptedException {
+      long wait;
+      while ((wait = deadline - System.nanoTime()) > 0){
+         LockSupport.parkNanos(wait);
+         if (Thread.interrupted())
+            throw new InterruptedException();
+      }
+   }
+
+   // the console's workload log, if -Dhotel.workload.record is set.
+   private static final PrintWriter RECORDING = openRecording(System.getProperty("hotel.workload.record"));
+   private static final long RECORDING_START = System.nanoTime();
+
+   private static PrintWriter openRecording(String path) {
+      if (path == null || path.isEmpty())
+         return null;
+      try{
+         return new PrintWriter(new FileWriter(path), true);
+      }catch (IOException e){
+         System.err.println ("Unable to record the workload to " + path + ": " + e.getMessage ());
+         return null;
+      }
+   }
+
+   /**
+    * Logs a menu operation to the workload recording, if one is being made.
+    *
+    * @param operation the operation's QueryStats name
+    */
+   public static void record(String operation) {
+      if (RECORDING == null)
+         return;
+      synchronized (RECORDING){
+         RECORDING.println(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - RECORDING_START) + " " + operation);
+      }
+   }
+}//end LoadGenerator
@@ -0,0 +1,158 @@
+import java.util.Arrays;
+
+/**
+ * A set of primitive longs using open addressing with linear probing.
+ * Used for large key sets (room keys, user IDs, hotel IDs) where boxing
+ * every element into a HashSet would cost several times the memory.
+ * Not synchronized; share it read-only or guard it externally.
+ *
+ */
+
+public class LongHashSet {
+
+   // marks an empty slot; the value itself is tracked by _hasFree.
+   private static final long FREE = 0L;
+
+   private long[] _keys;
+   private int _size = 0;
+   private boolean _hasFree = false;
+   private int _mask;
+   private int _resizeAt;
+
+   public LongHashSet() {
+      this(16);
+   }
+
+   /**
+    * @param expected the number of elements the set should hold without resizing
+    */
+   public LongHashSet(int expected) {
+      int capacity = Integer.highestOneBit(Math.max(expected, 4) * 2 - 1) << 1;
+      allocate(capacity);
+   }
+
+   private void allocate(int capacity) {
+      this._keys = new long[capacity];
+      this._mask = capacity - 1;
+      this._resizeAt = (int) (capacity * 0.6);
+   }
+
+   private static int hash(long key) {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int) (h ^ (h >>> 32));
+   }
+
+   /**
+    * @return true if the key was added, false if it was already present
+    */
+   public boolean add(long key) {
+      if (key == FREE){
+         boolean added = !this._hasFree;
+         if (added)
+            this._size++;
+         this._hasFree = true;
+         return added;
+      }
+      int i = hash(key) & this._mask;
+      while (this._keys[i] != FREE){
+         if (this._keys[i] == key)
+            return false;
+         i = (i + 1) & this._mask;
+      }
+      this._keys[i] = key;
+      if (++this._size >= this._resizeAt)
+         rehash();
+      return true;
+   }//end add
+
+   public boolean contains(long key) {
+      if (key == FREE)
+         return this._hasFree;
+      int i = hash(key) & this._mask;
+      while (this._keys[i] != FREE){
+         if (this._keys[i] == key)
+            return true;
+         i = (i + 1) & this._mask;
+      }
+      return false;
+   }//end contains
+
+   /**
+    * @return true if the key was present
+    */
+   public boolean remove(long key) {
+      if (key == FREE){
+         boolean removed = this._hasFree;
+         if (removed)
+            this._size--;
+         this._hasFree = false;
+         return removed;
+      }
+      int i = hash(key) & this._mask;
+      while (this._keys[i] != key){
+         if (this._keys[i] == FREE)
+            return false;
+         i = (i + 1) & this._mask;
+      }
+      this._keys[i] = FREE;
+      this._size--;
+      // re-insert the rest of the probe run so lookups don't stop early.
+      for (int j = (i + 1) & this._mask; this._keys[j] != FREE; j = (j + 1) & this._mask){
+         long moved = this._keys[j];
+         this._keys[j] = FREE;
+         int k = hash(moved) & this._mask;
+         while (this._keys[k] != FREE)
+            k = (k + 1) & this._mask;
+         this._keys[k] = moved;
+      }
+      return true;
+   }//end remove
+
+   public int size() {
+      return this._size;
+   }
+
+   public boolean isEmpty() {
+      return this._size == 0;
+   }
+
+   public void clear() {
+      Arrays.fill(this._keys, FREE);
+      this._size = 0;
+      this._hasFree = false;
+   }
+
+   /**
+    * @return the elements in no particular order
+    */
+   public long[] toArray() {
+      long[] result = new long[this._size];
+      int n = 0;
+      if (this._hasFree)
+         result[n++] = FREE;
+      for (long key : this._keys)
+         if (key != FREE)
+            result[n++] = key;
+      return result;
+   }
+
+   private void rehash() {
+      long[] old = this._keys;
+      allocate(old.length * 2);
+      for (long key : old){
+         if (key == FREE)
+            continue;
+         int i = hash(key) & this._mask;
+         while (this._keys[i] != FREE)
+            i = (i + 1) & this._mask;
+         this._keys[i] = key;
+      }
+   }
+
+   /**
+    * Packs two ints into one key, e.g. (hotelID, roomNumber).
+    */
+   public static long pack(int high, int low) {
+      return ((long) high << 32) | (low & 0xffffffffL);
+   }
+}//end LongHashSet
@@ -0,0 +1,381 @@
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Occupancy, revenue and RevPAR per hotel, per hotel and month, and per
+ * room over a date range.  Rooms and their prices are loaded once into
+ * primitive arrays; bookings are then read in keyset chunks of
+ * (room, month) indexes, and each chunk is counted on a fork/join pool
+ * while the next one is being read.  The rooms are split into ranges of
+ * whole hotels and each chunk is grouped by range as it is read, so every
+ * task adds straight into its own slice of the totals and nothing is
+ * merged.  Two chunk buffers are reused in turn, so memory depends on the
+ * number of rooms, not bookings.
+ *
+ * Revenue is nights sold at the rooms' current price; RoomBookings does
+ * not record the price a night was sold at.
+ *
+ * Usage:
+ *   java [-Dhotel.db.*=...] OccupancyAnalytics <from> <to> [hotelID]
+ *
+ */
+
+public class OccupancyAnalytics {
+
+   // bookings read per query, and room ranges per worker thread.
+   private static final int CHUNK = Integer.getInteger("hotel.analytics.chunk", 100000);
+   private static final int RANGES_PER_THREAD = 4;
+
+   private static final String ALL_HOTELS_CHUNK =
+      "SELECT bookingID, hotelID, roomNumber, bookingDate FROM RoomBookings " +
+      "WHERE bookingID > ? AND bookingDate BETWEEN ? AND ? ORDER BY bookingID LIMIT ?";
+   private static final String ONE_HOTEL_CHUNK =
+      "SELECT bookingID, hotelID, roomNumber, bookingDate FROM RoomBookings " +
+      "WHERE hotelID = ? AND bookingDate <= ? " +
+      "AND (bookingDate > ? OR (bookingDate = ? AND bookingID > ?)) " +
+      "ORDER BY bookingDate, bookingID LIMIT ?";
+
+   // the counts of the whole run.
+   private static class Counts {
+      final long[] roomNights;
+      final long[] hotelMonthNights;
+      final long[] hotelMonthRevenue;
+
+      Counts(int rooms, int hotelMonths) {
+         this.roomNights = new long[rooms];
+         this.hotelMonthNights = new long[hotelMonths];
+         this.hotelMonthRevenue = new long[hotelMonths];
+      }
+   }//end Counts
+
+   // one chunk of bookings, as room and month indexes grouped by room
+   // range: the bookings of range p are at start[p] .. start[p + 1] - 1.
+   private static class Chunk {
+      final int[] readRoom;
+      final int[] readMonth;
+      final int[] room;
+      final int[] month;
+      final int[] start;
+      int size = 0;
+      int fetched = 0;
+      long lastID = 0;
+      LocalDate lastDate = null;
+
+      Chunk(int capacity, int ranges) {
+         this.readRoom = new int[capacity];
+         this.readMonth = new int[capacity];
+         this.room = new int[capacity];
+         this.month = new int[capacity];
+         this.start = new int[ranges + 1];
+      }
+
+      void clear() {
+         this.size = 0;
+         this.fetched = 0;
+      }
+   }//end Chunk
+
+   // counts a chunk, one subtask per room range.
+   private class ChunkTask extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+      final Chunk chunk;
+
+      ChunkTask(Chunk chunk) {
+         this.chunk = chunk;
+      }
+
+      protected void compute() {
+         List<RangeTask> ranges = new ArrayList<RangeTask>();
+         for (int p = 0; p + 1 < this.chunk.start.length; p++)
+            if (this.chunk.start[p + 1] > this.chunk.start[p])
+               ranges.add(new RangeTask(this.chunk, p));
+         invokeAll(ranges);
+      }
+   }//end ChunkTask
+
+   // counts the bookings of one room range; the range holds whole hotels,
+   // so no other task writes the same totals.
+   private class RangeTask extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+      final Chunk chunk;
+      final int range;
+
+      RangeTask(Chunk chunk, int range) {
+         this.chunk = chunk;
+         this.range = range;
+      }
+
+      protected void compute() {
+         long[] roomNights = _totals.roomNights;
+         long[] hotelMonthNights = _totals.hotelMonthNights;
+         long[] hotelMonthRevenue = _totals.hotelMonthRevenue;
+         for (int i = this.chunk.start[this.range]; i < this.chunk.start[this.range + 1]; i++){
+            int r = this.chunk.room[i];
+            int hm = _roomHotel[r] * _months + this.chunk.month[i];
+            roomNights[r]++;
+            hotelMonthNights[hm]++;
+            hotelMonthRevenue[hm] += _roomPrice[r];
+         }
+      }
+   }//end RangeTask
+
+   private final Hotel _esql;
+   private final LocalDate _from;
+   private final LocalDate _to;
+   private final YearMonth _firstMonth;
+   private final int _months;
+   private final ForkJoinPool _pool;
+
+   // rooms sorted by (hotelID, roomNumber); the hotel of each room as an
+   // index into _hotelIDs.
+   private long[] _roomKeys;
+   private int[] _roomPrice;
+   private int[] _roomHotel;
+   private int[] _hotelIDs;
+   private int[] _hotelRooms;
+   // the room range of each room.
+   private int[] _roomRange;
+   private int _ranges;
+   private Counts _totals;
+   private long _bookings = 0;
+
+   /**
+    * @param esql the database
+    * @param from the first night counted
+    * @param to the last night counted
+    */
+   public OccupancyAnalytics(Hotel esql, LocalDate from, LocalDate to) {
+      if (to.isBefore(from))
+         throw new IllegalArgumentException("The range ends before it starts");
+      this._esql = esql;
+      this._from = from;
+      this._to = to;
+      this._firstMonth = YearMonth.from(from);
+      this._months = (int) (YearMonth.from(to).getYear() * 12L + YearMonth.from(to).getMonthValue()
+         - this._firstMonth.getYear() * 12L - this._firstMonth.getMonthValue()) + 1;
+      this._pool = ForkJoinPool.commonPool();
+   }
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 2){
+         System.err.println ("Usage: java OccupancyAnalytics <from> <to> [hotelID]");
+         System.exit(1);
+      }
+      Hotel esql = Hotel.connect();
+      try{
+         OccupancyAnalytics analytics = new OccupancyAnalytics(esql, LocalDate.parse(args[0]), LocalDate.parse(args[1]));
+         long start = System.nanoTime();
+         if (args.length > 2){
+            int hotelID = Integer.parseInt(args[2]);
+            analytics.run(hotelID);
+            System.out.printf("%d bookings counted in %.2f s%n", analytics.bookings(), (System.nanoTime() - start) / 1e9);
+            analytics.printHotels();
+            analytics.printMonths(hotelID);
+            analytics.printRooms(hotelID);
+         }else{
+            analytics.run(-1);
+            System.out.printf("%d bookings counted in %.2f s%n", analytics.bookings(), (System.nanoTime() - start) / 1e9);
+            analytics.printHotels();
+         }
+      }finally{
+         esql.cleanup();
+      }
+   }//end main
+
+   /**
+    * Counts the bookings of one hotel, or of every hotel.
+    *
+    * @param hotelID the hotel, or -1 for all hotels
+    * @throws java.sql.SQLException when reading fails
+    */
+   public void run(int hotelID) throws SQLException {
+      loadRooms(hotelID);
+      splitRooms(this._pool.getParallelism() * RANGES_PER_THREAD);
+      this._totals = new Counts(this._roomKeys.length, this._hotelIDs.length * this._months);
+      // one chunk is counted while the other is read into.
+      Chunk[] buffers = { new Chunk(CHUNK, this._ranges), new Chunk(CHUNK, this._ranges) };
+      ForkJoinTask<?> counting = null;
+      Chunk chunk = readChunk(hotelID, null, buffers[0]);
+      for (int n = 1; chunk.fetched > 0; n++){
+         // a range's totals are written by one chunk at a time.
+         if (counting != null)
+            counting.join();
+         counting = this._pool.submit(new ChunkTask(chunk));
+         if (chunk.fetched < CHUNK)
+            break;
+         chunk = readChunk(hotelID, chunk, buffers[n % 2]);
+      }
+      if (counting != null)
+         counting.join();
+   }//end run
+
+   private void loadRooms(final int hotelID) throws SQLException {
+      ResultColumns rooms = this._esql.executeQueryForColumns(
+         "SELECT hotelID, roomNumber, price FROM Rooms WHERE hotelID = ? OR ? < 0 ORDER BY hotelID, roomNumber",
+         hotelID, hotelID);
+      int n = rooms.size();
+      this._roomKeys = new long[n];
+      this._roomPrice = rooms.ints(2);
+      this._roomHotel = new int[n];
+      int[] hotels = new int[n];
+      int[] hotelRooms = new int[n];
+      int h = -1;
+      for (int i = 0; i < n; i++){
+         int id = rooms.getInt(i, 0);
+         this._roomKeys[i] = LongHashSet.pack(id, rooms.getInt(i, 1));
+         if (h < 0 || hotels[h] != id)
+            hotels[++h] = id;
+         hotelRooms[h]++;
+         this._roomHotel[i] = h;
+      }
+      this._hotelIDs = Arrays.copyOf(hotels, h + 1);
+      this._hotelRooms = Arrays.copyOf(hotelRooms, h + 1);
+   }//end loadRooms
+
+   /*
+    * Splits the rooms into about the given number of ranges of similar
+    * size, cutting only between hotels.
+    */
+   private void splitRooms(int ranges) {
+      int n = this._roomKeys.length;
+      int target = Math.max(1, (n + ranges - 1) / Math.max(1, ranges));
+      this._roomRange = new int[n];
+      int range = 0, inRange = 0;
+      for (int r = 0; r < n; r++){
+         if (inRange >= target && this._roomHotel[r] != this._roomHotel[r - 1]){
+            range++;
+            inRange = 0;
+         }
+         this._roomRange[r] = range;
+         inRange++;
+      }
+      this._ranges = range + 1;
+   }//end splitRooms
+
+   /*
+    * Reads the chunk of bookings after the previous one into room and
+    * month indexes, grouped by room range.  Bookings of rooms that no
+    * longer exist are skipped.
+    */
+   private Chunk readChunk(int hotelID, Chunk previous, final Chunk chunk) throws SQLException {
+      chunk.clear();
+      Hotel.ResultHandler<Void> reader = rs -> {
+         while (rs.next()){
+            chunk.lastID = rs.getLong(1);
+            LocalDate date = rs.getDate(4).toLocalDate();
+            chunk.lastDate = date;
+            chunk.fetched++;
+            int room = Arrays.binarySearch(this._roomKeys, LongHashSet.pack(rs.getInt(2), rs.getInt(3)));
+            if (room < 0)
+               continue;
+            chunk.readRoom[chunk.size] = room;
+            chunk.readMonth[chunk.size++] = monthIndex(date);
+         }
+         return null;
+      };
+      if (hotelID < 0){
+         this._esql.executeQueryAndHandle(ALL_HOTELS_CHUNK, reader,
+            previous == null ? 0L : previous.lastID, Date.valueOf(this._from), Date.valueOf(this._to), CHUNK);
+      }else{
+         Date after = Date.valueOf(previous == null ? this._from.minusDays(1) : previous.lastDate);
+         this._esql.executeQueryAndHandle(ONE_HOTEL_CHUNK, reader, hotelID, Date.valueOf(this._to),
+            after, after, previous == null ? Long.MAX_VALUE : previous.lastID, CHUNK);
+      }
+      this._bookings += chunk.size;
+      group(chunk);
+      return chunk;
+   }//end readChunk
+
+   // counting sort of a chunk's bookings by room range.
+   private void group(Chunk chunk) {
+      int[] start = chunk.start;
+      Arrays.fill(start, 0);
+      for (int i = 0; i < chunk.size; i++)
+         start[this._roomRange[chunk.readRoom[i]] + 1]++;
+      for (int p = 1; p < start.length; p++)
+         start[p] += start[p - 1];
+      int[] next = Arrays.copyOf(start, start.length - 1);
+      for (int i = 0; i < chunk.size; i++){
+         int at = next[this._roomRange[chunk.readRoom[i]]]++;
+         chunk.room[at] = chunk.readRoom[i];
+         chunk.month[at] = chunk.readMonth[i];
+      }
+   }//end group
+
+   private int monthIndex(LocalDate date) {
+      return (date.getYear() - this._firstMonth.getYear()) * 12 + date.getMonthValue() - this._firstMonth.getMonthValue();
+   }
+
+   // nights of a month that fall inside the range.
+   private int nightsIn(int month) {
+      YearMonth ym = this._firstMonth.plusMonths(month);
+      LocalDate first = ym.atDay(1).isBefore(this._from) ? this._from : ym.atDay(1);
+      LocalDate last = ym.atEndOfMonth().isAfter(this._to) ? this._to : ym.atEndOfMonth();
+      return (int) (last.toEpochDay() - first.toEpochDay()) + 1;
+   }
+
+   public long bookings() {
+      return this._bookings;
+   }
+
+   private static String[] row(String name, long roomNights, long sold, long revenue) {
+      return new String[] { name, String.valueOf(sold), String.valueOf(roomNights),
+         String.format("%.1f%%", roomNights == 0 ? 0 : 100.0 * sold / roomNights),
+         String.valueOf(revenue), String.format("%.2f", roomNights == 0 ? 0 : (double) revenue / roomNights) };
+   }
+
+   private static final String[] HEADER = { "", "nightsSold", "roomNights", "occupancy", "revenue", "RevPAR" };
+
+   /**
+    * Prints occupancy, revenue and RevPAR of every counted hotel.
+    */
+   public void printHotels() {
+      long days = this._to.toEpochDay() - this._from.toEpochDay() + 1;
+      List<String[]> rows = new ArrayList<String[]>(this._hotelIDs.length);
+      for (int h = 0; h < this._hotelIDs.length; h++){
+         long sold = 0, revenue = 0;
+         for (int m = 0; m < this._months; m++){
+            sold += this._totals.hotelMonthNights[h * this._months + m];
+            revenue += this._totals.hotelMonthRevenue[h * this._months + m];
+         }
+         rows.add(row("hotel " + this._hotelIDs[h], this._hotelRooms[h] * days, sold, revenue));
+      }
+      this._esql.printRows(HEADER, rows);
+   }//end printHotels
+
+   /**
+    * Prints occupancy, revenue and RevPAR of a hotel per month.
+    */
+   public void printMonths(int hotelID) {
+      int h = Arrays.binarySearch(this._hotelIDs, hotelID);
+      List<String[]> rows = new ArrayList<String[]>(this._months);
+      for (int m = 0; h >= 0 && m < this._months; m++){
+         rows.add(row(this._firstMonth.plusMonths(m).toString(), (long) this._hotelRooms[h] * nightsIn(m),
+            this._totals.hotelMonthNights[h * this._months + m], this._totals.hotelMonthRevenue[h * this._months + m]));
+      }
+      this._esql.printRows(HEADER, rows);
+   }//end printMonths
+
+   /**
+    * Prints occupancy and revenue of every room of a hotel.
+    */
+   public void printRooms(int hotelID) {
+      long days = this._to.toEpochDay() - this._from.toEpochDay() + 1;
+      List<String[]> rows = new ArrayList<String[]>();
+      for (int r = 0; r < this._roomKeys.length; r++){
+         if ((int) (this._roomKeys[r] >> 32) != hotelID)
+            continue;
+         long sold = this._totals.roomNights[r];
+         rows.add(row("room " + (int) this._roomKeys[r], days, sold, sold * this._roomPrice[r]));
+      }
+      this._esql.printRows(HEADER, rows);
+   }//end printRooms
+}//end OccupancyAnalytics
@@ -0,0 +1,46 @@
+import java.sql.Connection;
+
+/**
+ * A physical connection owned by a ConnectionPool, together with the
+ * bookkeeping the pool needs to validate it and to detect leaks.
+ *
+ */
+
+public class PooledConnection {
+
+   // the physical connection handed out to callers.
+   private final Connection _connection;
+
+   // prepared statements kept open on this connection.
+   private final StatementCache _statements;
+
+   // last time (System.nanoTime) the connection was returned to the pool.
+   long lastReleased;
+
+   // time (System.nanoTime), thread and, when the pool records them, call
+   // site of the current borrow.
+   long borrowedAt;
+   String borrower;
+   Throwable borrowSite;
+   boolean leakReported;
+
+   PooledConnection(Connection connection, int statementCacheSize) {
+      this._connection = connection;
+      this._statements = new StatementCache(connection, statementCacheSize);
+      this.lastReleased = System.nanoTime();
+   }
+
+   /**
+    * @return the physical connection wrapped by this entry
+    */
+   public Connection connection() {
+      return this._connection;
+   }
+
+   /**
+    * @return the prepared-statement cache bound to this connection
+    */
+   public StatementCache statements() {
+      return this._statements;
+   }
+}//end PooledConnection
@@ -0,0 +1,355 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Latency, row and byte counters for every statement that goes through the
+ * Hotel execution helpers.  Statements are grouped by the operation that
+ * issued them (the menu item or server endpoint, set with operation())
+ * and by their SQL verb, e.g. "viewRooms.select" or "bookRooms.insert".
+ * Statements slower than the threshold are appended to the slow-query
+ * log with their bound parameters; transactions, which bind their
+ * parameters directly, with the SQL of every statement they ran.
+ *
+ * Bytes are those of the column values the helpers read themselves: the
+ * UTF-8 length of strings and the width of numbers and dates.  Results
+ * read by a caller's handler or row mapper are not counted, and a
+ * handler's rows are not known either.
+ *
+ * Every group is exported as a JMX MBean named
+ * hotel:type=QueryStats,operation=<group>, next to a summary MBean
+ * hotel:type=QueryStats,name=summary that also adjusts the threshold.
+ *
+ */
+
+public class QueryStats {
+
+   /**
+    * JMX view of one operation group.  Latencies are in milliseconds.
+    */
+   public interface OperationMBean {
+      long getCount();
+      long getErrors();
+      long getRows();
+      long getBytes();
+      double getMeanMillis();
+      double getP50Millis();
+      double getP90Millis();
+      double getP99Millis();
+      double getP999Millis();
+      double getMaxMillis();
+   }
+
+   /**
+    * JMX view of the whole registry.
+    */
+   public interface SummaryMBean {
+      String[] getOperations();
+      long getStatements();
+      long getSlowQueries();
+      long getSlowQueryThresholdMillis();
+      void setSlowQueryThresholdMillis(long millis);
+      String getReport();
+      void reset();
+   }
+
+   /**
+    * Restores the previous operation label when closed.
+    */
+   public interface Scope extends AutoCloseable {
+      void close();
+   }
+
+   /**
+    * Counts the bytes of the column values a helper reads, as it reads
+    * them.
+    */
+   public static final class Meter {
+      private long _bytes = 0;
+
+      /**
+       * @param value a string column value, or null
+       */
+      public void count(String value) {
+         if (value != null)
+            this._bytes += utf8Length(value);
+      }
+
+      public long bytes() {
+         return this._bytes;
+      }
+   }//end Meter
+
+   public static class Operation implements OperationMBean {
+      final String name;
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong errors = new AtomicLong();
+      final AtomicLong rows = new AtomicLong();
+      final AtomicLong bytes = new AtomicLong();
+
+      Operation(String name) {
+         this.name = name;
+      }
+
+      public long getCount() { return this.latency.count(); }
+      public long getErrors() { return this.errors.get(); }
+      public long getRows() { return this.rows.get(); }
+      public long getBytes() { return this.bytes.get(); }
+      public double getMeanMillis() { return this.latency.mean() / 1e6; }
+      public double getP50Millis() { return this.latency.percentile(50) / 1e6; }
+      public double getP90Millis() { return this.latency.percentile(90) / 1e6; }
+      public double getP99Millis() { return this.latency.percentile(99) / 1e6; }
+      public double getP999Millis() { return this.latency.percentile(99.9) / 1e6; }
+      public double getMaxMillis() { return this.latency.max() / 1e6; }
+
+      void reset() {
+         this.latency.reset();
+         this.errors.set(0);
+         this.rows.set(0);
+         this.bytes.set(0);
+      }
+   }//end Operation
+
+   private static final String DOMAIN = "hotel";
+
+   private static final Object[] NO_PARAMS = new Object[0];
+
+   // the operation the current thread is working on.
+   private static final ThreadLocal<String> CURRENT = new ThreadLocal<String>();
+
+   private final ConcurrentHashMap<String, Operation> _operations = new ConcurrentHashMap<String, Operation>();
+   private final AtomicLong _slowQueries = new AtomicLong();
+   private volatile long _slowNanos;
+   private final String _slowLogPath;
+   private Writer _slowLog = null;
+   private boolean _jmx = false;
+
+   /**
+    * @param slowQueryMillis statements at least this slow are logged; 0 logs none
+    * @param slowLogPath the slow-query log file, appended to
+    */
+   public QueryStats(long slowQueryMillis, String slowLogPath) {
+      this._slowNanos = slowQueryMillis * 1000000L;
+      this._slowLogPath = slowLogPath;
+   }
+
+   /**
+    * Labels the statements the current thread runs until the scope is
+    * closed, e.g.
+    *
+    *    QueryStats.Scope op = QueryStats.operation("viewRooms");
+    *    try{ ... }finally{ op.close(); }
+    *
+    * @param name the operation, e.g. a menu item or endpoint
+    * @return the scope to close when the operation is done
+    */
+   public static Scope operation(String name) {
+      final String previous = CURRENT.get();
+      CURRENT.set(name);
+      return () -> CURRENT.set(previous);
+   }
+
+   /**
+    * Records one statement.
+    *
+    * @param sql the statement
+    * @param params its bound parameters, for the slow-query log
+    * @param nanos how long it took
+    * @param rows rows returned or affected, or -1 if unknown
+    * @param bytes bytes of column values fetched, or 0 if unknown
+    * @param failed whether it threw
+    */
+   public void record(String sql, Object[] params, long nanos, long rows, long bytes, boolean failed) {
+      Operation op = count(verb(sql), nanos, rows, bytes, failed);
+      if (isSlow(nanos))
+         logSlow(op.name, sql, params, nanos, rows, failed);
+   }//end record
+
+   /**
+    * Records one transaction.
+    *
+    * @param statements the SQL of the statements it prepared, in order
+    * @param nanos how long it took, commit included
+    * @param failed whether it was rolled back
+    */
+   public void recordTransaction(List<String> statements, long nanos, boolean failed) {
+      Operation op = count("transaction", nanos, -1, 0, failed);
+      if (isSlow(nanos))
+         logSlow(op.name, "transaction: " + String.join("; ", statements), NO_PARAMS, nanos, -1, failed);
+   }
+
+   private Operation count(String verb, long nanos, long rows, long bytes, boolean failed) {
+      String label = CURRENT.get();
+      Operation op = group((label == null ? "other" : label) + "." + verb);
+      op.latency.record(nanos);
+      if (rows > 0)
+         op.rows.addAndGet(rows);
+      if (bytes > 0)
+         op.bytes.addAndGet(bytes);
+      if (failed)
+         op.errors.incrementAndGet();
+      return op;
+   }
+
+   private boolean isSlow(long nanos) {
+      long slow = this._slowNanos;
+      return slow > 0 && nanos >= slow;
+   }
+
+   /**
+    * @param s a string
+    * @return the length of s in UTF-8, without encoding it
+    */
+   static long utf8Length(String s) {
+      long n = 0;
+      for (int i = 0; i < s.length(); i++){
+         char c = s.charAt(i);
+         if (c < 0x80)
+            n += 1;
+         else if (c < 0x800 || Character.isSurrogate(c))
+            // each half of a surrogate pair is half of a 4-byte sequence.
+            n += 2;
+         else
+            n += 3;
+      }
+      return n;
+   }//end utf8Length
+
+   private Operation group(String name) {
+      Operation op = this._operations.get(name);
+      if (op == null){
+         Operation created = new Operation(name);
+         op = this._operations.putIfAbsent(name, created);
+         if (op == null){
+            op = created;
+            synchronized (this){
+               if (this._jmx)
+                  register(created);
+            }
+         }
+      }
+      return op;
+   }//end group
+
+   // the first word of the statement, lower-cased: select, insert, ...
+   static String verb(String sql) {
+      int start = 0;
+      while (start < sql.length() && !Character.isLetter(sql.charAt(start)))
+         start++;
+      int end = start;
+      while (end < sql.length() && Character.isLetter(sql.charAt(end)))
+         end++;
+      return end > start ? sql.substring(start, end).toLowerCase() : "statement";
+   }
+
+   private synchronized void logSlow(String group, String sql, Object[] params, long nanos, long rows, boolean failed) {
+      this._slowQueries.incrementAndGet();
+      try{
+         if (this._slowLog == null)
+            this._slowLog = new BufferedWriter(new FileWriter(this._slowLogPath, true));
+         this._slowLog.write(String.format("%s %.1f ms %s rows=%d%s %s params=%s%n",
+            LocalDateTime.now(), nanos / 1e6, group, rows, failed ? " FAILED" : "",
+            sql.replaceAll("\\s+", " "), loggable(sql, params)));
+         this._slowLog.flush();
+      }catch (IOException e){
+         System.err.println ("Unable to write the slow-query log: " + e.getMessage ());
+      }
+   }//end logSlow
+
+   // parameters as text; never those of a statement that binds a password.
+   private static String loggable(String sql, Object[] params) {
+      if (sql.toLowerCase().contains("password"))
+         return "[" + params.length + " hidden]";
+      return Arrays.deepToString(params);
+   }
+
+   /**
+    * Publishes the summary and every operation group, present and future,
+    * on the platform MBean server.
+    */
+   public synchronized void registerMBeans() {
+      if (this._jmx)
+         return;
+      this._jmx = true;
+      final QueryStats stats = this;
+      try{
+         ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(new SummaryMBean() {
+            public String[] getOperations() { return stats._operations.keySet().toArray(new String[0]); }
+            public long getStatements() { return stats.getStatements(); }
+            public long getSlowQueries() { return stats._slowQueries.get(); }
+            public long getSlowQueryThresholdMillis() { return stats._slowNanos / 1000000L; }
+            public void setSlowQueryThresholdMillis(long millis) { stats._slowNanos = millis * 1000000L; }
+            public String getReport() { return stats.getReport(); }
+            public void reset() { stats.reset(); }
+         }, SummaryMBean.class), new ObjectName(DOMAIN + ":type=QueryStats,name=summary"));
+      }catch (JMException e){
+         System.err.println ("Unable to register query stats with JMX: " + e.getMessage ());
+      }
+      for (Operation op : this._operations.values())
+         register(op);
+   }//end registerMBeans
+
+   private static void register(Operation op) {
+      try{
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         server.registerMBean(new StandardMBean(op, OperationMBean.class),
+            new ObjectName(DOMAIN + ":type=QueryStats,operation=" + ObjectName.quote(op.name)));
+      }catch (InstanceAlreadyExistsException e){
+         // registered by a concurrent registerMBeans.
+      }catch (JMException e){
+         System.err.println ("Unable to register " + op.name + " with JMX: " + e.getMessage ());
+      }
+   }
+
+   public long getStatements() {
+      long n = 0;
+      for (Operation op : this._operations.values())
+         n += op.getCount();
+      return n;
+   }
+
+   /**
+    * @return one line per operation group, sorted by name
+    */
+   public String getReport() {
+      String[] names = this._operations.keySet().toArray(new String[0]);
+      Arrays.sort(names);
+      StringBuilder report = new StringBuilder("Query stats (" + this._slowQueries.get() + " slow):");
+      for (String name : names){
+         Operation op = this._operations.get(name);
+         report.append(String.format("%n  %-40s %s rows=%d bytes=%d errors=%d",
+            name, op.latency.summary(), op.rows.get(), op.bytes.get(), op.errors.get()));
+      }
+      return report.toString();
+   }//end getReport
+
+   public void reset() {
+      for (Operation op : this._operations.values())
+         op.reset();
+      this._slowQueries.set(0);
+   }
+
+   public synchronized void close() {
+      if (this._slowLog != null){
+         try{
+            this._slowLog.close();
+         }catch (IOException e){
+            // ignored.
+         }
+         this._slowLog = null;
+      }
+   }
+}//end QueryStats
@@ -0,0 +1,101 @@
+import java.sql.SQLException;
+
+/**
+ * Maintenance of CustomerVisits, the per-hotel booking count of every
+ * customer behind the "regular customers" report.  The counts are kept
+ * current by the triggers on RoomBookings (see create_tables.sql) in the
+ * same transaction as every booking and cancellation, whichever program
+ * makes it, so the report reads the top K rows of index_customerVisits
+ * instead of grouping the hotel's whole booking history.
+ *
+ * The table only has to be rebuilt from RoomBookings after it was created
+ * on a database that already had bookings, or after rows were loaded with
+ * the triggers disabled.  ensureBuilt() does the first automatically the
+ * first time the report is asked for; -Dhotel.regulars.rebuild=true or
+ * "java RegularCustomers" forces a rebuild.
+ *
+ * On a database created before CustomerVisits existed the report is
+ * unavailable, and everything else works as before, until "java
+ * SchemaMigrations migrate" adds the table and its triggers.
+ *
+ */
+
+public class RegularCustomers {
+
+   // the most frequent customers of a hotel, most frequent first.
+   static final String TOP_QUERY =
+      "SELECT U.name, V.bookings FROM CustomerVisits V " +
+      "INNER JOIN Users U ON U.userID = V.customerID " +
+      "WHERE V.hotelID = ? AND V.bookings > 0 " +
+      "ORDER BY V.bookings DESC LIMIT ?";
+
+   // shown instead of the report while the table or its triggers are missing.
+   static final String NOT_MIGRATED =
+      "The regular customers report needs the CustomerVisits table and its triggers; " +
+      "run \"java SchemaMigrations migrate\" to add them";
+
+   // set once the table has been found and, if needed, rebuilt.
+   private static volatile boolean _ready = false;
+
+   private RegularCustomers() {
+   }
+
+   public static void main (String[] args) throws Exception {
+      Hotel esql = Hotel.connect();
+      try{
+         long start = System.nanoTime();
+         int rows = rebuild(esql);
+         System.out.printf("Rebuilt %d customer visit counts in %.1f s%n", rows, (System.nanoTime() - start) / 1e9);
+      }finally{
+         esql.cleanup();
+      }
+   }//end main
+
+   /**
+    * Checks, once per process, that the table and its triggers exist, and
+    * rebuilds the counts if they are missing, or if a rebuild was asked
+    * for with -Dhotel.regulars.rebuild=true.
+    *
+    * @param esql the database
+    * @return false when the schema lacks the table or its triggers; see NOT_MIGRATED
+    * @throws java.sql.SQLException when the check or the rebuild fails
+    */
+   public static boolean ensureBuilt(Hotel esql) throws SQLException {
+      if (_ready)
+         return true;
+      synchronized (RegularCustomers.class){
+         if (_ready)
+            return true;
+         if (esql.executeQuery("SELECT table_name FROM information_schema.tables " +
+               "WHERE table_schema = DATABASE() AND table_name = 'CustomerVisits'") == 0
+            || esql.executeQuery("SELECT trigger_name FROM information_schema.triggers WHERE trigger_schema = DATABASE() " +
+               "AND trigger_name IN ('roomBookings_countVisit', 'roomBookings_uncountVisit')") < 2)
+            return false;
+         boolean missing = esql.executeQuery("SELECT hotelID FROM CustomerVisits LIMIT 1") == 0
+            && esql.executeQuery("SELECT bookingID FROM RoomBookings LIMIT 1") > 0;
+         if (missing || Boolean.getBoolean("hotel.regulars.rebuild")){
+            System.out.print("Rebuilding regular customer counts...");
+            System.out.println(rebuild(esql) + " counts");
+         }
+         _ready = true;
+         return true;
+      }
+   }//end ensureBuilt
+
+   /**
+    * Recounts every (hotel, customer) pair from RoomBookings in one
+    * transaction.
+    *
+    * @param esql the database
+    * @return the number of counts written
+    * @throws java.sql.SQLException when the rebuild fails
+    */
+   public static int rebuild(Hotel esql) throws SQLException {
+      return esql.inTransaction(pc -> {
+         pc.statements().prepare("DELETE FROM CustomerVisits").executeUpdate();
+         return pc.statements().prepare(
+            "INSERT INTO CustomerVisits (hotelID, customerID, bookings) " +
+            "SELECT hotelID, customerID, COUNT(*) FROM RoomBookings GROUP BY hotelID, customerID").executeUpdate();
+      });
+   }//end rebuild
+}//end RegularCustomers
@@ -0,0 +1,246 @@
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Assigns repair requests to maintenance companies so that no company's
+ * backlog runs ahead of the others.  Managers submit rooms with the date
+ * the repair is due; requests wait in a queue ordered by due date and
+ * are dispatched in batches once per tick.  Each tick reads every
+ * company's outstanding load, the RoomRepairs rows dated today or later,
+ * and hands the requests, most urgent first, to the least-loaded company
+ * at that moment, counting each assignment towards its load.  The
+ * repairs of one tick are inserted in one transaction.
+ *
+ * The tick locks the MaintenanceCompany rows (SELECT ... FOR UPDATE)
+ * before reading the loads, so dispatchers in several processes, and
+ * orders placed by hand, which check the company's row, take turns and
+ * every tick sees the assignments committed before it.  If a batch fails,
+ * e.g. because one of its rooms doesn't exist, its requests are retried
+ * one by one so that only the bad ones fail.
+ *
+ */
+
+public class RepairDispatcher {
+
+   // repairs per company that are still to be done.
+   public static final String LOAD_QUERY =
+      "SELECT C.companyID, COUNT(R.repairID) FROM MaintenanceCompany C " +
+      "LEFT JOIN RoomRepairs R ON R.companyID = C.companyID AND R.repairDate >= ? " +
+      "GROUP BY C.companyID";
+   private static final String LOCK_COMPANIES =
+      "SELECT companyID FROM MaintenanceCompany ORDER BY companyID FOR UPDATE";
+
+   /**
+    * Where a request was dispatched.
+    */
+   public static class Assignment {
+      public final int repairID;
+      public final int companyID;
+      public final int hotelID;
+      public final int roomNumber;
+      public final LocalDate repairDate;
+
+      Assignment(int repairID, RepairOrders.Order order) {
+         this.repairID = repairID;
+         this.companyID = order.companyID;
+         this.hotelID = order.hotelID;
+         this.roomNumber = order.roomNumber;
+         this.repairDate = order.repairDate;
+      }
+   }//end Assignment
+
+   private static class Request {
+      final long sequence;
+      final int managerID;
+      final int hotelID;
+      final int roomNumber;
+      final LocalDate due;
+      final CompletableFuture<Assignment> result = new CompletableFuture<Assignment>();
+
+      Request(long sequence, int managerID, int hotelID, int roomNumber, LocalDate due) {
+         this.sequence = sequence;
+         this.managerID = managerID;
+         this.hotelID = hotelID;
+         this.roomNumber = roomNumber;
+         this.due = due;
+      }
+   }//end Request
+
+   // most urgent first; first come, first served within a date.
+   private static final Comparator<Request> BY_DUE = new Comparator<Request>() {
+      public int compare(Request a, Request b) {
+         int c = a.due.compareTo(b.due);
+         return c != 0 ? c : Long.compare(a.sequence, b.sequence);
+      }
+   };
+
+   // least-loaded company first, as { load, companyID }.
+   private static final Comparator<long[]> BY_LOAD = new Comparator<long[]>() {
+      public int compare(long[] a, long[] b) {
+         int c = Long.compare(a[0], b[0]);
+         return c != 0 ? c : Long.compare(a[1], b[1]);
+      }
+   };
+
+   private final Hotel _esql;
+   private final int _maxBatch;
+   private final PriorityBlockingQueue<Request> _pending = new PriorityBlockingQueue<Request>(64, BY_DUE);
+   private final AtomicLong _sequence = new AtomicLong();
+   private final ScheduledExecutorService _scheduler;
+
+   // statistics, only written by the ticking thread.
+   private volatile long _ticks = 0;
+   private volatile long _dispatched = 0;
+   private volatile long _failed = 0;
+   private volatile long _largestBatch = 0;
+
+   /**
+    * @param esql the database
+    * @param tickMillis the time between dispatches
+    * @param maxBatch the most requests dispatched per tick
+    */
+   public RepairDispatcher(Hotel esql, long tickMillis, int maxBatch) {
+      this._esql = esql;
+      this._maxBatch = Math.max(maxBatch, 1);
+      this._scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "repair-dispatcher");
+         t.setDaemon(true);
+         return t;
+      });
+      this._scheduler.scheduleWithFixedDelay(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Queues a repair for dispatch at the next tick.  The caller checks that
+    * the manager manages the hotel.
+    *
+    * @param managerID the manager asking for the repair
+    * @param hotelID the hotel
+    * @param roomNumber the room
+    * @param due the date the repair is wanted, and is booked for
+    * @return the assignment, once it is committed
+    */
+   public CompletableFuture<Assignment> submit(int managerID, int hotelID, int roomNumber, LocalDate due) {
+      Request request = new Request(this._sequence.incrementAndGet(), managerID, hotelID, roomNumber, due);
+      synchronized (this){
+         if (this._scheduler.isShutdown())
+            request.result.completeExceptionally(new IllegalStateException("The repair dispatcher is closed"));
+         else
+            this._pending.add(request);
+      }
+      return request.result;
+   }//end submit
+
+   /**
+    * @return the requests waiting for the next tick
+    */
+   public int pending() {
+      return this._pending.size();
+   }
+
+   private void tick() {
+      List<Request> batch = new ArrayList<Request>();
+      this._pending.drainTo(batch, this._maxBatch);
+      if (batch.isEmpty())
+         return;
+      // drainTo takes them in no particular order.
+      batch.sort(BY_DUE);
+      this._ticks++;
+      this._largestBatch = Math.max(this._largestBatch, batch.size());
+      try{
+         dispatch(batch);
+      }catch (SQLException | RuntimeException e){
+         if (batch.size() == 1){
+            this._failed++;
+            batch.get(0).result.completeExceptionally(e);
+            return;
+         }
+         for (Request request : batch){
+            try{
+               dispatch(Collections.singletonList(request));
+            }catch (SQLException | RuntimeException single){
+               this._failed++;
+               request.result.completeExceptionally(single);
+            }
+         }
+      }
+   }//end tick
+
+   /*
+    * Assigns and inserts one batch in one transaction, and completes its
+    * requests once it has committed.
+    */
+   private void dispatch(final List<Request> batch) throws SQLException {
+      final List<RepairOrders.Order> orders = new ArrayList<RepairOrders.Order>(batch.size());
+      List<Integer> repairIDs = this._esql.inTransaction(pc -> {
+         orders.clear();
+         // the row locks are held until the transaction ends.
+         ResultSet locked = pc.statements().prepare(LOCK_COMPANIES).executeQuery();
+         try{
+            while (locked.next()){
+               // every company row is locked as it is read.
+            }
+         }finally{
+            locked.close();
+         }
+         PreparedStatement load = pc.statements().prepare(LOAD_QUERY);
+         load.setDate(1, Date.valueOf(LocalDate.now()));
+         PriorityQueue<long[]> companies = new PriorityQueue<long[]>(BY_LOAD);
+         try (ResultSet rs = load.executeQuery()){
+            while (rs.next())
+               companies.add(new long[] { rs.getLong(2), rs.getInt(1) });
+         }
+         if (companies.isEmpty())
+            throw new SQLException("There are no maintenance companies");
+         for (Request request : batch){
+            long[] company = companies.poll();
+            orders.add(new RepairOrders.Order(request.managerID, (int) company[1],
+               request.hotelID, request.roomNumber, request.due));
+            company[0]++;
+            companies.add(company);
+         }
+         return RepairOrders.insert(pc, orders);
+      });
+      for (int i = 0; i < batch.size(); i++)
+         batch.get(i).result.complete(new Assignment(repairIDs.get(i), orders.get(i)));
+      this._dispatched += batch.size();
+   }//end dispatch
+
+   /**
+    * @return a one-line summary of the dispatching so far
+    */
+   public String getStats() {
+      return String.format("repair dispatcher ticks=%d dispatched=%d failed=%d pending=%d largestBatch=%d",
+         this._ticks, this._dispatched, this._failed, this._pending.size(), this._largestBatch);
+   }
+
+   /**
+    * Stops ticking after dispatching whatever is still queued.
+    */
+   public void close() {
+      synchronized (this){
+         this._scheduler.shutdown();
+      }
+      try{
+         this._scheduler.awaitTermination(30, TimeUnit.SECONDS);
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }
+      while (!this._pending.isEmpty())
+         tick();
+   }//end close
+}//end RepairDispatcher
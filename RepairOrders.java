@@ -0,0 +1,114 @@
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Places repair orders for one or many rooms of a hotel at once, e.g. a
+ * whole floor after a pipe burst.  The RoomRepairs rows are inserted as one
+ * JDBC batch, their repairIDs are read back with getGeneratedKeys(), and
+ * the matching RoomRepairRequests rows are inserted as a second batch, all
+ * in one transaction.  RepairDispatcher inserts orders for several
+ * companies the same way, inside its own transaction, with insert().
+ *
+ */
+
+public class RepairOrders {
+
+   private static final String INSERT_REPAIR =
+      "INSERT INTO RoomRepairs (companyID, hotelID, roomNumber, repairDate) VALUES (?, ?, ?, ?)";
+   private static final String INSERT_REQUEST =
+      "INSERT INTO RoomRepairRequests (managerID, repairID) VALUES (?, ?)";
+
+   /**
+    * One room to be repaired by one company.
+    */
+   public static class Order {
+      public final int managerID;
+      public final int companyID;
+      public final int hotelID;
+      public final int roomNumber;
+      public final LocalDate repairDate;
+
+      public Order(int managerID, int companyID, int hotelID, int roomNumber, LocalDate repairDate) {
+         this.managerID = managerID;
+         this.companyID = companyID;
+         this.hotelID = hotelID;
+         this.roomNumber = roomNumber;
+         this.repairDate = repairDate;
+      }
+   }//end Order
+
+   private RepairOrders() {
+   }
+
+   /**
+    * Orders a repair of every given room from one company.  The caller
+    * checks that the manager manages the hotel.
+    *
+    * @param esql the database
+    * @param managerID the manager placing the order
+    * @param companyID the maintenance company
+    * @param hotelID the hotel
+    * @param rooms the room numbers
+    * @param repairDate the date of the repairs
+    * @return the new repairIDs, in the order of the rooms
+    * @throws java.sql.SQLException when a room or the company doesn't exist
+    *         or the database fails; nothing is ordered
+    */
+   public static List<Integer> place(Hotel esql, int managerID, int companyID, int hotelID,
+                                     List<Integer> rooms, LocalDate repairDate) throws SQLException {
+      final List<Order> orders = new ArrayList<Order>(rooms.size());
+      for (int room : rooms)
+         orders.add(new Order(managerID, companyID, hotelID, room, repairDate));
+      if (orders.isEmpty())
+         return new ArrayList<Integer>();
+      return esql.inTransaction(pc -> insert(pc, orders));
+   }//end place
+
+   /**
+    * Inserts the RoomRepairs and RoomRepairRequests rows of some orders as
+    * two batches, in the caller's transaction.
+    *
+    * @param pc the connection of the transaction
+    * @param orders the orders
+    * @return the new repairIDs, in the order of the orders
+    * @throws java.sql.SQLException when a room or company doesn't exist or
+    *         the database fails
+    */
+   static List<Integer> insert(PooledConnection pc, List<Order> orders) throws SQLException {
+      List<Integer> repairIDs = new ArrayList<Integer>(orders.size());
+      PreparedStatement repairs = pc.statements().prepareReturningKeys(INSERT_REPAIR);
+      PreparedStatement requests = pc.statements().prepare(INSERT_REQUEST);
+      try{
+         for (Order order : orders){
+            repairs.setInt(1, order.companyID);
+            repairs.setInt(2, order.hotelID);
+            repairs.setInt(3, order.roomNumber);
+            repairs.setDate(4, Date.valueOf(order.repairDate));
+            repairs.addBatch();
+         }
+         repairs.executeBatch();
+         try (ResultSet keys = repairs.getGeneratedKeys()){
+            while (keys.next())
+               repairIDs.add(keys.getInt(1));
+         }
+         if (repairIDs.size() != orders.size())
+            throw new SQLException("Expected " + orders.size() + " repair IDs, got " + repairIDs.size());
+
+         for (int i = 0; i < orders.size(); i++){
+            requests.setInt(1, orders.get(i).managerID);
+            requests.setInt(2, repairIDs.get(i));
+            requests.addBatch();
+         }
+         requests.executeBatch();
+      }finally{
+         repairs.clearBatch();
+         requests.clearBatch();
+      }
+      return repairIDs;
+   }//end insert
+}//end RepairOrders
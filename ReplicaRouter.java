@@ -0,0 +1,272 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chooses the connection pool each statement runs on: the primary, or one
+ * of the read replicas.  Everything goes to the primary unless the thread
+ * is inside a readOnly() scope; there, plain queries go round-robin to the
+ * replicas that are currently within maxLagSeconds of the primary.  Updates
+ * and transactions always go to the primary, and so do reads made shortly
+ * after the thread's last write, so a user sees their own bookings.  Code
+ * that must read the latest data even inside a read-only operation (e.g.
+ * the availability check before a booking) opens a primary() scope.
+ *
+ * Replica lag is polled in the background with SHOW REPLICA STATUS
+ * (SHOW SLAVE STATUS before MySQL 8.0.22).  A replica that isn't
+ * replicating, can't be reached or is too far behind is skipped until a
+ * later poll finds it healthy; with no healthy replica, reads fall back to
+ * the primary.  Seconds_Behind_Source has a resolution of one second.
+ *
+ * Replicas are configured as -Dhotel.replicas=host:port[,host:port...] and
+ * use the primary's database name, user and password.  With a second
+ * local MySQL instance replicating from the first:
+ *
+ *   java -Dhotel.db.port=3306 -Dhotel.replicas=localhost:3307 Hotel
+ *
+ * cleanup() prints the reads sent to each endpoint and each replica's
+ * last known lag.
+ *
+ */
+
+public class ReplicaRouter {
+
+   /**
+    * The routing of a block of code; restores the previous one on close.
+    */
+   public static final class Scope implements AutoCloseable {
+      private final boolean _readOnly;
+
+      private Scope(boolean readOnly) {
+         this._readOnly = readOnly;
+      }
+
+      // a write made inside the scope still counts after it.
+      public void close() {
+         CONTEXT.get().readOnly = this._readOnly;
+      }
+   }//end Scope
+
+   private static final class Context {
+      boolean readOnly = false;
+      // System.nanoTime of the thread's last write, or 0.
+      long lastWrite = 0;
+   }
+
+   private static final ThreadLocal<Context> CONTEXT = ThreadLocal.withInitial(Context::new);
+
+   // one replica and what the last poll found.
+   private static final class Replica {
+      final String endpoint;
+      final ConnectionPool pool;
+      final AtomicLong reads = new AtomicLong();
+      // seconds behind the primary, or -1 when unknown or not replicating.
+      volatile long lagSeconds = -1;
+      volatile String problem = "not checked yet";
+
+      Replica(String endpoint, ConnectionPool pool) {
+         this.endpoint = endpoint;
+         this.pool = pool;
+      }
+   }//end Replica
+
+   private final ConnectionPool _primary;
+   private final Replica[] _replicas;
+   private final long _maxLagSeconds;
+   private final long _stickyNanos;
+   private final AtomicInteger _next = new AtomicInteger();
+   private final AtomicLong _primaryReads = new AtomicLong();
+   private final AtomicLong _fallbacks = new AtomicLong();
+   private final ScheduledExecutorService _lagChecker;
+
+   /**
+    * @param primary the pool of the primary
+    * @param replicaPools the pools of the replicas, by endpoint
+    * @param endpoints the replicas' host:port, for the statistics
+    * @param maxLagSeconds replicas further behind than this are skipped
+    * @param lagCheckMillis how often replica lag is polled
+    */
+   public ReplicaRouter(ConnectionPool primary, List<ConnectionPool> replicaPools, List<String> endpoints,
+                        long maxLagSeconds, long lagCheckMillis) {
+      this._primary = primary;
+      this._replicas = new Replica[replicaPools.size()];
+      for (int i = 0; i < this._replicas.length; i++)
+         this._replicas[i] = new Replica(endpoints.get(i), replicaPools.get(i));
+      this._maxLagSeconds = maxLagSeconds;
+      // a replica may be up to maxLag behind, and the last poll up to one
+      // period old, so reads stay on the primary that long after a write.
+      this._stickyNanos = TimeUnit.SECONDS.toNanos(maxLagSeconds + 1) + TimeUnit.MILLISECONDS.toNanos(lagCheckMillis);
+      if (this._replicas.length == 0){
+         this._lagChecker = null;
+         return;
+      }
+      this._lagChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "replica-lag-checker");
+         t.setDaemon(true);
+         return t;
+      });
+      this._lagChecker.scheduleWithFixedDelay(this::checkLag, 0, lagCheckMillis, TimeUnit.MILLISECONDS);
+   }//end ReplicaRouter
+
+   /**
+    * Lets plain queries of the current thread go to a replica until the
+    * scope is closed.
+    *
+    * @return the scope, to be closed in a finally block
+    */
+   public static Scope readOnly() {
+      return enter(true);
+   }
+
+   /**
+    * Sends every statement of the current thread to the primary until the
+    * scope is closed.
+    *
+    * @return the scope, to be closed in a finally block
+    */
+   public static Scope primary() {
+      return enter(false);
+   }
+
+   private static Scope enter(boolean readOnly) {
+      Context context = CONTEXT.get();
+      Scope scope = new Scope(context.readOnly);
+      context.readOnly = readOnly;
+      return scope;
+   }
+
+   /**
+    * @return when (System.nanoTime) the current thread last wrote, or 0
+    */
+   public static long lastWrite() {
+      return CONTEXT.get().lastWrite;
+   }
+
+   /**
+    * Carries a write made on another thread, e.g. an earlier request of
+    * the same server session, over to the current thread.
+    *
+    * @param nanos when (System.nanoTime) the write was made
+    */
+   public static void wroteAt(long nanos) {
+      Context context = CONTEXT.get();
+      context.lastWrite = Math.max(context.lastWrite, nanos);
+   }
+
+   /**
+    * @return the pool for an update or transaction; always the primary
+    */
+   public ConnectionPool forWrite() {
+      CONTEXT.get().lastWrite = System.nanoTime();
+      return this._primary;
+   }
+
+   /**
+    * @return the pool for a plain query of the current thread
+    */
+   public ConnectionPool forRead() {
+      Context context = CONTEXT.get();
+      if (this._replicas.length == 0 || !context.readOnly
+            || (context.lastWrite != 0 && System.nanoTime() - context.lastWrite < this._stickyNanos)){
+         this._primaryReads.incrementAndGet();
+         return this._primary;
+      }
+      int start = this._next.getAndIncrement();
+      for (int i = 0; i < this._replicas.length; i++){
+         Replica replica = this._replicas[Math.floorMod(start + i, this._replicas.length)];
+         if (replica.problem == null){
+            replica.reads.incrementAndGet();
+            return replica.pool;
+         }
+      }
+      this._fallbacks.incrementAndGet();
+      this._primaryReads.incrementAndGet();
+      return this._primary;
+   }//end forRead
+
+   private void checkLag() {
+      for (Replica replica : this._replicas){
+         try{
+            long lag = measureLag(replica.pool);
+            replica.lagSeconds = lag;
+            if (lag < 0)
+               replica.problem = "not replicating";
+            else if (lag > this._maxLagSeconds)
+               replica.problem = lag + " s behind";
+            else
+               replica.problem = null;
+         }catch (SQLException e){
+            replica.lagSeconds = -1;
+            replica.problem = "unreachable: " + e.getMessage();
+         }
+      }
+   }//end checkLag
+
+   // seconds the replica is behind, or -1 if it isn't replicating.
+   private static long measureLag(ConnectionPool pool) throws SQLException {
+      PooledConnection pc = pool.acquire();
+      try (Statement stmt = pc.connection().createStatement()){
+         ResultSet rs;
+         String column;
+         try{
+            rs = stmt.executeQuery("SHOW REPLICA STATUS");
+            column = "Seconds_Behind_Source";
+         }catch (SQLException e){
+            rs = stmt.executeQuery("SHOW SLAVE STATUS");
+            column = "Seconds_Behind_Master";
+         }
+         try{
+            if (!rs.next())
+               return -1;
+            long lag = rs.getLong(column);
+            return rs.wasNull() ? -1 : lag;
+         }finally{
+            rs.close();
+         }
+      }finally{
+         pool.release(pc);
+      }
+   }//end measureLag
+
+   /**
+    * @return the replicas' pools, for closing and statistics
+    */
+   public List<ConnectionPool> replicaPools() {
+      List<ConnectionPool> pools = new ArrayList<ConnectionPool>(this._replicas.length);
+      for (Replica replica : this._replicas)
+         pools.add(replica.pool);
+      return pools;
+   }
+
+   /**
+    * @return reads per endpoint and the replicas' last known state
+    */
+   public String getStats() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format("Routing: primary reads=%d (fallbacks=%d)", this._primaryReads.get(), this._fallbacks.get()));
+      for (Replica replica : this._replicas){
+         sb.append(String.format("%n  replica %s reads=%d lag=%s %s", replica.endpoint, replica.reads.get(),
+            replica.lagSeconds < 0 ? "?" : replica.lagSeconds + "s",
+            replica.problem == null ? "healthy" : "skipped (" + replica.problem + ")"));
+      }
+      return sb.toString();
+   }//end getStats
+
+   /**
+    * Stops polling and closes the replicas' pools; the primary's pool
+    * belongs to the caller.
+    */
+   public void close() {
+      if (this._lagChecker != null)
+         this._lagChecker.shutdownNow();
+      for (Replica replica : this._replicas)
+         replica.pool.close();
+   }
+}//end ReplicaRouter
@@ -0,0 +1,256 @@
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A whole query result held column by column in primitive arrays, for bulk
+ * reads such as cache warm-ups and reports.  Each column is stored by its
+ * SQL type: integer types as int[], BIGINT as long[], decimal and floating
+ * types as double[], DATE as LocalDate[], and everything else as String[].
+ * Values are read with the matching ResultSet getter, so nothing is
+ * formatted or parsed along the way.
+ *
+ * Rows and columns are numbered from 0.  As with JDBC, a NULL number reads
+ * as 0 and a NULL date or string as null; isNull tells them apart.
+ *
+ */
+
+public class ResultColumns {
+
+   private static final int INT = 0, LONG = 1, DOUBLE = 2, DATE = 3, STRING = 4;
+
+   private final String[] _names;
+   private final int[] _kinds;
+   private final Object[] _values;
+   private final BitSet[] _nulls;
+   private int _size = 0;
+   private int _capacity = 16;
+   // bytes of the values read: UTF-8 for strings, the width of the rest.
+   private long _bytes = 0;
+
+   private ResultColumns(ResultSetMetaData md) throws SQLException {
+      int n = md.getColumnCount();
+      this._names = new String[n];
+      this._kinds = new int[n];
+      this._values = new Object[n];
+      this._nulls = new BitSet[n];
+      for (int c = 0; c < n; c++){
+         this._names[c] = md.getColumnLabel(c + 1);
+         this._kinds[c] = kind(md.getColumnType(c + 1));
+         this._values[c] = allocate(this._kinds[c], this._capacity);
+      }
+   }
+
+   /**
+    * Reads every remaining row of a result set.
+    *
+    * @param rs the result set, positioned before its first row
+    * @return the rows
+    * @throws java.sql.SQLException when reading fails
+    */
+   public static ResultColumns read(ResultSet rs) throws SQLException {
+      ResultColumns columns = new ResultColumns(rs.getMetaData());
+      while (rs.next())
+         columns.append(rs);
+      return columns;
+   }//end read
+
+   private static int kind(int sqlType) {
+      switch (sqlType){
+         case Types.TINYINT: case Types.SMALLINT: case Types.INTEGER:
+            return INT;
+         case Types.BIGINT:
+            return LONG;
+         case Types.DECIMAL: case Types.NUMERIC: case Types.REAL: case Types.FLOAT: case Types.DOUBLE:
+            return DOUBLE;
+         case Types.DATE:
+            return DATE;
+         default:
+            return STRING;
+      }
+   }
+
+   private static Object allocate(int kind, int capacity) {
+      switch (kind){
+         case INT: return new int[capacity];
+         case LONG: return new long[capacity];
+         case DOUBLE: return new double[capacity];
+         case DATE: return new LocalDate[capacity];
+         default: return new String[capacity];
+      }
+   }
+
+   private static Object grow(Object values, int capacity) {
+      if (values instanceof int[]) return Arrays.copyOf((int[]) values, capacity);
+      if (values instanceof long[]) return Arrays.copyOf((long[]) values, capacity);
+      if (values instanceof double[]) return Arrays.copyOf((double[]) values, capacity);
+      return Arrays.copyOf((Object[]) values, capacity);
+   }
+
+   private void append(ResultSet rs) throws SQLException {
+      int row = this._size;
+      if (row == this._capacity){
+         this._capacity *= 2;
+         for (int c = 0; c < this._kinds.length; c++)
+            this._values[c] = grow(this._values[c], this._capacity);
+      }
+      for (int c = 0; c < this._kinds.length; c++){
+         int bytes;
+         switch (this._kinds[c]){
+            case INT: ((int[]) this._values[c])[row] = rs.getInt(c + 1); bytes = 4; break;
+            case LONG: ((long[]) this._values[c])[row] = rs.getLong(c + 1); bytes = 8; break;
+            case DOUBLE: ((double[]) this._values[c])[row] = rs.getDouble(c + 1); bytes = 8; break;
+            case DATE:
+               Date date = rs.getDate(c + 1);
+               ((LocalDate[]) this._values[c])[row] = date == null ? null : date.toLocalDate();
+               bytes = 8;
+               break;
+            default:
+               String value = rs.getString(c + 1);
+               ((String[]) this._values[c])[row] = value;
+               bytes = value == null ? 0 : (int) QueryStats.utf8Length(value);
+               break;
+         }
+         if (rs.wasNull()){
+            if (this._nulls[c] == null)
+               this._nulls[c] = new BitSet();
+            this._nulls[c].set(row);
+         }else{
+            this._bytes += bytes;
+         }
+      }
+      this._size++;
+   }//end append
+
+   public int size() {
+      return this._size;
+   }
+
+   /**
+    * @return the bytes of the non-null values read
+    */
+   public long bytes() {
+      return this._bytes;
+   }
+
+   public int columnCount() {
+      return this._names.length;
+   }
+
+   /**
+    * @param label the column label, ignoring case
+    * @return the column's index, or -1
+    */
+   public int columnIndex(String label) {
+      for (int c = 0; c < this._names.length; c++)
+         if (this._names[c].equalsIgnoreCase(label))
+            return c;
+      return -1;
+   }
+
+   public boolean isNull(int row, int column) {
+      check(row);
+      return this._nulls[column] != null && this._nulls[column].get(row);
+   }
+
+   public int getInt(int row, int column) {
+      check(row);
+      switch (this._kinds[column]){
+         case INT: return ((int[]) this._values[column])[row];
+         case LONG: return (int) ((long[]) this._values[column])[row];
+         case DOUBLE: return (int) ((double[]) this._values[column])[row];
+         default: throw mismatch(column, "int");
+      }
+   }
+
+   public long getLong(int row, int column) {
+      check(row);
+      switch (this._kinds[column]){
+         case INT: return ((int[]) this._values[column])[row];
+         case LONG: return ((long[]) this._values[column])[row];
+         case DOUBLE: return (long) ((double[]) this._values[column])[row];
+         default: throw mismatch(column, "long");
+      }
+   }
+
+   public double getDouble(int row, int column) {
+      check(row);
+      switch (this._kinds[column]){
+         case INT: return ((int[]) this._values[column])[row];
+         case LONG: return ((long[]) this._values[column])[row];
+         case DOUBLE: return ((double[]) this._values[column])[row];
+         default: throw mismatch(column, "double");
+      }
+   }
+
+   public LocalDate getDate(int row, int column) {
+      check(row);
+      if (this._kinds[column] != DATE)
+         throw mismatch(column, "date");
+      return ((LocalDate[]) this._values[column])[row];
+   }
+
+   /**
+    * @return the value as text, as ResultSet.getString would give it
+    *         except for DECIMAL columns, which read as doubles
+    */
+   public String getString(int row, int column) {
+      if (isNull(row, column))
+         return null;
+      switch (this._kinds[column]){
+         case INT: return String.valueOf(((int[]) this._values[column])[row]);
+         case LONG: return String.valueOf(((long[]) this._values[column])[row]);
+         case DOUBLE: return String.valueOf(((double[]) this._values[column])[row]);
+         case DATE: return ((LocalDate[]) this._values[column])[row].toString();
+         default: return ((String[]) this._values[column])[row];
+      }
+   }
+
+   /**
+    * @return a copy of an integer column, one value per row
+    */
+   public int[] ints(int column) {
+      if (this._kinds[column] != INT)
+         throw mismatch(column, "int[]");
+      return Arrays.copyOf((int[]) this._values[column], this._size);
+   }
+
+   /**
+    * @return a copy of an integer or BIGINT column, one value per row
+    */
+   public long[] longs(int column) {
+      if (this._kinds[column] == INT){
+         long[] values = new long[this._size];
+         int[] ints = (int[]) this._values[column];
+         for (int i = 0; i < this._size; i++)
+            values[i] = ints[i];
+         return values;
+      }
+      if (this._kinds[column] != LONG)
+         throw mismatch(column, "long[]");
+      return Arrays.copyOf((long[]) this._values[column], this._size);
+   }
+
+   /**
+    * @return a copy of a DATE column, one value per row
+    */
+   public LocalDate[] dates(int column) {
+      if (this._kinds[column] != DATE)
+         throw mismatch(column, "LocalDate[]");
+      return Arrays.copyOf((LocalDate[]) this._values[column], this._size);
+   }
+
+   private void check(int row) {
+      if (row < 0 || row >= this._size)
+         throw new IndexOutOfBoundsException("Row " + row + " of " + this._size);
+   }
+
+   private IllegalStateException mismatch(int column, String type) {
+      return new IllegalStateException("Column " + this._names[column] + " can't be read as " + type);
+   }
+}//end ResultColumns
@@ -0,0 +1,158 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Renders a result set as a padded text table in a single forward pass.
+ * Column widths are estimated from the headers and a bounded window of
+ * leading rows; the remaining rows are streamed straight through, so memory
+ * use does not depend on how many rows the query returns.  Values wider
+ * than their estimated column simply push the rest of the line over.
+ *
+ */
+
+public class ResultPrinter {
+
+   // default number of leading rows used to estimate column widths.
+   public static final int DEFAULT_SAMPLE_ROWS = 100;
+
+   private final int _sampleRows;
+
+   /**
+    * @param sampleRows the number of leading rows buffered to size the columns
+    */
+   public ResultPrinter(int sampleRows) {
+      this._sampleRows = Math.max(sampleRows, 0);
+   }
+
+   /**
+    * Prints a result set to standard out.
+    *
+    * @param rs a forward-only result set positioned before the first row
+    * @param meter counts the bytes of the values read
+    * @return the number of rows printed
+    * @throws java.sql.SQLException when reading the result set fails
+    */
+   public int print(ResultSet rs, QueryStats.Meter meter) throws SQLException {
+      // System.out is shared, so it is flushed but never closed.
+      Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+      try{
+         int rows = print(rs, out, meter);
+         out.flush();
+         return rows;
+      }catch (IOException e){
+         throw new SQLException("Unable to write the query result", e);
+      }
+   }//end print
+
+   /**
+    * Prints a result set to the given writer.
+    *
+    * @param rs a forward-only result set positioned before the first row
+    * @param out where the table is written; not flushed or closed
+    * @param meter counts the bytes of the values read
+    * @return the number of rows printed
+    * @throws java.sql.SQLException when reading the result set fails
+    * @throws java.io.IOException when writing fails
+    */
+   public int print(ResultSet rs, Writer out, QueryStats.Meter meter) throws SQLException, IOException {
+      ResultSetMetaData rsmd = rs.getMetaData();
+      int numCol = rsmd.getColumnCount();
+      int[] colWidths = new int[numCol];
+      String[] header = new String[numCol];
+      for (int i = 0; i < numCol; i++){
+         header[i] = rsmd.getColumnName(i + 1);
+         colWidths[i] = header[i].length();
+      }
+
+      // buffer the sample window and widen the columns to fit it.
+      String[][] sample = new String[this._sampleRows][];
+      int sampled = 0;
+      boolean more = true;
+      while (sampled < this._sampleRows && (more = rs.next())){
+         String[] record = readRow(rs, numCol, meter);
+         for (int i = 0; i < numCol; i++)
+            colWidths[i] = Math.max(colWidths[i], record[i].length());
+         sample[sampled++] = record;
+      }
+
+      StringBuilder line = new StringBuilder(128);
+      writeRow(out, line, header, colWidths);
+      for (int r = 0; r < sampled; r++){
+         writeRow(out, line, sample[r], colWidths);
+         sample[r] = null;
+      }
+
+      // stream everything after the sample window.
+      int rowCount = sampled;
+      if (more){
+         String[] record = new String[numCol];
+         while (rs.next()){
+            for (int i = 0; i < numCol; i++){
+               String value = rs.getString(i + 1);
+               meter.count(value);
+               record[i] = String.valueOf(value);
+            }
+            writeRow(out, line, record, colWidths);
+            rowCount++;
+         }
+      }
+      return rowCount;
+   }//end print
+
+   /**
+    * Prints rows that are already in memory to standard out, sizing the
+    * columns to fit every value.
+    *
+    * @param header the column names
+    * @param rows the values of each row, one entry per column
+    * @return the number of rows printed
+    */
+   public int print(String[] header, List<String[]> rows) {
+      int[] colWidths = new int[header.length];
+      for (int i = 0; i < header.length; i++)
+         colWidths[i] = header[i].length();
+      for (String[] record : rows)
+         for (int i = 0; i < header.length; i++)
+            colWidths[i] = Math.max(colWidths[i], record[i].length());
+
+      Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+      try{
+         StringBuilder line = new StringBuilder(128);
+         writeRow(out, line, header, colWidths);
+         for (String[] record : rows)
+            writeRow(out, line, record, colWidths);
+         out.flush();
+      }catch (IOException e){
+         // System.out never throws; PrintStream records the error instead.
+      }
+      return rows.size();
+   }//end print
+
+   private static String[] readRow(ResultSet rs, int numCol, QueryStats.Meter meter) throws SQLException {
+      String[] record = new String[numCol];
+      for (int i = 0; i < numCol; i++){
+         String value = rs.getString(i + 1);
+         meter.count(value);
+         record[i] = String.valueOf(value);
+      }
+      return record;
+   }
+
+   private static void writeRow(Writer out, StringBuilder line, String[] values, int[] colWidths) throws IOException {
+      line.setLength(0);
+      for (int i = 0; i < values.length; i++){
+         line.append(values[i]);
+         for (int pad = colWidths[i] - values[i].length(); pad > 0; pad--)
+            line.append(' ');
+         line.append("  ");
+      }
+      line.append(System.lineSeparator());
+      out.append(line);
+   }
+}//end ResultPrinter
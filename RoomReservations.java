@@ -0,0 +1,349 @@
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The booking path for room-nights and multi-night stays.  A single night
+ * is booked with one INSERT ... SELECT that only succeeds if the room
+ * exists; a stay inserts all of its nights in one batch inside one
+ * transaction.  The unique index uq_roomBookings_slot on (hotelID,
+ * roomNumber, bookingDate) makes the database reject a second booking of
+ * the same slot, so two sessions can never double-book a room no matter
+ * how they interleave.
+ *
+ * While a customer is looking at the price, the slot can be held for a
+ * short time so that other sessions in this process see it as taken
+ * instead of racing for it.  Holds are only a courtesy; the unique index
+ * is what guarantees correctness, including across processes.
+ *
+ */
+
+public class RoomReservations {
+
+   /**
+    * The result of a booking attempt.
+    */
+   public enum Outcome {
+      BOOKED,        // the room-night is now booked for the customer
+      CONFLICT,      // someone else booked or is holding the room-night
+      NO_SUCH_ROOM   // the hotel has no such room
+   }
+
+   /**
+    * A short-lived claim on one room-night.
+    */
+   public static class Hold {
+      public final int customerID;
+      public final int hotelID;
+      public final int roomNumber;
+      public final LocalDate date;
+      final long expiresAt;
+
+      Hold(int customerID, int hotelID, int roomNumber, LocalDate date, long expiresAt) {
+         this.customerID = customerID;
+         this.hotelID = hotelID;
+         this.roomNumber = roomNumber;
+         this.date = date;
+         this.expiresAt = expiresAt;
+      }
+
+      boolean expired(long now) {
+         return now - this.expiresAt > 0;
+      }
+   }//end Hold
+
+   /**
+    * Price and availability of a room for a run of consecutive nights.
+    */
+   public static class StayQuote {
+      public final boolean roomExists;
+      public final int pricePerNight;
+      public final int nights;
+      public final List<LocalDate> bookedNights;
+
+      StayQuote(boolean roomExists, int pricePerNight, int nights, List<LocalDate> bookedNights) {
+         this.roomExists = roomExists;
+         this.pricePerNight = pricePerNight;
+         this.nights = nights;
+         this.bookedNights = bookedNights;
+      }
+
+      /**
+       * @return the price of the whole stay
+       */
+      public long total() {
+         return (long) this.pricePerNight * this.nights;
+      }
+   }//end StayQuote
+
+   // key of the holds map; one per (hotelID, roomNumber, bookingDate).
+   private static final class Slot {
+      final int hotelID;
+      final int roomNumber;
+      final LocalDate date;
+
+      Slot(int hotelID, int roomNumber, LocalDate date) {
+         this.hotelID = hotelID;
+         this.roomNumber = roomNumber;
+         this.date = date;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         if (!(o instanceof Slot))
+            return false;
+         Slot s = (Slot) o;
+         return this.hotelID == s.hotelID && this.roomNumber == s.roomNumber && this.date.equals(s.date);
+      }
+
+      @Override
+      public int hashCode() {
+         return (this.hotelID * 31 + this.roomNumber) * 31 + this.date.hashCode();
+      }
+   }//end Slot
+
+   // MySQL error raised for a duplicate key.
+   private static final int ER_DUP_ENTRY = 1062;
+
+   private static final String BOOK_ROOM =
+      "INSERT INTO RoomBookings (customerID, hotelID, roomNumber, bookingDate) " +
+      "SELECT ?, hotelID, roomNumber, ? FROM Rooms WHERE hotelID = ? AND roomNumber = ?";
+
+   // price of a room plus every night already booked in [checkIn, checkOut).
+   private static final String QUOTE_STAY =
+      "SELECT r.price, b.bookingDate FROM Rooms r " +
+      "LEFT JOIN RoomBookings b ON b.hotelID = r.hotelID AND b.roomNumber = r.roomNumber " +
+      "AND b.bookingDate >= ? AND b.bookingDate < ? " +
+      "WHERE r.hotelID = ? AND r.roomNumber = ?";
+
+   private static final String BOOK_NIGHT =
+      "INSERT INTO RoomBookings (customerID, hotelID, roomNumber, bookingDate) VALUES (?, ?, ?, ?)";
+
+   // longest stay accepted in one booking.
+   public static final int MAX_NIGHTS = 366;
+
+   private final ConcurrentHashMap<Slot, Hold> _holds = new ConcurrentHashMap<Slot, Hold>();
+   private final long _holdNanos;
+   private final int _maxAttempts;
+
+   /**
+    * @param holdMillis how long a hold keeps other sessions away
+    * @param maxAttempts how many times a booking is tried when the database
+    *        reports a transient failure such as a deadlock or lock timeout
+    */
+   public RoomReservations(long holdMillis, int maxAttempts) {
+      this._holdNanos = TimeUnit.MILLISECONDS.toNanos(holdMillis);
+      this._maxAttempts = Math.max(maxAttempts, 1);
+   }
+
+   /**
+    * Places a hold on a room-night for a customer.  A customer who already
+    * holds the slot gets the hold renewed.
+    *
+    * @return the hold, or null if another customer currently holds the slot
+    */
+   public Hold hold(int customerID, int hotelID, int roomNumber, LocalDate date) {
+      final long now = System.nanoTime();
+      final Hold mine = new Hold(customerID, hotelID, roomNumber, date, now + this._holdNanos);
+      Hold winner = this._holds.merge(new Slot(hotelID, roomNumber, date), mine,
+         (current, wanted) -> current.customerID == wanted.customerID || current.expired(now) ? wanted : current);
+      return winner == mine ? mine : null;
+   }//end hold
+
+   /**
+    * Gives up a hold without booking.
+    */
+   public void release(Hold hold) {
+      if (hold != null)
+         this._holds.remove(new Slot(hold.hotelID, hold.roomNumber, hold.date), hold);
+   }
+
+   /**
+    * Books the room-night covered by a hold and releases the hold.  The
+    * hold does not have to be live: the database has the final word.
+    *
+    * @param esql the database
+    * @param hold a hold obtained from hold()
+    * @return the outcome of the booking
+    * @throws java.sql.SQLException on a non-transient database failure, or
+    *         when every attempt failed transiently
+    */
+   public Outcome confirm(Hotel esql, Hold hold) throws SQLException {
+      try{
+         Outcome outcome = insert(esql, hold.customerID, hold.hotelID, hold.roomNumber, hold.date);
+         if (outcome != Outcome.NO_SUCH_ROOM)
+            esql.availability().markBooked(hold.hotelID, hold.roomNumber, hold.date);
+         return outcome;
+      }finally{
+         release(hold);
+      }
+   }//end confirm
+
+   /**
+    * Books a room-night in one step, for callers that don't need to show
+    * the price first.
+    *
+    * @return the outcome of the booking
+    * @throws java.sql.SQLException on a non-transient database failure
+    */
+   public Outcome book(Hotel esql, int customerID, int hotelID, int roomNumber, LocalDate date) throws SQLException {
+      Hold hold = hold(customerID, hotelID, roomNumber, date);
+      if (hold == null)
+         return Outcome.CONFLICT;
+      return confirm(esql, hold);
+   }//end book
+
+   /**
+    * Prices a stay and lists the nights on which the room is already
+    * booked, in one round trip.
+    *
+    * @param esql the database
+    * @param checkIn the first night
+    * @param nights the number of consecutive nights
+    * @return the quote
+    * @throws java.sql.SQLException when the query fails
+    */
+   public StayQuote quoteStay(Hotel esql, int hotelID, int roomNumber, LocalDate checkIn, int nights) throws SQLException {
+      checkNights(nights);
+      ResultColumns rows = esql.executeQueryForColumns(QUOTE_STAY,
+         Date.valueOf(checkIn), Date.valueOf(checkIn.plusDays(nights)), hotelID, roomNumber);
+      return toQuote(rows, nights);
+   }//end quoteStay
+
+   private static StayQuote toQuote(ResultColumns rows, int nights) {
+      if (rows.size() == 0)
+         return new StayQuote(false, 0, nights, new ArrayList<LocalDate>());
+      List<LocalDate> booked = new ArrayList<LocalDate>();
+      for (int row = 0; row < rows.size(); row++)
+         if (!rows.isNull(row, 1))
+            booked.add(rows.getDate(row, 1));
+      return new StayQuote(true, rows.getInt(0, 0), nights, booked);
+   }
+
+   private static void checkNights(int nights) {
+      if (nights < 1 || nights > MAX_NIGHTS)
+         throw new IllegalArgumentException("A stay must be between 1 and " + MAX_NIGHTS + " nights");
+   }
+
+   /**
+    * Books every night of a stay, all or nothing.  Availability of the
+    * whole range is checked with one query and the nights are inserted
+    * with one JDBC batch, inside a single transaction.
+    *
+    * @param esql the database
+    * @param customerID the guest
+    * @param checkIn the first night
+    * @param nights the number of consecutive nights
+    * @return BOOKED, CONFLICT if any night is taken, or NO_SUCH_ROOM
+    * @throws java.sql.SQLException on a non-transient database failure
+    */
+   public Outcome bookStay(Hotel esql, final int customerID, final int hotelID, final int roomNumber,
+                           final LocalDate checkIn, final int nights) throws SQLException {
+      checkNights(nights);
+      for (int attempt = 1; ; attempt++){
+         try{
+            Outcome outcome = esql.inTransaction(pc -> {
+               PreparedStatement quote = pc.statements().prepare(QUOTE_STAY);
+               quote.setDate(1, Date.valueOf(checkIn));
+               quote.setDate(2, Date.valueOf(checkIn.plusDays(nights)));
+               quote.setInt(3, hotelID);
+               quote.setInt(4, roomNumber);
+               boolean exists = false, free = true;
+               try (ResultSet rs = quote.executeQuery()){
+                  while (rs.next()){
+                     exists = true;
+                     free &= rs.getDate(2) == null;
+                  }
+               }
+               if (!exists)
+                  return Outcome.NO_SUCH_ROOM;
+               if (!free)
+                  return Outcome.CONFLICT;
+
+               PreparedStatement insert = pc.statements().prepare(BOOK_NIGHT);
+               for (int n = 0; n < nights; n++){
+                  insert.setInt(1, customerID);
+                  insert.setInt(2, hotelID);
+                  insert.setInt(3, roomNumber);
+                  insert.setDate(4, Date.valueOf(checkIn.plusDays(n)));
+                  insert.addBatch();
+               }
+               try{
+                  insert.executeBatch();
+               }finally{
+                  insert.clearBatch();
+               }
+               return Outcome.BOOKED;
+            });
+            if (outcome == Outcome.BOOKED)
+               for (int n = 0; n < nights; n++)
+                  esql.availability().markBooked(hotelID, roomNumber, checkIn.plusDays(n));
+            return outcome;
+         }catch (SQLException e){
+            // a night booked between the check and the batch trips the unique index.
+            if (isDuplicate(e))
+               return Outcome.CONFLICT;
+            if (!isTransient(e) || attempt >= this._maxAttempts)
+               throw e;
+            backoff(attempt);
+         }
+      }
+   }//end bookStay
+
+   private Outcome insert(Hotel esql, int customerID, int hotelID, int roomNumber, LocalDate date) throws SQLException {
+      for (int attempt = 1; ; attempt++){
+         try{
+            int rows = esql.executeUpdate(BOOK_ROOM, customerID, Date.valueOf(date), hotelID, roomNumber);
+            return rows == 0 ? Outcome.NO_SUCH_ROOM : Outcome.BOOKED;
+         }catch (SQLException e){
+            if (isDuplicate(e))
+               return Outcome.CONFLICT;
+            if (!isTransient(e) || attempt >= this._maxAttempts)
+               throw e;
+            backoff(attempt);
+         }
+      }
+   }//end insert
+
+   /**
+    * @return true if the exception reports a unique-key violation
+    */
+   static boolean isDuplicate(SQLException e) {
+      // batch failures wrap the statement error, so look down the chain too.
+      for (Throwable t = e; t != null; t = t.getCause()){
+         if (t instanceof SQLException && ((SQLException) t).getErrorCode() == ER_DUP_ENTRY)
+            return true;
+      }
+      SQLException next = e.getNextException();
+      return next != null && next != e && isDuplicate(next);
+   }
+
+   /**
+    * @return true if retrying the statement may succeed (deadlock, lock
+    *         wait timeout, serialization failure)
+    */
+   static boolean isTransient(SQLException e) {
+      return e instanceof SQLTransientException
+         || "40001".equals(e.getSQLState())
+         || e.getErrorCode() == 1205 || e.getErrorCode() == 1213;
+   }
+
+   static void backoff(int attempt) throws SQLException {
+      try{
+         // jittered exponential backoff: 5, 10, 20 ... ms
+         long base = 5L << Math.min(attempt - 1, 6);
+         Thread.sleep(base + ThreadLocalRandom.current().nextLong(base));
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while retrying a booking", e);
+      }
+   }
+}//end RoomReservations
@@ -0,0 +1,148 @@
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * "Any room under $X within N units of me, free on date D."  The hotel
+ * index picks the candidate hotels in memory, nearest first; a single
+ * query then filters their rooms by price and by the absence of a booking
+ * on the date (a probe of uq_roomBookings_slot per room), ranks them and
+ * returns the first few.  One round trip whatever the number of hotels.
+ *
+ * The hotel list is padded to the next power of two so that the number
+ * of distinct SQL templates, and so of cached prepared statements, stays
+ * small.  Only the nearest MAX_HOTELS hotels are searched.
+ *
+ */
+
+public class RoomSearch {
+
+   // most hotels searched per query; also the largest IN list.
+   public static final int MAX_HOTELS = 256;
+
+   public enum Ranking {
+      DISTANCE, PRICE
+   }
+
+   /**
+    * One free room.
+    */
+   public static class Result {
+      public final SpatialIndex.HotelLocation hotel;
+      public final double distance;
+      public final int roomNumber;
+      public final int price;
+
+      Result(SpatialIndex.HotelLocation hotel, double distance, int roomNumber, int price) {
+         this.hotel = hotel;
+         this.distance = distance;
+         this.roomNumber = roomNumber;
+         this.price = price;
+      }
+   }//end Result
+
+   // nearest first, then cheapest; and cheapest first, then nearest.
+   private static final Comparator<Result> BY_DISTANCE = new Comparator<Result>() {
+      public int compare(Result a, Result b) {
+         int c = Double.compare(a.distance, b.distance);
+         if (c == 0)
+            c = Integer.compare(a.price, b.price);
+         return c != 0 ? c : Integer.compare(a.roomNumber, b.roomNumber);
+      }
+   };
+   private static final Comparator<Result> BY_PRICE = new Comparator<Result>() {
+      public int compare(Result a, Result b) {
+         int c = Integer.compare(a.price, b.price);
+         if (c == 0)
+            c = Double.compare(a.distance, b.distance);
+         return c != 0 ? c : Integer.compare(a.roomNumber, b.roomNumber);
+      }
+   };
+
+   // the query for each padded list size and ranking, built once.
+   private static final Map<String, String> QUERIES = Collections.synchronizedMap(new HashMap<String, String>());
+
+   private RoomSearch() {
+   }
+
+   /**
+    * Finds free rooms near a point.
+    *
+    * @param esql the database
+    * @param latitude the guest's latitude
+    * @param longitude the guest's longitude
+    * @param radius the maximum distance to the hotel
+    * @param minPrice the lowest price, inclusive
+    * @param maxPrice the highest price, inclusive
+    * @param date the night the room must be free
+    * @param ranking the order of the results
+    * @param limit the maximum number of results
+    * @return the free rooms, best first
+    * @throws java.sql.SQLException when the query fails
+    */
+   public static List<Result> search(Hotel esql, double latitude, double longitude, double radius,
+                                     int minPrice, int maxPrice, LocalDate date, Ranking ranking, final int limit)
+         throws SQLException {
+      List<SpatialIndex.Match> hotels = esql.hotelIndex().withinRadius(latitude, longitude, radius);
+      if (hotels.isEmpty() || limit <= 0 || minPrice > maxPrice)
+         return new ArrayList<Result>();
+      if (hotels.size() > MAX_HOTELS)
+         hotels = hotels.subList(0, MAX_HOTELS);
+
+      final Map<Integer, SpatialIndex.Match> byID = new HashMap<Integer, SpatialIndex.Match>(hotels.size() * 2);
+      int slots = Integer.highestOneBit(hotels.size() * 2 - 1);
+      List<Object> hotelIDs = new ArrayList<Object>(slots);
+      for (int i = 0; i < slots; i++){
+         // padding repeats the farthest hotel, which changes nothing.
+         SpatialIndex.Match m = hotels.get(Math.min(i, hotels.size() - 1));
+         byID.put(m.hotel.hotelID, m);
+         hotelIDs.add(m.hotel.hotelID);
+      }
+      List<Object> params = new ArrayList<Object>(hotelIDs);
+      params.add(minPrice);
+      params.add(maxPrice);
+      params.add(Date.valueOf(date));
+      params.addAll(hotelIDs);
+      params.add(limit);
+
+      final Comparator<Result> order = ranking == Ranking.DISTANCE ? BY_DISTANCE : BY_PRICE;
+      return esql.executeQueryAndHandle(query(slots, ranking), rs -> {
+         List<Result> results = new ArrayList<Result>(limit);
+         while (rs.next()){
+            SpatialIndex.Match m = byID.get(rs.getInt(1));
+            results.add(new Result(m.hotel, m.distance, rs.getInt(2), rs.getInt(3)));
+         }
+         // FIELD() ranks by hotel only; settle ties exactly.
+         Collections.sort(results, order);
+         return results;
+      }, params.toArray());
+   }//end search
+
+   private static String query(int slots, Ranking ranking) {
+      String key = slots + ":" + ranking;
+      String sql = QUERIES.get(key);
+      if (sql != null)
+         return sql;
+      StringBuilder list = new StringBuilder();
+      for (int i = 0; i < slots; i++)
+         list.append(i == 0 ? "?" : ", ?");
+      // FIELD() gives each hotel's position in the nearest-first list, so
+      // rooms cut off by the LIMIT are the ones the comparator ranks last.
+      String orderBy = ranking == Ranking.DISTANCE
+         ? "ORDER BY FIELD(R.hotelID, " + list + "), R.price, R.roomNumber "
+         : "ORDER BY R.price, FIELD(R.hotelID, " + list + "), R.roomNumber ";
+      sql = "SELECT R.hotelID, R.roomNumber, R.price FROM Rooms R " +
+            "WHERE R.hotelID IN (" + list + ") AND R.price BETWEEN ? AND ? " +
+            "AND NOT EXISTS (SELECT 1 FROM RoomBookings B " +
+            "WHERE B.hotelID = R.hotelID AND B.roomNumber = R.roomNumber AND B.bookingDate = ?) " +
+            orderBy + "LIMIT ?";
+      QUERIES.put(key, sql);
+      return sql;
+   }//end query
+}//end RoomSearch
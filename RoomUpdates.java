@@ -0,0 +1,115 @@
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+/**
+ * Applies a batch of room changes (price and/or imageURL) together with
+ * their RoomUpdatesLog rows in a single transaction.  The updates and the
+ * log inserts each go to the server as one JDBC batch, and the whole set
+ * costs one commit; either every change is applied and logged or none is.
+ *
+ */
+
+public class RoomUpdates {
+
+   // a null parameter leaves the column unchanged.
+   private static final String UPDATE_ROOM =
+      "UPDATE Rooms SET price = COALESCE(?, price), imageURL = COALESCE(?, imageURL) " +
+      "WHERE hotelID = ? AND roomNumber = ?";
+   private static final String LOG_UPDATE =
+      "INSERT INTO RoomUpdatesLog (managerID, hotelID, roomNumber, updatedOn) VALUES (?, ?, ?, ?)";
+
+   /**
+    * One change to one room.
+    */
+   public static class Change {
+      public final int hotelID;
+      public final int roomNumber;
+      // the new values, or null to keep the current one.
+      public final Integer price;
+      public final String imageURL;
+
+      public Change(int hotelID, int roomNumber, Integer price, String imageURL) {
+         if (price == null && imageURL == null)
+            throw new IllegalArgumentException("A change needs a price or an imageURL");
+         if (price != null && price < 0)
+            throw new IllegalArgumentException("Negative price for room " + roomNumber);
+         this.hotelID = hotelID;
+         this.roomNumber = roomNumber;
+         this.price = price;
+         this.imageURL = imageURL;
+      }
+
+      public static Change price(int hotelID, int roomNumber, int price) {
+         return new Change(hotelID, roomNumber, price, null);
+      }
+
+      public static Change imageURL(int hotelID, int roomNumber, String imageURL) {
+         return new Change(hotelID, roomNumber, null, imageURL);
+      }
+   }//end Change
+
+   private RoomUpdates() {
+   }
+
+   /**
+    * Applies and logs a batch of changes.  The caller checks that the
+    * manager manages every hotel in the batch.
+    *
+    * @param esql the database
+    * @param managerID the manager making the changes, recorded in the log
+    * @param changes the changes, applied in order
+    * @return the number of rooms changed
+    * @throws java.sql.SQLException when a room doesn't exist or the database
+    *         fails; nothing is applied
+    */
+   public static int apply(Hotel esql, final int managerID, final List<Change> changes) throws SQLException {
+      if (changes.isEmpty())
+         return 0;
+      // the log keeps minute precision, as it always has.
+      final Timestamp updatedOn = Timestamp.valueOf(LocalDateTime.now().truncatedTo(ChronoUnit.MINUTES));
+      esql.inTransaction(pc -> {
+         PreparedStatement update = pc.statements().prepare(UPDATE_ROOM);
+         PreparedStatement log = pc.statements().prepare(LOG_UPDATE);
+         try{
+            for (Change change : changes){
+               if (change.price == null)
+                  update.setNull(1, Types.INTEGER);
+               else
+                  update.setInt(1, change.price);
+               update.setString(2, change.imageURL);
+               update.setInt(3, change.hotelID);
+               update.setInt(4, change.roomNumber);
+               update.addBatch();
+               log.setInt(1, managerID);
+               log.setInt(2, change.hotelID);
+               log.setInt(3, change.roomNumber);
+               log.setTimestamp(4, updatedOn);
+               log.addBatch();
+            }
+            int[] counts = update.executeBatch();
+            for (int i = 0; i < counts.length; i++){
+               // SUCCESS_NO_INFO is only reported for rows that did match.
+               if (counts[i] == 0 || counts[i] == Statement.EXECUTE_FAILED){
+                  Change change = changes.get(i);
+                  throw new SQLException("No such room: hotel " + change.hotelID + ", room " + change.roomNumber);
+               }
+            }
+            log.executeBatch();
+         }finally{
+            update.clearBatch();
+            log.clearBatch();
+         }
+         return null;
+      });
+      for (Change change : changes)
+         if (change.price != null)
+            esql.availability().updatePrice(change.hotelID, change.roomNumber, change.price);
+      return changes.size();
+   }//end apply
+}//end RoomUpdates
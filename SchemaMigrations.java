@@ -0,0 +1,393 @@
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Versioned schema changes for databases created from older copies of
+ * create_tables.sql / create_indexes.sql.  Every migration is applied once,
+ * in version order, and recorded in schema_version.  Steps check the
+ * catalog before they change anything, so on a schema created from the
+ * current SQL files every migration finds nothing to do.
+ *
+ * Each migration names the queries it is meant to help.  Before and after
+ * applying it the runner prints their EXPLAIN plan and their latency over
+ * hotel.migrate.benchRuns executions (default 200), so the effect of
+ * every change is on record.
+ *
+ * Usage:
+ *   java [-Dhotel.db.*=...] SchemaMigrations [migrate | status | benchmark]
+ *
+ * Migration 2 makes a room-night unique.  A database that already has a
+ * room booked twice for the same night stops there, with the nights
+ * listed, unless -Dhotel.migrate.dropDoubleBookings=true is given: then
+ * every such night keeps its lowest bookingID and the other bookings are
+ * printed and deleted.
+ *
+ * Run one instance at a time; DDL is not transactional in MySQL, so a
+ * migration that fails part way is re-run from its first step, which its
+ * checks make safe.
+ *
+ */
+
+public class SchemaMigrations {
+
+   /**
+    * One change to the schema.
+    */
+   interface Step {
+      void apply(Hotel esql) throws SQLException;
+   }
+
+   // values for the '?' of a benchmark query, from one sampled booking.
+   private static class Sample {
+      int hotelID;
+      int roomNumber;
+      int customerID;
+      Date date;
+      double latitude;
+      double longitude;
+   }
+
+   interface Params {
+      Object[] of(Sample s);
+   }
+
+   private static class Benchmark {
+      final String name;
+      final String sql;
+      final Params params;
+
+      Benchmark(String name, String sql, Params params) {
+         this.name = name;
+         this.sql = sql;
+         this.params = params;
+      }
+   }//end Benchmark
+
+   private static class Migration {
+      final int version;
+      final String description;
+      final List<Step> steps = new ArrayList<Step>();
+      final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+      Migration(int version, String description) {
+         this.version = version;
+         this.description = description;
+      }
+
+      Migration step(Step step) {
+         this.steps.add(step);
+         return this;
+      }
+
+      Migration benchmark(String name, String sql, Params params) {
+         this.benchmarks.add(new Benchmark(name, sql, params));
+         return this;
+      }
+   }//end Migration
+
+   private static final String CREATE_VERSION_TABLE =
+      "CREATE TABLE IF NOT EXISTS schema_version (version integer NOT NULL, " +
+      "description varchar(200) NOT NULL, appliedOn timestamp NOT NULL, PRIMARY KEY(version))";
+
+   // every migration, in version order.
+   private static final List<Migration> MIGRATIONS = Arrays.asList(
+      new Migration(1, "Replace the plpgsql calculate_distance with a MySQL function")
+         .step(sql("DROP FUNCTION IF EXISTS calculate_distance",
+                   "CREATE FUNCTION calculate_distance(lat1 double, long1 double, lat2 double, long2 double) " +
+                   "RETURNS double DETERMINISTIC NO SQL " +
+                   "RETURN sqrt((lat1 - lat2) * (lat1 - lat2) + (long1 - long2) * (long1 - long2))"))
+         .benchmark("hotels within 30 units",
+                    "SELECT hotelID FROM Hotel WHERE calculate_distance(latitude, longitude, ?, ?) <= 30",
+                    s -> new Object[] { s.latitude, s.longitude }),
+
+      new Migration(2, "Unique room-night index and covering booking-history index")
+         .step(resolveDoubleBookings())
+         .step(ensureIndex("RoomBookings", "uq_roomBookings_slot", true, "hotelID", "roomNumber", "bookingDate"))
+         .step(ensureIndex("RoomBookings", "index_hotelBookingHistory", false,
+                           "hotelID", "bookingDate", "bookingID", "roomNumber"))
+         .benchmark("room-night probe",
+                    "SELECT bookingID FROM RoomBookings WHERE hotelID = ? AND roomNumber = ? AND bookingDate = ?",
+                    s -> new Object[] { s.hotelID, s.roomNumber, s.date })
+         .benchmark("rooms booked on a date",
+                    "SELECT roomNumber FROM RoomBookings WHERE hotelID = ? AND bookingDate = ?",
+                    s -> new Object[] { s.hotelID, s.date })
+         .benchmark("booking history page",
+                    "SELECT bookingID, bookingDate FROM RoomBookings WHERE hotelID = ? AND bookingDate >= ? " +
+                    "ORDER BY bookingDate, bookingID LIMIT 50",
+                    s -> new Object[] { s.hotelID, s.date }),
+
+      new Migration(3, "Drop indexes that can never be used")
+         // partial on "bookingDate IS NULL" for a NOT NULL column
+         .step(dropIndex("RoomBookings", "index_bookingDate"))
+         // a copy of the Rooms primary key
+         .step(dropIndex("Rooms", "index_roomNumber"))
+         .benchmark("rooms of a hotel",
+                    "SELECT roomNumber, price FROM Rooms WHERE hotelID = ? ORDER BY roomNumber",
+                    s -> new Object[] { s.hotelID }),
+
+      new Migration(4, "Per-hotel customer booking counts for the regulars report")
+         .step(sql("CREATE TABLE IF NOT EXISTS CustomerVisits (hotelID integer NOT NULL, customerID integer NOT NULL, " +
+                   "bookings integer NOT NULL, PRIMARY KEY(hotelID, customerID))"))
+         .step(ensureIndex("CustomerVisits", "index_customerVisits", false, "hotelID", "bookings"))
+         .step(ensureTrigger("roomBookings_countVisit",
+                   "CREATE TRIGGER roomBookings_countVisit AFTER INSERT ON RoomBookings FOR EACH ROW " +
+                   "INSERT INTO CustomerVisits (hotelID, customerID, bookings) VALUES (NEW.hotelID, NEW.customerID, 1) " +
+                   "ON DUPLICATE KEY UPDATE bookings = bookings + 1"))
+         .step(ensureTrigger("roomBookings_uncountVisit",
+                   "CREATE TRIGGER roomBookings_uncountVisit AFTER DELETE ON RoomBookings FOR EACH ROW " +
+                   "UPDATE CustomerVisits SET bookings = bookings - 1 " +
+                   "WHERE hotelID = OLD.hotelID AND customerID = OLD.customerID"))
+         .step(esql -> RegularCustomers.rebuild(esql))
+         .benchmark("top 5 regular customers", RegularCustomers.TOP_QUERY,
+                    s -> new Object[] { s.hotelID, 5 }),
+
+      new Migration(5, "Outstanding repairs per maintenance company")
+         .step(ensureIndex("RoomRepairs", "index_companyRepairs", false, "companyID", "repairDate"))
+         .benchmark("company repair loads", RepairDispatcher.LOAD_QUERY,
+                    s -> new Object[] { s.date })
+   );
+
+   private final Hotel _esql;
+   private final int _benchRuns;
+
+   public SchemaMigrations(Hotel esql, int benchRuns) {
+      this._esql = esql;
+      this._benchRuns = benchRuns;
+   }
+
+   public static void main (String[] args) throws Exception {
+      String command = args.length > 0 ? args[0] : "migrate";
+      Hotel esql = Hotel.connect();
+      try{
+         SchemaMigrations migrations = new SchemaMigrations(esql, Integer.getInteger("hotel.migrate.benchRuns", 200));
+         if (command.equals("migrate"))
+            migrations.migrate();
+         else if (command.equals("status"))
+            migrations.status();
+         else if (command.equals("benchmark"))
+            migrations.benchmarkAll();
+         else
+            System.err.println ("Usage: java SchemaMigrations [migrate | status | benchmark]");
+      }finally{
+         esql.cleanup();
+      }
+   }//end main
+
+   // ---------------------------------------------------------------- steps
+
+   static Step sql(final String... statements) {
+      return esql -> {
+         for (String statement : statements)
+            esql.executeUpdate(statement);
+      };
+   }
+
+   /*
+    * Creates an index, or recreates it if it exists with other columns.
+    */
+   static Step ensureIndex(final String table, final String index, final boolean unique, final String... columns) {
+      return esql -> {
+         List<String> existing = indexColumns(esql, table, index);
+         if (existing.equals(Arrays.asList(columns)))
+            return;
+         if (!existing.isEmpty())
+            esql.executeUpdate("DROP INDEX " + index + " ON " + table);
+         esql.executeUpdate("CREATE " + (unique ? "UNIQUE " : "") + "INDEX " + index
+            + " ON " + table + " (" + String.join(", ", columns) + ")");
+      };
+   }
+
+   /*
+    * Finds the room-nights booked more than once, which the unique slot
+    * index would reject, and either fails with them listed or keeps the
+    * first booking of each.
+    */
+   static Step resolveDoubleBookings() {
+      return esql -> {
+         if (!indexColumns(esql, "RoomBookings", "uq_roomBookings_slot").isEmpty())
+            return;
+         List<Object[]> slots = esql.executeQueryAndMap(
+            "SELECT hotelID, roomNumber, bookingDate, COUNT(*) FROM RoomBookings " +
+            "GROUP BY hotelID, roomNumber, bookingDate HAVING COUNT(*) > 1 ORDER BY hotelID, roomNumber, bookingDate",
+            rs -> new Object[] { rs.getInt(1), rs.getInt(2), rs.getDate(3), rs.getInt(4) });
+         if (slots.isEmpty())
+            return;
+         if (!Boolean.getBoolean("hotel.migrate.dropDoubleBookings")){
+            for (Object[] slot : slots.subList(0, Math.min(slots.size(), 20)))
+               System.out.printf("  double booked: hotel %d room %d on %s, %d bookings%n", slot);
+            throw new SQLException(slots.size() + " room-night(s) are booked more than once, so the unique " +
+               "room-night index can't be created.  Resolve them, or re-run with " +
+               "-Dhotel.migrate.dropDoubleBookings=true to keep the lowest bookingID of each");
+         }
+         int deleted = 0;
+         for (Object[] slot : slots){
+            List<int[]> bookings = esql.executeQueryAndMap(
+               "SELECT bookingID, customerID FROM RoomBookings " +
+               "WHERE hotelID = ? AND roomNumber = ? AND bookingDate = ? ORDER BY bookingID",
+               rs -> new int[] { rs.getInt(1), rs.getInt(2) }, slot[0], slot[1], slot[2]);
+            for (int[] booking : bookings.subList(1, bookings.size())){
+               System.out.printf("  deleting booking %d of customer %d: hotel %d room %d on %s, kept booking %d%n",
+                  booking[0], booking[1], slot[0], slot[1], slot[2], bookings.get(0)[0]);
+               deleted += esql.executeUpdate("DELETE FROM RoomBookings WHERE bookingID = ?", booking[0]);
+            }
+         }
+         System.out.printf("  deleted %d double booking(s) from %d room-night(s)%n", deleted, slots.size());
+      };
+   }
+
+   static Step dropIndex(final String table, final String index) {
+      return esql -> {
+         if (!indexColumns(esql, table, index).isEmpty())
+            esql.executeUpdate("DROP INDEX " + index + " ON " + table);
+      };
+   }
+
+   static Step ensureTrigger(final String trigger, final String create) {
+      return esql -> {
+         if (esql.executeQuery("SELECT trigger_name FROM information_schema.triggers " +
+               "WHERE trigger_schema = DATABASE() AND trigger_name = ?", trigger) == 0)
+            esql.executeUpdate(create);
+      };
+   }
+
+   private static List<String> indexColumns(Hotel esql, String table, String index) throws SQLException {
+      return esql.executeQueryAndHandle(
+         "SELECT column_name FROM information_schema.statistics " +
+         "WHERE table_schema = DATABASE() AND table_name = ? AND index_name = ? ORDER BY seq_in_index", rs -> {
+            List<String> columns = new ArrayList<String>();
+            while (rs.next())
+               columns.add(rs.getString(1));
+            return columns;
+         }, table, index);
+   }
+
+   // ---------------------------------------------------------------- runner
+
+   private Set<Integer> appliedVersions() throws SQLException {
+      this._esql.executeUpdate(CREATE_VERSION_TABLE);
+      return this._esql.executeQueryAndHandle("SELECT version FROM schema_version", rs -> {
+         Set<Integer> versions = new HashSet<Integer>();
+         while (rs.next())
+            versions.add(rs.getInt(1));
+         return versions;
+      });
+   }
+
+   /**
+    * Applies every migration that hasn't been applied yet.
+    *
+    * @throws java.sql.SQLException when a migration fails; later ones are not attempted
+    */
+   public void migrate() throws SQLException {
+      Set<Integer> applied = appliedVersions();
+      Sample sample = sample();
+      int count = 0;
+      for (Migration m : MIGRATIONS){
+         if (applied.contains(m.version))
+            continue;
+         System.out.printf("%nMigration %d: %s%n", m.version, m.description);
+         benchmark(m, sample, "before");
+         long start = System.nanoTime();
+         for (Step step : m.steps)
+            step.apply(this._esql);
+         this._esql.executeUpdate("INSERT INTO schema_version (version, description, appliedOn) VALUES (?, ?, ?)",
+            m.version, m.description, new Timestamp(System.currentTimeMillis()));
+         System.out.printf("  applied in %.1f s%n", (System.nanoTime() - start) / 1e9);
+         benchmark(m, sample, "after");
+         count++;
+      }
+      System.out.println(count == 0 ? "The schema is up to date" : count + " migration(s) applied");
+   }//end migrate
+
+   public void status() throws SQLException {
+      Set<Integer> applied = appliedVersions();
+      for (Migration m : MIGRATIONS)
+         System.out.printf("%3d %-8s %s%n", m.version, applied.contains(m.version) ? "applied" : "pending", m.description);
+   }
+
+   /**
+    * Runs the benchmarks of every migration against the current schema.
+    */
+   public void benchmarkAll() throws SQLException {
+      Sample sample = sample();
+      for (Migration m : MIGRATIONS){
+         System.out.printf("%nMigration %d: %s%n", m.version, m.description);
+         benchmark(m, sample, "now");
+      }
+   }
+
+   // one recent booking, so the benchmarks look up data that exists.
+   private Sample sample() throws SQLException {
+      Sample s = new Sample();
+      s.date = Date.valueOf(LocalDate.now());
+      this._esql.executeQueryAndHandle(
+         "SELECT hotelID, roomNumber, customerID, bookingDate FROM RoomBookings ORDER BY bookingID DESC LIMIT 1", rs -> {
+            if (rs.next()){
+               s.hotelID = rs.getInt(1);
+               s.roomNumber = rs.getInt(2);
+               s.customerID = rs.getInt(3);
+               s.date = rs.getDate(4);
+            }
+            return null;
+         });
+      this._esql.executeQueryAndHandle(
+         "SELECT latitude, longitude FROM Hotel WHERE hotelID = ?", rs -> {
+            if (rs.next()){
+               s.latitude = rs.getDouble(1);
+               s.longitude = rs.getDouble(2);
+            }
+            return null;
+         }, s.hotelID);
+      return s;
+   }//end sample
+
+   private void benchmark(Migration m, Sample sample, String when) {
+      for (Benchmark b : m.benchmarks){
+         Object[] params = b.params.of(sample);
+         System.out.printf("  %-7s %s%n", when, b.name);
+         try{
+            for (String plan : explain(b.sql, params))
+               System.out.println("          plan: " + plan);
+            LatencyHistogram latency = new LatencyHistogram();
+            for (int i = 0; i < this._benchRuns / 10; i++)
+               this._esql.executeQuery(b.sql, params);
+            for (int i = 0; i < this._benchRuns; i++){
+               long start = System.nanoTime();
+               this._esql.executeQuery(b.sql, params);
+               latency.record(System.nanoTime() - start);
+            }
+            System.out.println("          " + latency.summary());
+         }catch (SQLException e){
+            System.out.println("          fails: " + e.getMessage());
+         }
+      }
+   }//end benchmark
+
+   // the access path of every table in the plan, one line each.
+   private List<String> explain(String sql, Object[] params) throws SQLException {
+      return this._esql.executeQueryAndHandle("EXPLAIN " + sql, rs -> {
+         List<String> plan = new ArrayList<String>();
+         while (rs.next()){
+            plan.add(String.format("table=%s type=%s key=%s rows=%s extra=%s",
+               column(rs, "table"), column(rs, "type"), column(rs, "key"), column(rs, "rows"), column(rs, "Extra")));
+         }
+         return plan;
+      }, params);
+   }
+
+   private static String column(ResultSet rs, String label) throws SQLException {
+      try{
+         return rs.getString(rs.findColumn(label));
+      }catch (SQLException e){
+         return "?";
+      }
+   }
+}//end SchemaMigrations
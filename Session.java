@@ -0,0 +1,143 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The state of one logged-in user: who they are and, for managers, the
+ * hotels they manage.  The console keeps a single session in Global;
+ * server mode keeps one per client.  A session is only used by one
+ * request at a time, but its fields are volatile so consecutive requests
+ * on different threads see each other's updates.
+ *
+ */
+
+public class Session {
+
+   // how long a cached set of managed hotels is trusted.  Assignments made
+   // through this process invalidate it at once; those made elsewhere
+   // (another instance, plain SQL) are seen when it expires.
+   private static final long MANAGED_HOTELS_TTL_NANOS =
+      TimeUnit.SECONDS.toNanos(Long.getLong("hotel.session.managedHotelsTtlSeconds", 10L));
+
+   private volatile String _userID = null;
+   private volatile String _userType = null;
+
+   // hotelIDs managed by the user, possibly none, and the
+   // manager-assignment epoch and time (System.nanoTime) they were loaded at.
+   private volatile LongHashSet _managedHotels = null;
+   private volatile long _managedHotelsEpoch = 0;
+   private volatile long _managedHotelsLoaded = 0;
+
+   // last time (System.nanoTime) the session was used; for server expiry.
+   volatile long lastAccess = System.nanoTime();
+
+   // last time (System.nanoTime) a request of the session wrote; server
+   // requests run on any thread, so ReplicaRouter is told of it each time.
+   volatile long lastWrite = 0;
+
+   /**
+    * Checks the credentials and, on success, binds the session to the user.
+    *
+    * @param esql the database
+    * @param userID the user's ID as typed
+    * @param password the user's password
+    * @return true if the credentials are valid
+    * @throws java.sql.SQLException when the lookup fails
+    */
+   public boolean logIn(Hotel esql, String userID, String password) throws SQLException {
+      List<List<String>> user = esql.executeQueryAndReturnResult(
+         "SELECT userType FROM Users WHERE userID = ? AND password = ?", userID, password);
+      logOut();
+      if (user.isEmpty())
+         return false;
+      this._userID = userID.trim();
+      this._userType = user.get(0).get(0) == null ? null : user.get(0).get(0).trim();
+      // managers get their hotels loaded once, up front
+      if (isManager())
+         loadManagedHotels(esql);
+      return true;
+   }//end logIn
+
+   public void logOut() {
+      this._userID = null;
+      this._userType = null;
+      this._managedHotels = null;
+   }
+
+   public boolean isLoggedIn() {
+      return this._userID != null;
+   }
+
+   /**
+    * @return the logged-in user's ID, or null
+    */
+   public String userID() {
+      return this._userID;
+   }
+
+   /**
+    * @return the logged-in user's ID as a number, for binding to integer columns
+    */
+   public int userNumber() {
+      if (this._userID == null)
+         throw new IllegalStateException("Not logged in");
+      return Integer.parseInt(this._userID);
+   }
+
+   /**
+    * @return the userType of the logged-in user, e.g. 'customer' or 'manager'
+    */
+   public String userType() {
+      return this._userType;
+   }
+
+   public boolean isManager() {
+      return this._userType != null && this._userType.equalsIgnoreCase("manager");
+   }
+
+   /*
+    * Loads the IDs of the hotels managed by the user, tagged with the
+    * current manager-assignment epoch and the time.
+    */
+   private LongHashSet loadManagedHotels(Hotel esql) throws SQLException {
+      long epoch = esql.managerEpoch();
+      long loaded = System.nanoTime();
+      ResultColumns rows;
+      // access checks read the primary, so a new assignment counts at once.
+      ReplicaRouter.Scope primary = ReplicaRouter.primary();
+      try{
+         rows = esql.executeQueryForColumns(
+            "SELECT hotelID FROM Hotel WHERE managerUserID = ?", this._userID);
+      }finally{
+         primary.close();
+      }
+      LongHashSet hotels = new LongHashSet(rows.size());
+      for (int row = 0; row < rows.size(); row++)
+         hotels.add(rows.getInt(row, 0));
+      this._managedHotelsEpoch = epoch;
+      this._managedHotelsLoaded = loaded;
+      this._managedHotels = hotels;
+      return hotels;
+   }//end loadManagedHotels
+
+   /**
+    * Checks whether the user manages a hotel.  Answered from the session,
+    * for users who manage no hotel too; the set is reloaded after a
+    * manager reassignment in this process, or once it is older than
+    * hotel.session.managedHotelsTtlSeconds (default 10).
+    *
+    * @param esql the database, used only when the set is reloaded
+    * @param hotelID the hotel
+    * @return true if the user manages the hotel
+    * @throws java.sql.SQLException when the set has to be reloaded and that fails
+    */
+   public boolean manages(Hotel esql, int hotelID) throws SQLException {
+      if (this._userID == null)
+         return false;
+      LongHashSet hotels = this._managedHotels;
+      if (hotels == null || this._managedHotelsEpoch != esql.managerEpoch()
+            || System.nanoTime() - this._managedHotelsLoaded > MANAGED_HOTELS_TTL_NANOS)
+         hotels = loadManagedHotels(esql);
+      return hotels.contains(hotelID);
+   }//end manages
+}//end Session
@@ -0,0 +1,296 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory grid index over hotel locations.  The plane is divided into
+ * square cells of a fixed size and every hotel is filed under the cell that
+ * contains it, so a radius or nearest-neighbour query only has to look at
+ * the handful of cells around the query point.  Distances are the same
+ * euclidean distance used by Hotel.calculateDistance.
+ *
+ * The index is safe for concurrent readers and writers; single hotels can
+ * be added, moved or removed without rebuilding it.
+ *
+ */
+
+public class SpatialIndex {
+
+   /**
+    * A hotel as stored in the index.
+    */
+   public static class HotelLocation {
+      public final int hotelID;
+      public final String hotelName;
+      public final double latitude;
+      public final double longitude;
+
+      public HotelLocation(int hotelID, String hotelName, double latitude, double longitude) {
+         this.hotelID = hotelID;
+         this.hotelName = hotelName;
+         this.latitude = latitude;
+         this.longitude = longitude;
+      }
+   }//end HotelLocation
+
+   /**
+    * A query match together with its distance from the query point.
+    */
+   public static class Match {
+      public final HotelLocation hotel;
+      public final double distance;
+
+      Match(HotelLocation hotel, double distance) {
+         this.hotel = hotel;
+         this.distance = distance;
+      }
+   }//end Match
+
+   private static final Comparator<Match> BY_DISTANCE = new Comparator<Match>() {
+      public int compare(Match a, Match b) {
+         int c = Double.compare(a.distance, b.distance);
+         return c != 0 ? c : Integer.compare(a.hotel.hotelID, b.hotel.hotelID);
+      }
+   };
+
+   private final double _cellSize;
+   private final Map<Long, List<HotelLocation>> _cells = new HashMap<Long, List<HotelLocation>>();
+   private final Map<Integer, HotelLocation> _byID = new HashMap<Integer, HotelLocation>();
+   private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+
+   // bounding box of the occupied cells, used to stop nearest-neighbour scans.
+   private int _minCellX = Integer.MAX_VALUE, _maxCellX = Integer.MIN_VALUE;
+   private int _minCellY = Integer.MAX_VALUE, _maxCellY = Integer.MIN_VALUE;
+
+   /**
+    * @param cellSize the side of a grid cell, in the same units as latitude
+    *        and longitude; roughly the typical query radius works well
+    */
+   public SpatialIndex(double cellSize) {
+      if (!(cellSize > 0))
+         throw new IllegalArgumentException("cellSize must be positive: " + cellSize);
+      this._cellSize = cellSize;
+   }
+
+   /**
+    * Builds an index from every row of the Hotel table.
+    *
+    * @param esql the database the hotels are read from
+    * @param cellSize the side of a grid cell
+    * @return the populated index
+    * @throws java.sql.SQLException when the hotels can't be read
+    */
+   public static SpatialIndex load(Hotel esql, double cellSize) throws SQLException {
+      SpatialIndex index = new SpatialIndex(cellSize);
+      List<HotelLocation> hotels = esql.executeQueryAndMap(
+         "SELECT hotelID, hotelName, latitude, longitude FROM Hotel", SpatialIndex::toLocation);
+      for (HotelLocation hotel : hotels)
+         index.put(hotel);
+      return index;
+   }//end load
+
+   /**
+    * Re-reads one hotel from the database and updates the index to match,
+    * removing it if the row no longer exists.
+    *
+    * @param esql the database the hotel is read from
+    * @param hotelID the hotel that changed
+    * @throws java.sql.SQLException when the hotel can't be read
+    */
+   public void refresh(Hotel esql, int hotelID) throws SQLException {
+      List<HotelLocation> hotels = esql.executeQueryAndMap(
+         "SELECT hotelID, hotelName, latitude, longitude FROM Hotel WHERE hotelID = ?",
+         SpatialIndex::toLocation, hotelID);
+      if (hotels.isEmpty())
+         remove(hotelID);
+      else
+         put(hotels.get(0));
+   }//end refresh
+
+   private static HotelLocation toLocation(ResultSet rs) throws SQLException {
+      String name = rs.getString(2);
+      double lat = rs.getDouble(3);
+      if (rs.wasNull())
+         lat = Double.NaN;
+      double lon = rs.getDouble(4);
+      if (rs.wasNull())
+         lon = Double.NaN;
+      return new HotelLocation(rs.getInt(1), name == null ? null : name.trim(), lat, lon);
+   }
+
+   /**
+    * Adds a hotel, replacing any earlier entry with the same hotelID.
+    * Hotels without a location are only removed.
+    *
+    * @param hotel the hotel to index
+    */
+   public void put(HotelLocation hotel) {
+      this._lock.writeLock().lock();
+      try{
+         removeLocked(hotel.hotelID);
+         if (Double.isNaN(hotel.latitude) || Double.isNaN(hotel.longitude))
+            return;
+         int cx = cell(hotel.latitude), cy = cell(hotel.longitude);
+         List<HotelLocation> bucket = this._cells.get(key(cx, cy));
+         if (bucket == null){
+            bucket = new ArrayList<HotelLocation>(4);
+            this._cells.put(key(cx, cy), bucket);
+         }
+         bucket.add(hotel);
+         this._byID.put(hotel.hotelID, hotel);
+         this._minCellX = Math.min(this._minCellX, cx);
+         this._maxCellX = Math.max(this._maxCellX, cx);
+         this._minCellY = Math.min(this._minCellY, cy);
+         this._maxCellY = Math.max(this._maxCellY, cy);
+      }finally{
+         this._lock.writeLock().unlock();
+      }
+   }//end put
+
+   /**
+    * Removes a hotel from the index.
+    *
+    * @param hotelID the hotel to remove
+    */
+   public void remove(int hotelID) {
+      this._lock.writeLock().lock();
+      try{
+         removeLocked(hotelID);
+      }finally{
+         this._lock.writeLock().unlock();
+      }
+   }
+
+   private void removeLocked(int hotelID) {
+      HotelLocation old = this._byID.remove(hotelID);
+      if (old == null)
+         return;
+      long k = key(cell(old.latitude), cell(old.longitude));
+      List<HotelLocation> bucket = this._cells.get(k);
+      bucket.remove(old);
+      if (bucket.isEmpty())
+         this._cells.remove(k);
+   }
+
+   /**
+    * @return the number of indexed hotels
+    */
+   public int size() {
+      this._lock.readLock().lock();
+      try{
+         return this._byID.size();
+      }finally{
+         this._lock.readLock().unlock();
+      }
+   }
+
+   /**
+    * Finds every hotel within a radius of a point.
+    *
+    * @param latitude the query latitude
+    * @param longitude the query longitude
+    * @param radius the maximum distance, inclusive
+    * @return the matches, nearest first
+    */
+   public List<Match> withinRadius(double latitude, double longitude, double radius) {
+      List<Match> result = new ArrayList<Match>();
+      this._lock.readLock().lock();
+      try{
+         int x0 = cell(latitude - radius), x1 = cell(latitude + radius);
+         int y0 = cell(longitude - radius), y1 = cell(longitude + radius);
+         x0 = Math.max(x0, this._minCellX);
+         x1 = Math.min(x1, this._maxCellX);
+         y0 = Math.max(y0, this._minCellY);
+         y1 = Math.min(y1, this._maxCellY);
+         for (int x = x0; x <= x1; x++){
+            for (int y = y0; y <= y1; y++){
+               List<HotelLocation> bucket = this._cells.get(key(x, y));
+               if (bucket == null)
+                  continue;
+               for (HotelLocation h : bucket){
+                  double d = distance(latitude, longitude, h);
+                  if (d <= radius)
+                     result.add(new Match(h, d));
+               }
+            }
+         }
+      }finally{
+         this._lock.readLock().unlock();
+      }
+      Collections.sort(result, BY_DISTANCE);
+      return result;
+   }//end withinRadius
+
+   /**
+    * Finds the k hotels nearest to a point.
+    *
+    * @param latitude the query latitude
+    * @param longitude the query longitude
+    * @param k the maximum number of hotels returned
+    * @return up to k matches, nearest first
+    */
+   public List<Match> nearest(double latitude, double longitude, int k) {
+      // max-heap on distance holding the best k seen so far.
+      PriorityQueue<Match> best = new PriorityQueue<Match>(Math.max(k, 1), Collections.reverseOrder(BY_DISTANCE));
+      this._lock.readLock().lock();
+      try{
+         if (k <= 0 || this._byID.isEmpty())
+            return new ArrayList<Match>();
+         int cx = cell(latitude), cy = cell(longitude);
+         int maxRing = Math.max(
+            Math.max(Math.abs(cx - this._minCellX), Math.abs(this._maxCellX - cx)),
+            Math.max(Math.abs(cy - this._minCellY), Math.abs(this._maxCellY - cy)));
+         for (int ring = 0; ring <= maxRing; ring++){
+            // the query point can sit anywhere in its own cell, so every
+            // hotel from this ring outwards is at least this far away.
+            double ringBound = (ring - 1) * this._cellSize;
+            if (best.size() == k && best.peek().distance <= ringBound)
+               break;
+            for (int x = cx - ring; x <= cx + ring; x++){
+               boolean edgeRow = x == cx - ring || x == cx + ring;
+               int step = edgeRow ? 1 : 2 * ring;
+               for (int y = cy - ring; y <= cy + ring; y += Math.max(step, 1)){
+                  List<HotelLocation> bucket = this._cells.get(key(x, y));
+                  if (bucket == null)
+                     continue;
+                  for (HotelLocation h : bucket){
+                     double d = distance(latitude, longitude, h);
+                     if (best.size() < k){
+                        best.add(new Match(h, d));
+                     }else if (d < best.peek().distance){
+                        best.poll();
+                        best.add(new Match(h, d));
+                     }
+                  }
+               }
+            }
+         }
+      }finally{
+         this._lock.readLock().unlock();
+      }
+      List<Match> result = new ArrayList<Match>(best);
+      Collections.sort(result, BY_DISTANCE);
+      return result;
+   }//end nearest
+
+   private static double distance(double latitude, double longitude, HotelLocation h) {
+      double t1 = (latitude - h.latitude) * (latitude - h.latitude);
+      double t2 = (longitude - h.longitude) * (longitude - h.longitude);
+      return Math.sqrt(t1 + t2);
+   }
+
+   private int cell(double coordinate) {
+      return (int) Math.floor(coordinate / this._cellSize);
+   }
+
+   private static long key(int cx, int cy) {
+      return ((long) cx << 32) | (cy & 0xffffffffL);
+   }
+}//end SpatialIndex
@@ -0,0 +1,133 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A least-recently-used cache of PreparedStatements for one physical
+ * connection, keyed by SQL template.  A connection is only ever used by one
+ * thread at a time (see ConnectionPool), so the cache is not synchronized.
+ * Evicted statements are closed, which releases their server-side handle.
+ *
+ */
+
+public class StatementCache {
+
+   private final Connection _connection;
+   private final LinkedHashMap<String, PreparedStatement> _statements;
+   private long _hits = 0;
+   private long _misses = 0;
+   // SQL of the statements prepared since startJournal(), or null.
+   private List<String> _journal = null;
+
+   /**
+    * @param connection the connection the statements are prepared on
+    * @param capacity the maximum number of statements kept open
+    */
+   public StatementCache(Connection connection, final int capacity) {
+      this._connection = connection;
+      this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if (size() <= capacity)
+               return false;
+            closeQuietly(eldest.getValue());
+            return true;
+         }
+      };
+   }//end StatementCache
+
+   /**
+    * Returns the cached statement for a SQL template, preparing it on a miss.
+    *
+    * @param sql the SQL template with '?' placeholders
+    * @return an open PreparedStatement owned by the cache; callers must not close it
+    * @throws java.sql.SQLException when the statement can't be prepared
+    */
+   public PreparedStatement prepare(String sql) throws SQLException {
+      return prepare(sql, sql, false);
+   }
+
+   /**
+    * Like prepare, for an INSERT whose auto-increment keys are read back
+    * with getGeneratedKeys().
+    *
+    * @param sql the SQL template with '?' placeholders
+    * @return an open PreparedStatement owned by the cache; callers must not close it
+    * @throws java.sql.SQLException when the statement can't be prepared
+    */
+   public PreparedStatement prepareReturningKeys(String sql) throws SQLException {
+      // a statement prepared without the flag can't return keys, so it is cached apart.
+      return prepare("keys:" + sql, sql, true);
+   }
+
+   private PreparedStatement prepare(String key, String sql, boolean returnKeys) throws SQLException {
+      if (this._journal != null && !this._journal.contains(sql))
+         this._journal.add(sql);
+      PreparedStatement stmt = this._statements.get(key);
+      if (stmt != null && !stmt.isClosed()){
+         this._hits++;
+         return stmt;
+      }
+      this._misses++;
+      stmt = returnKeys
+         ? this._connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)
+         : this._connection.prepareStatement(sql);
+      this._statements.put(key, stmt);
+      return stmt;
+   }//end prepare
+
+   /**
+    * Starts noting the SQL of every statement prepared, e.g. for the
+    * duration of a transaction.
+    */
+   public void startJournal() {
+      this._journal = new ArrayList<String>();
+   }
+
+   /**
+    * Stops noting statements.
+    *
+    * @return the distinct SQL prepared since startJournal(), in order
+    */
+   public List<String> endJournal() {
+      List<String> journal = this._journal;
+      this._journal = null;
+      return journal == null ? new ArrayList<String>() : journal;
+   }
+
+   /**
+    * @return the number of lookups answered from the cache
+    */
+   public long getHits() {
+      return this._hits;
+   }
+
+   /**
+    * @return the number of lookups that had to prepare a new statement
+    */
+   public long getMisses() {
+      return this._misses;
+   }
+
+   /**
+    * Closes every cached statement.
+    */
+   public void clear() {
+      for (PreparedStatement stmt : this._statements.values())
+         closeQuietly(stmt);
+      this._statements.clear();
+   }
+
+   private static void closeQuietly(PreparedStatement stmt) {
+      try{
+         stmt.close();
+      }catch (SQLException e){
+         // ignored.
+      }
+   }
+}//end StatementCache
@@ -0,0 +1,252 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Registers users one at a time (the sign-up screen) or in bulk (e.g. a
+ * loyalty-program migration).  New userIDs are read back with
+ * getGeneratedKeys() from the INSERT itself, which is exact under
+ * concurrent sign-ups and costs no extra query.
+ *
+ * Bulk files are streamed line by line with the columns
+ *
+ *    name,password[,userType]
+ *
+ * and an optional header line; userType defaults to customer.  Rows are
+ * inserted with JDBC batches and committed every commitInterval rows.
+ * Every registered line is copied to <file>.ids with its new userID
+ * appended, and rejected lines to <file>.rejected with the reason.
+ *
+ * Usage:
+ *   java [-Dhotel.db.*=...] UserProvisioning <file.csv> [batchSize] [commitInterval]
+ *
+ */
+
+public class UserProvisioning {
+
+   private static final String INSERT_USER =
+      "INSERT INTO Users (name, password, userType) VALUES (?, ?, ?)";
+
+   // column sizes of the Users table.
+   private static final int MAX_NAME = 50;
+   private static final int MAX_PASSWORD = 11;
+
+   // one parsed line waiting in the current batch.
+   private static class Row {
+      final String line;
+      final String name;
+      final String password;
+      final String userType;
+
+      Row(String line, String name, String password, String userType) {
+         this.line = line;
+         this.name = name;
+         this.password = password;
+         this.userType = userType;
+      }
+   }//end Row
+
+   private final Hotel _esql;
+   private final int _batchSize;
+   private final int _commitInterval;
+
+   private long _read = 0;
+   private long _registered = 0;
+   private long _rejected = 0;
+
+   /**
+    * @param esql the database
+    * @param batchSize rows per JDBC batch
+    * @param commitInterval rows per transaction; rounded up to whole batches
+    */
+   public UserProvisioning(Hotel esql, int batchSize, int commitInterval) {
+      this._esql = esql;
+      this._batchSize = Math.max(batchSize, 1);
+      this._commitInterval = Math.max(commitInterval, this._batchSize);
+   }
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 1){
+         System.err.println ("Usage: java UserProvisioning <file.csv> [batchSize] [commitInterval]");
+         System.exit(1);
+      }
+      int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+      int commitInterval = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+      Hotel esql = Hotel.connect();
+      try{
+         new UserProvisioning(esql, batchSize, commitInterval)
+            .registerFile(args[0], args[0] + ".ids", args[0] + ".rejected");
+      }finally{
+         esql.cleanup();
+      }
+   }//end main
+
+   /**
+    * Registers a single user.
+    *
+    * @param esql the database
+    * @param name the user's name
+    * @param password the user's password
+    * @param userType 'customer' or 'manager'
+    * @return the new userID
+    * @throws java.sql.SQLException when the insert fails
+    */
+   public static int register(Hotel esql, final String name, final String password, final String userType)
+         throws SQLException {
+      String invalid = validate(name, password, userType);
+      if (invalid != null)
+         throw new IllegalArgumentException(invalid);
+      return esql.inTransaction(pc -> {
+         PreparedStatement insert = pc.statements().prepareReturningKeys(INSERT_USER);
+         insert.setString(1, name);
+         insert.setString(2, password);
+         insert.setString(3, userType);
+         insert.executeUpdate();
+         try (ResultSet keys = insert.getGeneratedKeys()){
+            if (!keys.next())
+               throw new SQLException("No userID was generated");
+            return keys.getInt(1);
+         }
+      });
+   }//end register
+
+   // the reason a user can't be registered, or null.
+   private static String validate(String name, String password, String userType) {
+      if (name.isEmpty() || name.length() > MAX_NAME)
+         return "name must be 1 to " + MAX_NAME + " characters";
+      if (password.isEmpty() || password.length() > MAX_PASSWORD)
+         return "password must be 1 to " + MAX_PASSWORD + " characters";
+      if (!userType.equalsIgnoreCase("customer") && !userType.equalsIgnoreCase("manager"))
+         return "userType must be customer or manager";
+      return null;
+   }
+
+   /**
+    * Registers every user in a CSV file.
+    *
+    * @param path the CSV file
+    * @param idPath where registered lines are written with their userID
+    * @param rejectPath where rejected lines are written
+    * @throws java.sql.SQLException when the database fails
+    * @throws java.io.IOException when the files can't be read or written
+    */
+   public void registerFile(String path, String idPath, String rejectPath) throws SQLException, IOException {
+      long start = System.nanoTime();
+      try (final BufferedReader reader = new BufferedReader(new FileReader(path), 1 << 16);
+           final BufferedWriter ids = new BufferedWriter(new FileWriter(idPath), 1 << 16);
+           final BufferedWriter rejects = new BufferedWriter(new FileWriter(rejectPath))){
+         final boolean[] eof = { false };
+         while (!eof[0]){
+            // one transaction per commit interval; its ids are only
+            // flushed once it has committed.
+            final StringBuilder committed = new StringBuilder();
+            this._esql.inTransaction(pc -> {
+               committed.setLength(0);
+               try{
+                  eof[0] = registerChunk(pc, reader, committed, rejects);
+               }catch (IOException e){
+                  throw new SQLException("Unable to read " + path, e);
+               }
+               return null;
+            });
+            ids.append(committed);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d rows read, %d registered, %d rejected, %.0f users/s%n",
+               this._read, this._registered, this._rejected, this._registered / seconds);
+         }
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf("Done in %.1f s: %d registered (see %s), %d rejected (see %s), %.0f users/s%n",
+         seconds, this._registered, idPath, this._rejected, rejectPath, this._registered / seconds);
+   }//end registerFile
+
+   /*
+    * Reads and registers up to one commit interval of rows.
+    * @return true once the end of the file has been reached
+    */
+   private boolean registerChunk(PooledConnection pc, BufferedReader reader, StringBuilder ids, BufferedWriter rejects)
+         throws SQLException, IOException {
+      int inChunk = 0;
+      List<Row> batch = new ArrayList<Row>(this._batchSize);
+      String line;
+      while ((line = reader.readLine()) != null){
+         Row row = parse(line, rejects);
+         if (row == null)
+            continue;
+         batch.add(row);
+         if (batch.size() == this._batchSize){
+            writeBatch(pc, batch, ids);
+            inChunk += batch.size();
+            batch.clear();
+            if (inChunk >= this._commitInterval)
+               return false;
+         }
+      }
+      if (!batch.isEmpty())
+         writeBatch(pc, batch, ids);
+      return true;
+   }//end registerChunk
+
+   /*
+    * Parses and validates one line.
+    * @return the row, or null if it was blank, a header, or rejected
+    */
+   private Row parse(String line, BufferedWriter rejects) throws IOException {
+      if (line.trim().isEmpty())
+         return null;
+      String[] f = line.split(",", -1);
+      if (this._read == 0 && f[0].trim().equalsIgnoreCase("name"))
+         return null;
+      this._read++;
+      if (f.length < 2 || f.length > 3){
+         reject(rejects, line, "expected 2 or 3 columns");
+         return null;
+      }
+      String userType = f.length == 3 && !f[2].trim().isEmpty() ? f[2].trim().toLowerCase() : "customer";
+      String invalid = validate(f[0].trim(), f[1].trim(), userType);
+      if (invalid != null){
+         reject(rejects, line, invalid);
+         return null;
+      }
+      return new Row(line, f[0].trim(), f[1].trim(), userType);
+   }//end parse
+
+   private void writeBatch(PooledConnection pc, List<Row> batch, StringBuilder ids) throws SQLException {
+      PreparedStatement insert = pc.statements().prepareReturningKeys(INSERT_USER);
+      try{
+         for (Row row : batch){
+            insert.setString(1, row.name);
+            insert.setString(2, row.password);
+            insert.setString(3, row.userType);
+            insert.addBatch();
+         }
+         insert.executeBatch();
+         // keys come back in the order the rows were added.
+         int i = 0;
+         try (ResultSet keys = insert.getGeneratedKeys()){
+            while (keys.next() && i < batch.size())
+               ids.append(batch.get(i++).line).append(',').append(keys.getInt(1)).append('\n');
+         }
+         if (i != batch.size())
+            throw new SQLException("Expected " + batch.size() + " userIDs, got " + i);
+         this._registered += batch.size();
+      }finally{
+         insert.clearBatch();
+      }
+   }//end writeBatch
+
+   private void reject(BufferedWriter rejects, String line, String reason) throws IOException {
+      this._rejected++;
+      rejects.write(line);
+      rejects.write(',');
+      rejects.write(reason);
+      rejects.newLine();
+   }
+}//end UserProvisioning
@@ -0,0 +1,226 @@
+package hotel;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for the Hotel data-access paths: the query helpers, the
+ * in-memory indexes and caches, the booking flow and the manager reports.
+ * Every benchmark returns its result so that JMH consumes it and the work
+ * can't be optimized away.  Throughput and sampled latency percentiles
+ * are reported for each.
+ *
+ * Run them against a database seeded with BenchmarkData.  The -Dhotel.db.*
+ * properties given to the launcher are passed on to the forked JVMs.
+ * Anything printed by the operations themselves is discarded.
+ *
+ * Usage:
+ *   mvn -B package
+ *   java [-Dhotel.db.*=...] -jar target/benchmarks.jar [regexp] [JMH options]
+ *
+ * e.g. "HotelBenchmarks.report" runs the manager reports only, and -t, -wi,
+ * -i and -f override the threads, iterations and forks set here.
+ *
+ * The application classes are in the default package, for which JMH can't
+ * generate code, so the build compiles copies of them in package hotel
+ * (see pom.xml).  The booking benchmark books nights far in the future as
+ * a customer registered for the run, and removes both when it is done.
+ *
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(4)
+@Fork(1)
+@Warmup(iterations = 1, time = 5)
+@Measurement(iterations = 3, time = 10)
+public class HotelBenchmarks {
+
+   // bookings made by the benchmark are placed from here on.
+   private static final LocalDate BOOKING_EPOCH = LocalDate.of(2090, 1, 1);
+
+   private Hotel _esql;
+   private PrintStream _console;
+
+   // the data set, sampled once per fork.
+   private long[] _rooms;
+   private double[][] _locations;
+   private int _firstCustomer;
+   private int _customer = -1;
+   private LocalDate _firstNight;
+   private int _nights;
+
+   /**
+    * Connects, samples the keys used to build random requests and registers
+    * the customer who makes the bookings.
+    *
+    * @throws Exception when the database can't be reached or is empty
+    */
+   @Setup(Level.Trial)
+   public void setUp() throws Exception {
+      this._esql = Hotel.connect();
+      final List<Long> rooms = new ArrayList<Long>();
+      this._esql.executeQueryAndHandle("SELECT hotelID, roomNumber FROM Rooms", rs -> {
+         while (rs.next())
+            rooms.add(LongHashSet.pack(rs.getInt(1), rs.getInt(2)));
+         return null;
+      });
+      this._rooms = new long[rooms.size()];
+      for (int i = 0; i < this._rooms.length; i++)
+         this._rooms[i] = rooms.get(i);
+
+      this._locations = this._esql.executeQueryAndMap("SELECT latitude, longitude FROM Hotel",
+         rs -> new double[] { rs.getDouble(1), rs.getDouble(2) }).toArray(new double[0][]);
+
+      this._firstCustomer = this._esql.getNewUserID(
+         "SELECT MIN(userID) FROM Users WHERE userType = 'customer'");
+      ResultColumns range = this._esql.executeQueryForColumns(
+         "SELECT MIN(bookingDate), MAX(bookingDate) FROM RoomBookings WHERE bookingDate < ?",
+         Date.valueOf(BOOKING_EPOCH));
+      if (this._rooms.length == 0 || this._locations.length == 0 || this._firstCustomer < 0 || range.isNull(0, 0))
+         throw new IllegalStateException("The database is empty; seed it with BenchmarkData first");
+      this._firstNight = range.getDate(0, 0);
+      this._nights = (int) (range.getDate(0, 1).toEpochDay() - this._firstNight.toEpochDay()) + 1;
+      this._customer = UserProvisioning.register(this._esql, "benchmark", "benchmark", "customer");
+
+      this._console = System.out;
+      System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+   }//end setUp
+
+   /**
+    * Removes the booking benchmark's customer and bookings, and disconnects.
+    *
+    * @throws SQLException when the delete fails
+    */
+   @TearDown(Level.Trial)
+   public void tearDown() throws SQLException {
+      if (this._console != null)
+         System.setOut(this._console);
+      try{
+         if (this._customer >= 0){
+            this._esql.executeUpdate("DELETE FROM RoomBookings WHERE customerID = ?", this._customer);
+            this._esql.executeUpdate("DELETE FROM CustomerVisits WHERE customerID = ?", this._customer);
+            this._esql.executeUpdate("DELETE FROM Users WHERE userID = ?", this._customer);
+         }
+      }finally{
+         this._esql.cleanup();
+      }
+   }//end tearDown
+
+   private double[] location(ThreadLocalRandom random) {
+      double[] hotel = this._locations[random.nextInt(this._locations.length)];
+      return new double[] { hotel[0] + random.nextDouble(-5, 5), hotel[1] + random.nextDouble(-5, 5) };
+   }
+
+   private int hotel(ThreadLocalRandom random) {
+      return (int) (this._rooms[random.nextInt(this._rooms.length)] >> 32);
+   }
+
+   private int customer(ThreadLocalRandom random) {
+      return this._firstCustomer + random.nextInt(1000);
+   }
+
+   private LocalDate night(ThreadLocalRandom random) {
+      return this._firstNight.plusDays(random.nextInt(this._nights));
+   }
+
+   @Benchmark
+   public double calculateDistance() {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      double[] a = location(random), b = location(random);
+      return this._esql.calculateDistance(a[0], a[1], b[0], b[1]);
+   }
+
+   @Benchmark
+   public List<SpatialIndex.Match> hotelIndexWithinRadius() throws SQLException {
+      double[] at = location(ThreadLocalRandom.current());
+      return this._esql.hotelIndex().withinRadius(at[0], at[1], Hotel.NEARBY_RADIUS);
+   }
+
+   @Benchmark
+   public List<SpatialIndex.Match> hotelIndexNearest10() throws SQLException {
+      double[] at = location(ThreadLocalRandom.current());
+      return this._esql.hotelIndex().nearest(at[0], at[1], 10);
+   }
+
+   @Benchmark
+   public List<List<String>> executeQueryAndReturnResultRecentBookings() throws SQLException {
+      return this._esql.executeQueryAndReturnResult(Hotel.RECENT_BOOKINGS_QUERY, customer(ThreadLocalRandom.current()));
+   }
+
+   @Benchmark
+   public ResultColumns executeQueryForColumnsRecentBookings() throws SQLException {
+      return this._esql.executeQueryForColumns(Hotel.RECENT_BOOKINGS_QUERY, customer(ThreadLocalRandom.current()));
+   }
+
+   @Benchmark
+   public int executeQueryAndPrintResultRecentBookings() throws SQLException {
+      return this._esql.executeQueryAndPrintResult(Hotel.RECENT_BOOKINGS_QUERY, customer(ThreadLocalRandom.current()));
+   }
+
+   @Benchmark
+   public int executeQueryRoomsOfHotel() throws SQLException {
+      return this._esql.executeQuery("SELECT roomNumber FROM Rooms WHERE hotelID = ?", hotel(ThreadLocalRandom.current()));
+   }
+
+   @Benchmark
+   public List<RoomSearch.Result> roomSearch() throws SQLException {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      double[] at = location(random);
+      return RoomSearch.search(this._esql, at[0], at[1], 10, 0, 300, LocalDate.now().plusDays(random.nextInt(30)),
+         RoomSearch.Ranking.DISTANCE, 20);
+   }
+
+   @Benchmark
+   public AvailabilityCache.Snapshot availabilityGet() throws SQLException {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      return this._esql.availability().get(this._esql, hotel(random), LocalDate.now().plusDays(random.nextInt(30)));
+   }
+
+   @Benchmark
+   public BookingHistory.Page reportBookingsInRange() throws SQLException {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      LocalDate from = night(random);
+      return BookingHistory.page(this._esql, hotel(random), BookingHistory.Cursor.before(from), from.plusDays(7), 50);
+   }
+
+   @Benchmark
+   public int reportRegularCustomers() throws SQLException {
+      return this._esql.executeQueryAndPrintResult(RegularCustomers.TOP_QUERY, hotel(ThreadLocalRandom.current()), 5);
+   }
+
+   @Benchmark
+   public int reportRepairHistory() throws SQLException {
+      return this._esql.executeQueryAndPrintResult(Hotel.REPAIR_HISTORY_QUERY, hotel(ThreadLocalRandom.current()));
+   }
+
+   @Benchmark
+   public RoomReservations.Outcome reservationsBook() throws SQLException {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      long room = this._rooms[random.nextInt(this._rooms.length)];
+      return this._esql.reservations().book(this._esql, this._customer, (int) (room >> 32), (int) room,
+         BOOKING_EPOCH.plusDays(random.nextInt(3650)));
+   }
+}//end HotelBenchmarks
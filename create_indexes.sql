@@ -2,16 +2,8 @@
 CREATE INDEX index_hotelDistance
 ON Hotel (latitude, longitude);
 
-CREATE INDEX index_bookingDate
-ON RoomBookings (hotelID, roomNumber)
-WHERE bookingDate IS NULL;
-
 CREATE INDEX index_viewBookings
-ON RoomBookings USING BTREE
-(customerID, bookingDate DESC);
-
-CREATE INDEX index_roomNumber
-ON Rooms (hotelID, roomNumber);
+ON RoomBookings (customerID, bookingDate DESC);
 
 CREATE INDEX index_roomBookings
 ON RoomBookings (hotelID, customerID);
@@ -19,6 +11,21 @@ ON RoomBookings (hotelID, customerID);
 CREATE INDEX index_roomRepairs
 ON RoomRepairs (hotelID, roomNumber);
 
+-- At most one booking per room and night; the booking path relies on it
+-- to reject double bookings atomically.
+CREATE UNIQUE INDEX uq_roomBookings_slot
+ON RoomBookings (hotelID, roomNumber, bookingDate);
 
+-- Keyset pagination of a hotel's booking history walks this index in
+-- (bookingDate, bookingID) order; with roomNumber it also covers the
+-- rooms booked at a hotel on a date (viewRooms, bookRooms).
+CREATE INDEX index_hotelBookingHistory
+ON RoomBookings (hotelID, bookingDate, bookingID, roomNumber);
 
+-- The repair dispatcher counts each company's repairs from today on.
+CREATE INDEX index_companyRepairs
+ON RoomRepairs (companyID, repairDate);
 
+-- The regular customers report reads the top rows of a hotel in this order.
+CREATE INDEX index_customerVisits
+ON CustomerVisits (hotelID, bookings);
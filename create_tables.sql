@@ -1,20 +1,23 @@
-DROP TABLE IF EXISTS Hotel CASCADE;
+-- MySQL ignores CASCADE, so the tables are dropped before the tables they reference.
+DROP TABLE IF EXISTS RoomUpdatesLog CASCADE;
+DROP TABLE IF EXISTS RoomRepairRequests CASCADE;
+DROP TABLE IF EXISTS RoomRepairs CASCADE;
+DROP TABLE IF EXISTS CustomerVisits CASCADE;
+DROP TABLE IF EXISTS RoomBookings CASCADE;
 DROP TABLE IF EXISTS Rooms CASCADE;
-DROP TABLE IF EXISTS Users CASCADE;
+DROP TABLE IF EXISTS Hotel CASCADE;
 DROP TABLE IF EXISTS MaintenanceCompany CASCADE;
-DROP TABLE IF EXISTS RoomBookings CASCADE;
-DROP TABLE IF EXISTS RoomRepairs CASCADE;
-DROP TABLE IF EXISTS RoomRepairRequests CASCADE;
-DROP TABLE IF EXISTS RoomUpdatesLog CASCADE;
+DROP TABLE IF EXISTS Users CASCADE;
+DROP TABLE IF EXISTS schema_version;
 
-CREATE TABLE Users ( userID serial,
+CREATE TABLE Users ( userID integer AUTO_INCREMENT,
                      name char(50),
                      password char(11) NOT NULL,
-                     userType char(10),  ---userType can be 'customer' or 'manager' 
+                     userType char(10),  -- userType can be 'customer' or 'manager' 
                      PRIMARY KEY(userID)
 );
---Note: 'serial' is a special datatype of Postgres. The value of the field having serial datatype
---is autoincremented if any new row is inserted.
+-- Note: the value of an AUTO_INCREMENT field is generated if any new row is inserted.
+-- Plain integer keys (not serial, which is BIGINT UNSIGNED in MySQL) match the integer foreign keys.
 
 CREATE TABLE Hotel ( hotelID integer, 
                      hotelName char(30) NOT NULL,
@@ -43,7 +46,7 @@ CREATE TABLE MaintenanceCompany (
 
 
 CREATE TABLE RoomBookings ( 
-                    bookingID serial NOT NULL,
+                    bookingID integer AUTO_INCREMENT NOT NULL,
                     customerID integer NOT NULL,
                     hotelID integer NOT NULL,
                     roomNumber integer NOT NULL, 
@@ -54,7 +57,7 @@ CREATE TABLE RoomBookings (
 );
 
 CREATE TABLE RoomRepairs (  
-                            repairID serial,
+                            repairID integer AUTO_INCREMENT,
                             companyID integer NOT NULL,
                             hotelID integer NOT NULL,
                             roomNumber integer NOT NULL, 
@@ -66,7 +69,7 @@ CREATE TABLE RoomRepairs (
 
 
 CREATE TABLE RoomRepairRequests ( 
-                               requestNumber serial,
+                               requestNumber integer AUTO_INCREMENT,
                                managerID integer NOT NULL, 
                	               repairID integer NOT NULL, 
                                PRIMARY KEY(requestNumber), 
@@ -74,9 +77,9 @@ CREATE TABLE RoomRepairRequests (
 			                   FOREIGN KEY(repairID) REFERENCES RoomRepairs(repairID)
 );
 
---The following table stores the information about any update of the room's information done by any Manager.
+-- The following table stores the information about any update of the room's information done by any Manager.
 CREATE TABLE RoomUpdatesLog (
-                            updateNumber serial,
+                            updateNumber integer AUTO_INCREMENT,
                             managerID integer NOT NULL,
                             hotelID integer NOT NULL,
                             roomNumber integer NOT NULL,
@@ -86,9 +89,27 @@ CREATE TABLE RoomUpdatesLog (
                             FOREIGN KEY(hotelID, roomNumber) REFERENCES Rooms(hotelID, roomNumber)
 );
 
----The following is the definition of a user-defined sql function for calculating the distance between two lat-long pairs.
-CREATE OR REPLACE FUNCTION calculate_distance(lat1 decimal, long1 decimal, lat2 decimal, long2 decimal)
-RETURNS decimal AS $dist$
-BEGIN RETURN sqrt((lat1 - lat2) * (lat1 - lat2) + (long1 - long2) * (long1 - long2));
-END;
-$dist$ LANGUAGE plpgsql;
+-- The following table counts the bookings of every customer at every hotel, for the regular customers report.
+-- The triggers below keep it current in the same transaction as every booking insert and delete.
+CREATE TABLE CustomerVisits (
+                            hotelID integer NOT NULL,
+                            customerID integer NOT NULL,
+                            bookings integer NOT NULL,
+                            PRIMARY KEY(hotelID, customerID)
+);
+
+CREATE TRIGGER roomBookings_countVisit AFTER INSERT ON RoomBookings
+FOR EACH ROW
+   INSERT INTO CustomerVisits (hotelID, customerID, bookings) VALUES (NEW.hotelID, NEW.customerID, 1)
+   ON DUPLICATE KEY UPDATE bookings = bookings + 1;
+
+CREATE TRIGGER roomBookings_uncountVisit AFTER DELETE ON RoomBookings
+FOR EACH ROW
+   UPDATE CustomerVisits SET bookings = bookings - 1
+   WHERE hotelID = OLD.hotelID AND customerID = OLD.customerID;
+
+-- The following is the definition of a user-defined sql function for calculating the distance between two lat-long pairs.
+DROP FUNCTION IF EXISTS calculate_distance;
+CREATE FUNCTION calculate_distance(lat1 double, long1 double, lat2 double, long2 double)
+RETURNS double DETERMINISTIC NO SQL
+RETURN sqrt((lat1 - lat2) * (lat1 - lat2) + (long1 - long2) * (long1 - long2));